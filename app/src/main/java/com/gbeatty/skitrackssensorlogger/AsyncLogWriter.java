@@ -0,0 +1,307 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves all log file writes off the sensor callbacks onto a single writer thread.
+ *
+ * Any number of producers (the MetaWear message handlers) add records to a bounded lock free
+ * queue. Each slot has a sequence number that says whether it is free for the producer of a
+ * given position or holds a record ready for the writer, so producers only contend on one CAS
+ * of the tail and never wait for each other or the writer. When the queue is full the record is
+ * dropped and counted rather than blocking the caller.
+ *
+ * The writer thread wakes up every poll interval (or early when the queue gets busy), writes
+ * everything that has arrived into the log, and flushes that to the file once enough
+ * records have piled up or the flush interval has passed, so the file sees a few large writes
+ * instead of many small ones.
+ */
+public class AsyncLogWriter implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final int DEFAULT_FLUSH_RECORDS = 2048;
+    public static final long DEFAULT_FLUSH_INTERVAL_NANOS = 1000000000L;
+
+    private static final long POLL_INTERVAL_NANOS = 20000000L;
+    private static final int MAX_PENDING_TASKS = 64;
+
+    private final SampleWriter out;
+    private final int capacity;
+    private final int mask;
+    private final int flushRecords;
+    private final long flushIntervalNanos;
+
+    // slot i holds a free slot for position p when sequence == p, a record of position p
+    // when sequence == p + 1
+    private final AtomicLongArray sequence;
+    private final long[] times;
+    private final byte[] sensors;
+    private final float[] values;
+
+    private final AtomicLong tail = new AtomicLong(0);
+    // only touched by the writer thread, consumed is head published for getBacklog
+    private long head = 0;
+    private volatile long consumed = 0;
+
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger pendingTasks = new AtomicInteger(0);
+
+    private final AtomicLong droppedRecords = new AtomicLong(0);
+    private final AtomicLong droppedTasks = new AtomicLong(0);
+    private volatile long writtenRecords = 0;
+    private volatile long flushes = 0;
+    private volatile IOException failure;
+
+    private volatile Thread thread;
+    private volatile boolean running = false;
+
+    public AsyncLogWriter(SampleWriter out) {
+        this(out, DEFAULT_CAPACITY, DEFAULT_FLUSH_RECORDS, DEFAULT_FLUSH_INTERVAL_NANOS);
+    }
+
+    /**
+     * @param minCapacity minimum number of records the queue can hold, rounded up to a power of two
+     * @param flushRecords flush the file once this many records have been written since the last flush
+     * @param flushIntervalNanos flush the file at least this often while records are arriving
+     */
+    public AsyncLogWriter(SampleWriter out, int minCapacity, int flushRecords, long flushIntervalNanos) {
+        if (minCapacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2: " + minCapacity);
+        }
+        int cap = Integer.highestOneBit(minCapacity);
+        if (cap < minCapacity) {
+            cap <<= 1;
+        }
+        this.out = out;
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.flushRecords = flushRecords;
+        this.flushIntervalNanos = flushIntervalNanos;
+
+        sequence = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; i++) {
+            sequence.set(i, i);
+        }
+        times = new long[cap];
+        sensors = new byte[cap];
+        values = new float[cap * 3];
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        }, "LogWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Producer side, safe to call from any thread. Never blocks.
+     * @return false if the record was dropped because the queue is full
+     */
+    public boolean write(int sensor, long timeNanos, float x, float y, float z) {
+        long pos;
+        int slot;
+        while (true) {
+            pos = tail.get();
+            slot = (int) pos & mask;
+            long seq = sequence.get(slot);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (seq < pos) {
+                // the writer hasn't freed this slot since the last lap, the queue is full
+                droppedRecords.incrementAndGet();
+                return false;
+            }
+            // otherwise another producer claimed the slot first, try the next one
+        }
+
+        times[slot] = timeNanos;
+        sensors[slot] = (byte) sensor;
+        int v = slot * 3;
+        values[v] = x;
+        values[v + 1] = y;
+        values[v + 2] = z;
+        sequence.lazySet(slot, pos + 1);
+
+        // wake the writer early when a quarter of the queue has filled up
+        if ((pos & ((capacity >> 2) - 1)) == 0 && pos != 0) {
+            wakeWriter();
+        }
+        return true;
+    }
+
+    /**
+     * Runs a (rare, e.g. once a second) write of some other kind on the writer thread,
+     * such as appending a line to another log file. Never blocks.
+     * @return false if the task was dropped because too many tasks are already waiting
+     */
+    public boolean post(Runnable task) {
+        if (pendingTasks.incrementAndGet() > MAX_PENDING_TASKS) {
+            pendingTasks.decrementAndGet();
+            droppedTasks.incrementAndGet();
+            return false;
+        }
+        tasks.offer(task);
+        return true;
+    }
+
+    /**
+     * Stops the writer thread after it has written everything that was queued, and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            boolean interrupted = false;
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            // never started, write out whatever was queued on this thread
+            drain();
+        }
+        out.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    public long getDroppedTasks() {
+        return droppedTasks.get();
+    }
+
+    public long getWrittenRecords() {
+        return writtenRecords;
+    }
+
+    public long getFlushCount() {
+        return flushes;
+    }
+
+    /**
+     * @return the number of records waiting for the writer thread
+     */
+    public long getBacklog() {
+        return Math.max(0, tail.get() - consumed);
+    }
+
+    /**
+     * @return the first error writing the log, after which further records are dropped
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    private void wakeWriter() {
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    private void writerLoop() {
+        long lastFlush = System.nanoTime();
+        long unflushed = 0;
+
+        while (true) {
+            boolean stopping = !running;
+            int written = drain();
+            unflushed += written;
+
+            long now = System.nanoTime();
+            if (unflushed > 0 && (stopping || unflushed >= flushRecords || now - lastFlush >= flushIntervalNanos)) {
+                flush();
+                unflushed = 0;
+                lastFlush = now;
+            }
+
+            if (stopping) {
+                return;
+            }
+            if (written == 0) {
+                LockSupport.parkNanos(this, POLL_INTERVAL_NANOS);
+            }
+        }
+    }
+
+    // writes out every queued record and task, returns the number of records
+    private int drain() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            pendingTasks.decrementAndGet();
+            task.run();
+        }
+
+        int count = 0;
+        while (true) {
+            int slot = (int) head & mask;
+            if (sequence.get(slot) != head + 1) {
+                break;
+            }
+            if (failure == null) {
+                int v = slot * 3;
+                try {
+                    out.write(sensors[slot], times[slot], values[v], values[v + 1], values[v + 2]);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                droppedRecords.incrementAndGet();
+            } else {
+                count++;
+            }
+            // free the slot for the producer one lap ahead
+            sequence.lazySet(slot, head + capacity);
+            head++;
+        }
+        consumed = head;
+        writtenRecords += count;
+        return count;
+    }
+
+    private void flush() {
+        if (failure != null) {
+            return;
+        }
+        try {
+            out.flush();
+            flushes++;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Converts a binary or compressed sensor log into the Accel_, Gyro_ and Mag_ CSV files
+ * LoggingService used to write, "MM_dd_yyyy_hh_mm_ss.SSS,x,y,z" per line, so existing analysis
+ * tools (and CsvSessionSource) can read it.
+ */
+public class BinaryLogConverter {
+
+    private BinaryLogConverter() {
+    }
+
+    /**
+     * Writes the samples of source into Accel_[name].csv, Gyro_[name].csv and Mag_[name].csv in dir.
+     * @return the number of samples converted
+     */
+    public static long toCsv(SampleSource source, File dir, String name) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("MM_dd_yyyy_hh_mm_ss.SSS");
+        Date date = new Date();
+        StringBuilder line = new StringBuilder(64);
+
+        Writer accel = new BufferedWriter(new FileWriter(new File(dir, "Accel_" + name + ".csv")), 1 << 16);
+        Writer gyro = new BufferedWriter(new FileWriter(new File(dir, "Gyro_" + name + ".csv")), 1 << 16);
+        Writer mag = new BufferedWriter(new FileWriter(new File(dir, "Mag_" + name + ".csv")), 1 << 16);
+        try {
+            long[] time = new long[1];
+            float[] xyz = new float[3];
+            long count = 0;
+            int sensor;
+            while ((sensor = source.next(time, xyz)) >= 0) {
+                Writer out;
+                switch (sensor) {
+                    case SampleSource.SENSOR_ACCEL:
+                        out = accel;
+                        break;
+                    case SampleSource.SENSOR_GYRO:
+                        out = gyro;
+                        break;
+                    case SampleSource.SENSOR_MAG:
+                        out = mag;
+                        break;
+                    default:
+                        continue;
+                }
+
+                date.setTime(time[0] / 1000000L);
+                line.setLength(0);
+                line.append(format.format(date))
+                        .append(',').append(xyz[0])
+                        .append(',').append(xyz[1])
+                        .append(',').append(xyz[2])
+                        .append('\n');
+                out.append(line);
+                count++;
+            }
+            return count;
+        } finally {
+            accel.close();
+            gyro.close();
+            mag.close();
+        }
+    }
+
+    /**
+     * Usage: BinaryLogConverter Imu_[name].bin|Imu_[name].imz [output dir]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: BinaryLogConverter <Imu_.bin|Imu_.imz> [output dir]");
+            System.exit(1);
+        }
+
+        File file = new File(args[0]);
+        File dir = args.length > 1 ? new File(args[1]) : file.getAbsoluteFile().getParentFile();
+        String name = file.getName();
+        if (name.startsWith("Imu_")) {
+            name = name.substring(4);
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+
+        SampleSource reader = SampleLogs.open(file);
+        try {
+            long count = toCsv(reader, dir, name);
+            System.out.println("converted " + count + " samples");
+        } finally {
+            reader.close();
+        }
+    }
+}
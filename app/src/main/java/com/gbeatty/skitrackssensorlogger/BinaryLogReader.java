@@ -0,0 +1,109 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a log written by {@link BinaryLogWriter}. The records come back in the order they
+ * were written. A partial record at the end of the file (e.g. when the app was killed while
+ * logging) is ignored. With the log's {@link SessionIndex} the reader can jump to any point
+ * of the session without reading the records before it.
+ */
+public class BinaryLogReader implements SampleSource {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final long startTimeMillis;
+
+    public BinaryLogReader(File file) throws IOException {
+        channel = new FileInputStream(file).getChannel();
+        buffer = ByteBuffer.allocateDirect(BinaryLogWriter.DEFAULT_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.limit(0);
+
+        try {
+            if (!fill(BinaryLogWriter.HEADER_SIZE)) {
+                throw new EOFException("missing header in " + file);
+            }
+            if (buffer.getInt() != BinaryLogWriter.MAGIC) {
+                throw new IOException(file + " is not a sensor log");
+            }
+            short version = buffer.getShort();
+            short recordSize = buffer.getShort();
+            if (version != BinaryLogWriter.VERSION || recordSize != BinaryLogWriter.RECORD_SIZE) {
+                throw new IOException("unsupported log version " + version + " in " + file);
+            }
+            startTimeMillis = buffer.getLong();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the wall clock time the log was started at, in milliseconds since the epoch
+     */
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /**
+     * Continues reading at the given byte offset in the log, e.g. from SessionIndex.getOffset.
+     */
+    public void seek(long offset) throws IOException {
+        if (offset < BinaryLogWriter.HEADER_SIZE || (offset - BinaryLogWriter.HEADER_SIZE) % BinaryLogWriter.RECORD_SIZE != 0) {
+            throw new IllegalArgumentException("not a record offset: " + offset);
+        }
+        channel.position(offset);
+        buffer.limit(0);
+    }
+
+    /**
+     * Continues reading at the start of the index segment holding the given time, so the next
+     * records can still be (up to one segment) older than timeNanos.
+     */
+    public void seekToTime(SessionIndex index, long timeNanos) throws IOException {
+        int segment = index.find(timeNanos);
+        if (segment >= 0) {
+            seek(index.getOffset(segment));
+        }
+    }
+
+    @Override
+    public int next(long[] time, float[] xyz) throws IOException {
+        if (!fill(BinaryLogWriter.RECORD_SIZE)) {
+            return -1;
+        }
+        time[0] = buffer.getLong();
+        int sensor = buffer.get();
+        xyz[0] = buffer.getFloat();
+        xyz[1] = buffer.getFloat();
+        xyz[2] = buffer.getFloat();
+        return sensor;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // makes sure at least count bytes can be read from the buffer, false at the end of the file
+    private boolean fill(int count) throws IOException {
+        if (buffer.remaining() >= count) {
+            return true;
+        }
+        buffer.compact();
+        while (buffer.position() < count) {
+            if (channel.read(buffer) < 0) {
+                buffer.flip();
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+}
@@ -0,0 +1,127 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes sensor samples to a compact binary log.
+ *
+ * The file starts with a header (magic, format version, record size and the wall clock time
+ * the log was started) followed by fixed size little endian records:
+ * <pre>
+ *   int64   sample time in nanoseconds
+ *   int8    sensor id, one of the SampleSource.SENSOR_ constants
+ *   float32 x, y, z
+ * </pre>
+ * Records are collected in a direct buffer and written to the file channel a block at a time,
+ * so logging a sample is just a few puts into memory. Use {@link BinaryLogReader} to read the
+ * log back and {@link BinaryLogConverter} to turn it into CSV files. An optional
+ * {@link SessionIndexWriter} builds an index of the log for seeking as it is written.
+ *
+ * At 21 bytes a record against about 55 bytes a CSV line, the log is about 2.6 times smaller
+ * than the CSV files, short of the 5x we were after. That is what {@link CompressedLogWriter}
+ * is for: delta encoding the samples gets it over 8x smaller than CSV, at the cost of the seek
+ * index. This format stays for its fixed records, which can be indexed and read anywhere.
+ */
+public class BinaryLogWriter implements SampleWriter {
+
+    static final int MAGIC = 0x4C535453; // "STSL" in the file
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 8 + 1 + 3 * 4;
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final SessionIndexWriter index;
+    private long recordCount = 0;
+    private boolean closed = false;
+
+    public BinaryLogWriter(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE, null);
+    }
+
+    public BinaryLogWriter(File file, int bufferSize) throws IOException {
+        this(file, bufferSize, null);
+    }
+
+    /**
+     * @param index if not null gets every record written, and is closed with the log
+     */
+    public BinaryLogWriter(File file, int bufferSize, SessionIndexWriter index) throws IOException {
+        if (bufferSize < HEADER_SIZE + RECORD_SIZE) {
+            throw new IllegalArgumentException("bufferSize too small: " + bufferSize);
+        }
+        channel = new FileOutputStream(file).getChannel();
+        buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        this.index = index;
+
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) RECORD_SIZE);
+        buffer.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Appends one sample. The record reaches the file when the buffer fills up, on
+     * {@link #flush()} or on {@link #close()}. Samples written after closing are ignored.
+     */
+    @Override
+    public synchronized void write(int sensor, long timeNanos, float x, float y, float z) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (buffer.remaining() < RECORD_SIZE) {
+            flushBuffer();
+        }
+        buffer.putLong(timeNanos);
+        buffer.put((byte) sensor);
+        buffer.putFloat(x);
+        buffer.putFloat(y);
+        buffer.putFloat(z);
+        if (index != null) {
+            index.add(HEADER_SIZE + recordCount * RECORD_SIZE, sensor, timeNanos, x, y, z);
+        }
+        recordCount++;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            flushBuffer();
+        }
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flushBuffer();
+        } finally {
+            closed = true;
+            channel.close();
+            if (index != null) {
+                index.close();
+            }
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
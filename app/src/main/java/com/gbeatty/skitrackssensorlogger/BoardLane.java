@@ -0,0 +1,169 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything one MetaWear board's samples go through: the board's magnetometer calibration,
+ * its mount profile, its own ingestion buffers, synchronizer and fusion (a
+ * {@link SensorPipeline}), a {@link RunSegmenter} after fusion and its own IMU log, which
+ * gets the segmenter's events too.
+ * Lanes don't share any state, so several boards can be processed in parallel.
+ *
+ * Each add method is called by one sensor's message handler at a time.
+ */
+public class BoardLane {
+
+    private final String name;
+    private final MountProfile mount;
+    private final SensorPipeline pipeline;
+    private final MagCalibrator magCalibrator = new MagCalibrator();
+    private final RunSegmenter segmenter = new RunSegmenter(new RunSegmenter.Listener() {
+        @Override
+        public void onEvent(long timeNanos, int type, float value, float seconds) {
+            AsyncLogWriter writer = logWriter;
+            if (writer != null) {
+                writer.write(SampleSource.SENSOR_EVENT, timeNanos, type, value, seconds);
+            }
+        }
+    });
+
+    private volatile AsyncLogWriter logWriter;
+
+    // one vector per sensor, so the handlers of different sensors never share one
+    private final float[] accel = new float[3];
+    private final float[] gyro = new float[3];
+    private final float[] mag = new float[3];
+    private final float[] calibratedMag = new float[3];
+
+    private final float[] bias = new float[3];
+
+    private final AtomicLong samples = new AtomicLong(0);
+    // only touched by the reporting thread
+    private long reportedSamples = 0;
+
+    public BoardLane(String name, MountProfile mount, SensorFusion fusion) {
+        this.name = name;
+        this.mount = mount;
+        this.pipeline = new SensorPipeline(fusion);
+        pipeline.setSegmenter(segmenter);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MountProfile getMount() {
+        return mount;
+    }
+
+    public SensorPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public SensorFusion getFusion() {
+        return pipeline.getFusion();
+    }
+
+    public MagCalibrator getMagCalibrator() {
+        return magCalibrator;
+    }
+
+    public RunSegmenter getSegmenter() {
+        return segmenter;
+    }
+
+    public AsyncLogWriter getLogWriter() {
+        return logWriter;
+    }
+
+    /**
+     * @param writer receives every sample of the board from now on, null to stop logging
+     */
+    public void setLogWriter(AsyncLogWriter writer) {
+        logWriter = writer;
+    }
+
+    public long getSamples() {
+        return samples.get();
+    }
+
+    /**
+     * Takes an accelerometer sample in the board's frame.
+     */
+    public void addAccel(long timeNanos, float x, float y, float z) {
+        mount.correct(x, y, z, accel);
+        add(SampleSource.SENSOR_ACCEL, timeNanos, accel);
+        pipeline.addAccel(timeNanos, accel[0], accel[1], accel[2]);
+    }
+
+    /**
+     * Takes a gyro sample in the board's frame.
+     */
+    public void addGyro(long timeNanos, float x, float y, float z) {
+        mount.correct(x, y, z, gyro);
+        add(SampleSource.SENSOR_GYRO, timeNanos, gyro);
+        pipeline.addGyro(timeNanos, gyro[0], gyro[1], gyro[2]);
+    }
+
+    /**
+     * Takes a raw sample in the magnetometer's frame. It's added to the calibration fit, and
+     * the pipeline gets it corrected with the calibration so far. The log gets it uncalibrated,
+     * like the other sensors, since the calibration keeps changing: a recorded session can be
+     * fitted again or replayed with any calibration.
+     */
+    public void addMag(long timeNanos, float x, float y, float z) {
+        magCalibrator.add(x, y, z);
+        mount.correctMag(x, y, z, mag);
+        add(SampleSource.SENSOR_MAG, timeNanos, mag);
+        magCalibrator.correct(x, y, z, calibratedMag);
+        mount.correctMag(calibratedMag[0], calibratedMag[1], calibratedMag[2], calibratedMag);
+        pipeline.addMag(timeNanos, calibratedMag[0], calibratedMag[1], calibratedMag[2]);
+    }
+
+    private void add(int sensor, long timeNanos, float[] xyz) {
+        samples.incrementAndGet();
+        AsyncLogWriter writer = logWriter;
+        if (writer != null) {
+            // never blocks, records dropped when the writer falls behind show up in the report
+            writer.write(sensor, timeNanos, xyz[0], xyz[1], xyz[2]);
+        }
+    }
+
+    /**
+     * Summarizes the lane since the last call: samples in per second, the pipeline metrics,
+     * the backlog, the samples lost before processing and the log writer. Called from a single
+     * reporting thread.
+     * @param elapsedNanos time since the last report
+     */
+    public String report(long elapsedNanos) {
+        long total = samples.get();
+        long received = total - reportedSamples;
+        reportedSamples = total;
+        double rate = elapsedNanos > 0 ? received * 1000000000.0 / elapsedNanos : 0.0;
+
+        StringBuilder report = new StringBuilder(256);
+        report.append(name)
+                .append("  In: ").append(Math.round(rate)).append("/s  ")
+                .append(pipeline.getMetrics().report(elapsedNanos))
+                .append("  Backlog: ").append(pipeline.getBacklog())
+                .append("  Overwritten: ").append(pipeline.getOverwrittenSamples())
+                .append("  Gyro dropped: ").append(pipeline.getDroppedGyroSamples())
+                .append("  Mag fits: ").append(magCalibrator.getFits())
+                .append("  Lifts: ").append(segmenter.getLifts())
+                .append("  Runs: ").append(segmenter.getRuns())
+                .append("  Turns: ").append(segmenter.getTurns());
+
+        pipeline.getGyroBias().getBias(bias);
+        report.append(String.format(Locale.US, "  Gyro bias: %.2f %.2f %.2f", bias[0], bias[1], bias[2]));
+
+        AsyncLogWriter writer = logWriter;
+        if (writer != null) {
+            report.append("  Log written: ").append(writer.getWrittenRecords())
+                    .append("  Log backlog: ").append(writer.getBacklog())
+                    .append("  Dropped: ").append(writer.getDroppedRecords())
+                    .append("  Flushes: ").append(writer.getFlushCount());
+        }
+        return report.toString();
+    }
+}
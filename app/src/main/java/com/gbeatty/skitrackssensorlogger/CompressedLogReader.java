@@ -0,0 +1,196 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a log written by {@link CompressedLogWriter}. A partial block at the end of the file
+ * (e.g. when the app was killed while logging) is ignored.
+ */
+public class CompressedLogReader implements SampleSource {
+
+    private final DataInputStream in;
+    private final float[] quanta = new float[3];
+    private final boolean deflated;
+
+    private byte[] block = new byte[CompressedLogWriter.DEFAULT_BLOCK_SIZE];
+    private byte[] stored = new byte[0];
+    private int pos = 0;
+    private int remainingRecords = 0;
+    private Inflater inflater;
+
+    private final long[] lastTime = new long[3];
+    private final long[] lastInterval = new long[3];
+    private final int[] last = new int[9];
+
+    public CompressedLogReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != CompressedLogWriter.MAGIC) {
+                throw new IOException(file + " is not a compressed sensor log");
+            }
+            short version = in.readShort();
+            // version 2 added events, version 1 logs read the same otherwise
+            if (version < 1 || version > CompressedLogWriter.VERSION) {
+                throw new IOException("unsupported log version " + version + " in " + file);
+            }
+            deflated = (in.readShort() & CompressedLogWriter.FLAG_DEFLATE) != 0;
+            for (int i = 0; i < 3; i++) {
+                quanta[i] = in.readFloat();
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether the blocks of the log were deflated
+     */
+    public boolean isDeflated() {
+        return deflated;
+    }
+
+    @Override
+    public int next(long[] time, float[] xyz) throws IOException {
+        if (remainingRecords == 0 && !readBlock()) {
+            return -1;
+        }
+
+        int tag = block[pos++];
+        if (tag == CompressedLogWriter.TAG_EVENT) {
+            long zigzag = readVarLong();
+            time[0] = (zigzag >>> 1) ^ -(zigzag & 1);
+            xyz[0] = Float.intBitsToFloat(readInt());
+            xyz[1] = Float.intBitsToFloat(readInt());
+            xyz[2] = Float.intBitsToFloat(readInt());
+            remainingRecords--;
+            return SENSOR_EVENT;
+        }
+        int sensor = tag & CompressedLogWriter.TAG_SENSOR_MASK;
+        if (sensor < SENSOR_ACCEL || sensor > SENSOR_MAG) {
+            throw new IOException("corrupt log, unknown sensor " + sensor);
+        }
+        int s = sensor - SENSOR_ACCEL;
+
+        long interval = lastInterval[s];
+        if ((tag & CompressedLogWriter.TAG_SAME_INTERVAL) == 0) {
+            long zigzag = readVarLong();
+            interval += (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        lastInterval[s] = interval;
+        lastTime[s] += interval;
+        time[0] = lastTime[s];
+
+        float quantum = quanta[s];
+        int v = s * 3;
+        xyz[0] = readValue(v) * quantum;
+        xyz[1] = readValue(v + 1) * quantum;
+        xyz[2] = readValue(v + 2) * quantum;
+
+        remainingRecords--;
+        return sensor;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inflater != null) {
+            inflater.end();
+        }
+        in.close();
+    }
+
+    private int readValue(int axis) {
+        int zigzag = (int) readVarLong();
+        int value = last[axis] + ((zigzag >>> 1) ^ -(zigzag & 1));
+        last[axis] = value;
+        return value;
+    }
+
+    private void inflate(int storedLength, int length) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(stored, 0, storedLength);
+        try {
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int n = inflater.inflate(block, inflated, length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != length) {
+                throw new IOException("corrupt log block");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt log block: " + e.getMessage());
+        }
+    }
+
+    private int readInt() {
+        int value = (block[pos] & 0xFF) << 24 | (block[pos + 1] & 0xFF) << 16 | (block[pos + 2] & 0xFF) << 8 | (block[pos + 3] & 0xFF);
+        pos += 4;
+        return value;
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = block[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private boolean readBlock() throws IOException {
+        boolean compressed;
+        int length;
+        int records;
+        try {
+            compressed = in.readByte() != 0;
+            int storedLength = in.readInt();
+            length = in.readInt();
+            records = in.readInt();
+            if (storedLength < 0 || length < 0 || records <= 0 || (!compressed && storedLength != length)) {
+                throw new IOException("corrupt log block");
+            }
+            if (block.length < length) {
+                block = new byte[length];
+            }
+            if (compressed) {
+                if (stored.length < storedLength) {
+                    stored = new byte[storedLength];
+                }
+                in.readFully(stored, 0, storedLength);
+                inflate(storedLength, length);
+            } else {
+                in.readFully(block, 0, length);
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+
+        pos = 0;
+        remainingRecords = records;
+        for (int i = 0; i < 3; i++) {
+            lastTime[i] = 0;
+            lastInterval[i] = 0;
+        }
+        for (int i = 0; i < last.length; i++) {
+            last[i] = 0;
+        }
+        return true;
+    }
+}
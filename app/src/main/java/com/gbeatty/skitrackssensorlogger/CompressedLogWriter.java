@@ -0,0 +1,274 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Writes sensor samples to a compressed log, several times smaller than the fixed record
+ * BinaryLogWriter format.
+ *
+ * Consecutive samples of a sensor are highly correlated, so each axis is quantized to a fixed
+ * step per sensor (see {@link #DEFAULT_QUANTA}, fine enough to keep every bit the MetaWear
+ * sensors deliver) and only the difference to the previous sample of that sensor is stored,
+ * zig-zag varint encoded so small differences of either sign take a single byte. Timestamps are
+ * stored as the change of the sample interval per sensor, which is zero for evenly spaced
+ * samples and then takes no bytes at all.
+ *
+ * Records are collected into blocks. Each block starts the prediction from scratch, so it can
+ * be decoded on its own and a truncated file loses at most the last block, and can optionally
+ * be deflated on top of the delta encoding.
+ *
+ * File layout: a header (magic, version, flags, the quantum per sensor), then blocks of
+ * <pre>
+ *   int8    1 if the data is deflated
+ *   int32   stored data length
+ *   int32   decoded data length
+ *   int32   number of records
+ *   ...     data
+ * </pre>
+ * and per record a tag byte (sensor id in bits 0-1, bit 2 set when the sample interval didn't
+ * change), the zig-zag varint interval change in nanoseconds unless bit 2 is set, and the
+ * zig-zag varint change of the quantized x, y and z. Events (version 2 on) are rare and stored
+ * as they are: a zero tag, the zig-zag varint time in nanoseconds, and x, y and z as float32.
+ * All integers are big endian.
+ * {@link CompressedLogReader} reads the log back.
+ */
+public class CompressedLogWriter implements SampleWriter {
+
+    static final int MAGIC = 0x53545343; // "STSC"
+    static final short VERSION = 2;
+    static final int FLAG_DEFLATE = 1;
+
+    static final int TAG_SENSOR_MASK = 0x03;
+    static final int TAG_SAME_INTERVAL = 0x04;
+    static final int TAG_EVENT = 0x00;
+    static final int BLOCK_HEADER_SIZE = 13;
+    // tag, 10 byte time, 3 * 5 byte values
+    static final int MAX_RECORD_SIZE = 1 + 10 + 3 * 5;
+
+    /**
+     * Quantization step for accel (g), gyro (deg/s) and mag (uT): half the finest resolution of
+     * the BMI160 at +/-2g and +/-125 deg/s, and of the BMM150.
+     */
+    public static final float[] DEFAULT_QUANTA = {1.0f / 32768.0f, 1.0f / 524.8f, 1.0f / 32.0f};
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private final FileOutputStream out;
+    private final boolean deflate;
+    private final float[] inverseQuanta = new float[3];
+
+    private final byte[] block;
+    private int blockLength = 0;
+    private int blockRecords = 0;
+
+    private final Deflater deflater;
+    private final byte[] deflated;
+    private final byte[] header = new byte[BLOCK_HEADER_SIZE];
+
+    // prediction state per sensor, indexed by sensor id - 1
+    private final boolean[] started = new boolean[3];
+    private final long[] lastTime = new long[3];
+    private final long[] lastInterval = new long[3];
+    private final int[] last = new int[9];
+
+    private long recordCount = 0;
+    private long bytesWritten = 0;
+    private boolean closed = false;
+
+    public CompressedLogWriter(File file, boolean deflate) throws IOException {
+        this(file, deflate, DEFAULT_QUANTA, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param quanta quantization step of the accel, gyro and mag values
+     * @param blockSize size of the encoded blocks before deflating
+     */
+    public CompressedLogWriter(File file, boolean deflate, float[] quanta, int blockSize) throws IOException {
+        if (blockSize < MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("blockSize too small: " + blockSize);
+        }
+        for (int i = 0; i < 3; i++) {
+            if (!(quanta[i] > 0.0f)) {
+                throw new IllegalArgumentException("quantum must be positive: " + quanta[i]);
+            }
+            inverseQuanta[i] = 1.0f / quanta[i];
+        }
+        this.deflate = deflate;
+        block = new byte[blockSize];
+        if (deflate) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            // deflate never grows incompressible data by more than a few bytes per 16KB
+            deflated = new byte[blockSize + blockSize / 1000 + 64];
+        } else {
+            deflater = null;
+            deflated = null;
+        }
+
+        out = new FileOutputStream(file);
+        byte[] fileHeader = new byte[4 + 2 + 2 + 3 * 4];
+        int pos = putInt(fileHeader, 0, MAGIC);
+        fileHeader[pos++] = (byte) (VERSION >> 8);
+        fileHeader[pos++] = (byte) VERSION;
+        fileHeader[pos++] = 0;
+        fileHeader[pos++] = (byte) (deflate ? FLAG_DEFLATE : 0);
+        for (int i = 0; i < 3; i++) {
+            pos = putInt(fileHeader, pos, Float.floatToIntBits(quanta[i]));
+        }
+        out.write(fileHeader);
+        bytesWritten = fileHeader.length;
+    }
+
+    @Override
+    public synchronized void write(int sensor, long timeNanos, float x, float y, float z) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (sensor < SampleSource.SENSOR_ACCEL || sensor > SampleSource.SENSOR_EVENT) {
+            throw new IllegalArgumentException("unknown sensor " + sensor);
+        }
+        if (block.length - blockLength < MAX_RECORD_SIZE) {
+            writeBlock();
+        }
+        if (sensor == SampleSource.SENSOR_EVENT) {
+            int pos = blockLength;
+            block[pos++] = TAG_EVENT;
+            pos = putVarLong(block, pos, (timeNanos << 1) ^ (timeNanos >> 63));
+            pos = putInt(block, pos, Float.floatToIntBits(x));
+            pos = putInt(block, pos, Float.floatToIntBits(y));
+            blockLength = putInt(block, pos, Float.floatToIntBits(z));
+            blockRecords++;
+            recordCount++;
+            return;
+        }
+
+        int s = sensor - SampleSource.SENSOR_ACCEL;
+        long interval = started[s] ? timeNanos - lastTime[s] : timeNanos;
+        long intervalChange = interval - lastInterval[s];
+        started[s] = true;
+        lastTime[s] = timeNanos;
+        lastInterval[s] = interval;
+
+        int pos = blockLength;
+        if (intervalChange == 0) {
+            block[pos++] = (byte) (sensor | TAG_SAME_INTERVAL);
+        } else {
+            block[pos++] = (byte) sensor;
+            pos = putVarLong(block, pos, (intervalChange << 1) ^ (intervalChange >> 63));
+        }
+
+        float inverseQuantum = inverseQuanta[s];
+        int v = s * 3;
+        pos = putValue(pos, v, x, inverseQuantum);
+        pos = putValue(pos, v + 1, y, inverseQuantum);
+        pos = putValue(pos, v + 2, z, inverseQuantum);
+
+        blockLength = pos;
+        blockRecords++;
+        recordCount++;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            writeBlock();
+            out.flush();
+        }
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the size of the file so far, not counting the block being collected
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            writeBlock();
+        } finally {
+            closed = true;
+            if (deflater != null) {
+                deflater.end();
+            }
+            out.close();
+        }
+    }
+
+    private int putValue(int pos, int axis, float value, float inverseQuantum) {
+        int quantized = Math.round(value * inverseQuantum);
+        int delta = quantized - last[axis];
+        last[axis] = quantized;
+        return putVarLong(block, pos, ((delta << 1) ^ (delta >> 31)) & 0xFFFFFFFFL);
+    }
+
+    private void writeBlock() throws IOException {
+        if (blockRecords == 0) {
+            return;
+        }
+
+        byte[] data = block;
+        int length = blockLength;
+        boolean compressed = false;
+        if (deflate) {
+            deflater.reset();
+            deflater.setInput(block, 0, blockLength);
+            deflater.finish();
+            int deflatedLength = 0;
+            while (!deflater.finished() && deflatedLength < deflated.length) {
+                deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+            }
+            if (deflater.finished() && deflatedLength < blockLength) {
+                data = deflated;
+                length = deflatedLength;
+                compressed = true;
+            }
+        }
+
+        header[0] = (byte) (compressed ? 1 : 0);
+        int pos = putInt(header, 1, length);
+        pos = putInt(header, pos, blockLength);
+        putInt(header, pos, blockRecords);
+        out.write(header);
+        out.write(data, 0, length);
+        bytesWritten += header.length + length;
+
+        blockLength = 0;
+        blockRecords = 0;
+        for (int i = 0; i < 3; i++) {
+            started[i] = false;
+            lastTime[i] = 0;
+            lastInterval[i] = 0;
+        }
+        for (int i = 0; i < last.length; i++) {
+            last[i] = 0;
+        }
+    }
+
+    private static int putInt(byte[] buffer, int pos, int value) {
+        buffer[pos] = (byte) (value >>> 24);
+        buffer[pos + 1] = (byte) (value >>> 16);
+        buffer[pos + 2] = (byte) (value >>> 8);
+        buffer[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private static int putVarLong(byte[] buffer, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+}
@@ -0,0 +1,178 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Calendar;
+
+/**
+ * Reads a session recorded as separate Accel_, Gyro_ and Mag_ CSV files, as written by
+ * LoggingService, and merges them into one time ordered stream.
+ *
+ * Each line is "MM_dd_yyyy_hh_mm_ss.SSS,x,y,z". Lines that don't have three values (like the
+ * closing timestamp written when logging stops) are skipped. The hour is on a 12 hour clock
+ * without an AM/PM marker, so a jump backwards of more than six hours is taken as having crossed
+ * noon or midnight and 12 hours are added from there on.
+ *
+ * If there is no magnetometer file a zero magnetometer sample is produced with every gyro
+ * sample, which makes the Madgwick filters fall back to IMU only updates.
+ */
+public class CsvSessionSource implements SampleSource {
+
+    private static final long HALF_DAY_MILLIS = 12L * 60 * 60 * 1000;
+
+    private final Stream accel;
+    private final Stream gyro;
+    private final Stream mag;
+    private boolean pendingZeroMag = false;
+    private long zeroMagTime;
+
+    /**
+     * @param magFile may be null for sessions recorded without the magnetometer
+     */
+    public CsvSessionSource(File accelFile, File gyroFile, File magFile) throws IOException {
+        accel = new Stream(accelFile, SENSOR_ACCEL);
+        gyro = new Stream(gyroFile, SENSOR_GYRO);
+        mag = magFile != null ? new Stream(magFile, SENSOR_MAG) : null;
+    }
+
+    @Override
+    public int next(long[] time, float[] xyz) throws IOException {
+        if (pendingZeroMag) {
+            pendingZeroMag = false;
+            time[0] = zeroMagTime;
+            xyz[0] = 0.0f;
+            xyz[1] = 0.0f;
+            xyz[2] = 0.0f;
+            return SENSOR_MAG;
+        }
+
+        Stream earliest = null;
+        if (accel.hasNext) {
+            earliest = accel;
+        }
+        if (gyro.hasNext && (earliest == null || gyro.nextTime < earliest.nextTime)) {
+            earliest = gyro;
+        }
+        if (mag != null && mag.hasNext && (earliest == null || mag.nextTime < earliest.nextTime)) {
+            earliest = mag;
+        }
+        if (earliest == null) {
+            return -1;
+        }
+
+        time[0] = earliest.nextTime;
+        xyz[0] = earliest.next[0];
+        xyz[1] = earliest.next[1];
+        xyz[2] = earliest.next[2];
+        earliest.advance();
+
+        if (mag == null && earliest == gyro) {
+            pendingZeroMag = true;
+            zeroMagTime = time[0];
+        }
+        return earliest.sensor;
+    }
+
+    @Override
+    public void close() throws IOException {
+        accel.reader.close();
+        gyro.reader.close();
+        if (mag != null) {
+            mag.reader.close();
+        }
+    }
+
+    private static class Stream {
+        final BufferedReader reader;
+        final int sensor;
+        final float[] next = new float[3];
+        long nextTime;
+        boolean hasNext;
+
+        private final Calendar calendar = Calendar.getInstance();
+        private int lastDateKey = -1;
+        private long midnightMillis;
+        private long lastMillis = Long.MIN_VALUE;
+        private long wrapMillis = 0;
+
+        Stream(File file, int sensor) throws IOException {
+            this.reader = new BufferedReader(new FileReader(file), 1 << 16);
+            this.sensor = sensor;
+            advance();
+        }
+
+        void advance() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (parse(line)) {
+                    hasNext = true;
+                    return;
+                }
+            }
+            hasNext = false;
+        }
+
+        private boolean parse(String line) {
+            // MM_dd_yyyy_hh_mm_ss.SSS is 23 characters, followed by ",x,y,z"
+            if (line.length() < 29 || line.charAt(23) != ',') {
+                return false;
+            }
+            int comma1 = line.indexOf(',', 24);
+            int comma2 = comma1 < 0 ? -1 : line.indexOf(',', comma1 + 1);
+            if (comma2 < 0) {
+                return false;
+            }
+            try {
+                long millis = parseTime(line);
+                next[0] = Float.parseFloat(line.substring(24, comma1));
+                next[1] = Float.parseFloat(line.substring(comma1 + 1, comma2));
+                next[2] = Float.parseFloat(line.substring(comma2 + 1).trim());
+                nextTime = millis * 1000000L;
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        private long parseTime(String line) {
+            int month = digits(line, 0, 2);
+            int day = digits(line, 3, 2);
+            int year = digits(line, 6, 4);
+            int hour = digits(line, 11, 2) % 12;
+            int minute = digits(line, 14, 2);
+            int second = digits(line, 17, 2);
+            int milli = digits(line, 20, 3);
+
+            int dateKey = (year * 100 + month) * 100 + day;
+            if (dateKey != lastDateKey) {
+                calendar.clear();
+                calendar.set(year, month - 1, day, 0, 0, 0);
+                midnightMillis = calendar.getTimeInMillis();
+                lastDateKey = dateKey;
+                wrapMillis = 0;
+            }
+
+            long millis = midnightMillis + wrapMillis + ((hour * 60L + minute) * 60L + second) * 1000L + milli;
+            if (lastMillis != Long.MIN_VALUE && millis < lastMillis - HALF_DAY_MILLIS / 2) {
+                wrapMillis += HALF_DAY_MILLIS;
+                millis += HALF_DAY_MILLIS;
+            }
+            lastMillis = millis;
+            return millis;
+        }
+
+        private static int digits(String s, int start, int count) {
+            int value = 0;
+            for (int i = start; i < start + count; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    throw new NumberFormatException(s);
+                }
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.gbeatty.skitrackssensorlogger;
+
+/**
+ * A block of time aligned gyro, accelerometer and magnetometer frames, stored as one
+ * primitive array per axis (structure of arrays) so a whole block can be handed to a
+ * filter and processed in a single loop.
+ *
+ * Values are in the units delivered by the board, already corrected for the mounting orientation.
+ */
+public class FrameBlock {
+    public final int capacity;
+    public int count;
+
+    public final long[] timeNanos;
+    public final float[] gx, gy, gz;
+    public final float[] ax, ay, az;
+    public final float[] mx, my, mz;
+
+    public FrameBlock(int capacity) {
+        this.capacity = capacity;
+        timeNanos = new long[capacity];
+        gx = new float[capacity];
+        gy = new float[capacity];
+        gz = new float[capacity];
+        ax = new float[capacity];
+        ay = new float[capacity];
+        az = new float[capacity];
+        mx = new float[capacity];
+        my = new float[capacity];
+        mz = new float[capacity];
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    public boolean isFull() {
+        return count == capacity;
+    }
+
+    /**
+     * Appends one frame. The caller is responsible for checking {@link #isFull()}.
+     */
+    public void add(long time, float[] gyro, float[] accel, float[] mag) {
+        int i = count++;
+        timeNanos[i] = time;
+        gx[i] = gyro[0];
+        gy[i] = gyro[1];
+        gz[i] = gyro[2];
+        ax[i] = accel[0];
+        ay[i] = accel[1];
+        az[i] = accel[2];
+        mx[i] = mag[0];
+        my[i] = mag[1];
+        mz[i] = mag[2];
+    }
+}
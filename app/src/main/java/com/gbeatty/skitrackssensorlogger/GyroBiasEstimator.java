@@ -0,0 +1,180 @@
+package com.gbeatty.skitrackssensorlogger;
+
+/**
+ * Estimates the gyro bias while the board is standing still, e.g. in a lift line, and
+ * subtracts it from the gyro data of every frame.
+ *
+ * The board counts as still while, over a sliding window of frames, the accel magnitude stays
+ * close to 1g, neither the accel magnitude nor any gyro axis varies more than the sensor noise,
+ * and the mean accel direction hasn't moved since the window before. A steady slow turn keeps
+ * the gyro quiet, but unless it's about the vertical it turns gravity in the board's frame.
+ * Nothing calibrates the gyro before this, so the bias can be anything up to the BMI160's
+ * zero rate offset; mean rates above {@link #MAX_BIAS} are never taken for bias, which bounds
+ * what a slow turn about the vertical can get wrong. The window
+ * statistics are {@link SlidingWindowStats}, so each frame costs the same small amount of work
+ * whatever the window size. While still, the bias follows the window's mean gyro rate through
+ * a low pass filter.
+ *
+ * Thresholds are in the units delivered by the MetaWear board: g and deg/s.
+ * Not thread safe, the pipeline's drain calls it.
+ */
+public class GyroBiasEstimator {
+
+    // one second at 100Hz
+    public static final int DEFAULT_WINDOW_FRAMES = 100;
+
+    private static final float GRAVITY = 1.0f;
+    private static final float MAX_GRAVITY_ERROR = 0.05f;
+    private static final float MAX_ACCEL_DEVIATION = 0.02f;
+    // per axis between the means of two windows, about 0.2 degrees of gravity's direction
+    private static final float MAX_DIRECTION_SHIFT = 0.003f;
+    // the BMI160 rate noise is about 0.1 deg/s at 100Hz
+    private static final float MAX_GYRO_DEVIATION = 0.5f;
+    // deg/s, an uncalibrated BMI160's zero rate offset is typically within +-3, more means
+    // we're turning slowly
+    private static final float MAX_BIAS = 5.0f;
+    // fraction of the way the bias moves to the window mean per still frame
+    private static final float BIAS_GAIN = 0.01f;
+
+    private final SlidingWindowStats gx, gy, gz, accel;
+    private final SlidingWindowStats ax, ay, az;
+
+    // the mean accel of the windows ending on each of the last windowSize frames, so every
+    // window is checked against the one right before it
+    private final float[] pastX, pastY, pastZ;
+    private int past = 0;
+    private int pastCount = 0;
+
+    private volatile float biasX, biasY, biasZ;
+    private boolean stationary = false;
+    private long stationaryFrames = 0;
+
+    public GyroBiasEstimator() {
+        this(DEFAULT_WINDOW_FRAMES);
+    }
+
+    public GyroBiasEstimator(int windowSize) {
+        if (windowSize < 2) {
+            throw new IllegalArgumentException("window must hold at least 2 frames");
+        }
+        gx = new SlidingWindowStats(windowSize);
+        gy = new SlidingWindowStats(windowSize);
+        gz = new SlidingWindowStats(windowSize);
+        accel = new SlidingWindowStats(windowSize);
+        ax = new SlidingWindowStats(windowSize);
+        ay = new SlidingWindowStats(windowSize);
+        az = new SlidingWindowStats(windowSize);
+        pastX = new float[windowSize];
+        pastY = new float[windowSize];
+        pastZ = new float[windowSize];
+    }
+
+    /**
+     * Forgets the window, but keeps the bias estimated so far.
+     */
+    public void reset() {
+        gx.clear();
+        gy.clear();
+        gz.clear();
+        accel.clear();
+        ax.clear();
+        ay.clear();
+        az.clear();
+        past = 0;
+        pastCount = 0;
+        stationary = false;
+    }
+
+    /**
+     * @param out receives the gyro bias x, y, z
+     */
+    public void getBias(float[] out) {
+        out[0] = biasX;
+        out[1] = biasY;
+        out[2] = biasZ;
+    }
+
+    public void setBias(float x, float y, float z) {
+        biasX = x;
+        biasY = y;
+        biasZ = z;
+    }
+
+    /**
+     * Whether the board was still as of the last frame.
+     */
+    public boolean isStationary() {
+        return stationary;
+    }
+
+    /**
+     * Number of frames the bias was updated on.
+     */
+    public long getStationaryFrames() {
+        return stationaryFrames;
+    }
+
+    /**
+     * Updates the estimate with every frame of the block and subtracts the bias from the
+     * frames' gyro data.
+     */
+    public void correct(FrameBlock frames) {
+        for (int i = 0; i < frames.count; i++) {
+            float x = frames.ax[i];
+            float y = frames.ay[i];
+            float z = frames.az[i];
+            gx.add(frames.gx[i]);
+            gy.add(frames.gy[i]);
+            gz.add(frames.gz[i]);
+            accel.add(Math.sqrt(x * x + y * y + z * z));
+            ax.add(x);
+            ay.add(y);
+            az.add(z);
+            stationary = accel.isFull() && !hasTurned() && isStill();
+            if (stationary) {
+                float meanX = (float) gx.getMean();
+                float meanY = (float) gy.getMean();
+                float meanZ = (float) gz.getMean();
+                if (Math.abs(meanX) < MAX_BIAS && Math.abs(meanY) < MAX_BIAS && Math.abs(meanZ) < MAX_BIAS) {
+                    biasX += BIAS_GAIN * (meanX - biasX);
+                    biasY += BIAS_GAIN * (meanY - biasY);
+                    biasZ += BIAS_GAIN * (meanZ - biasZ);
+                    stationaryFrames++;
+                }
+            }
+
+            frames.gx[i] -= biasX;
+            frames.gy[i] -= biasY;
+            frames.gz[i] -= biasZ;
+        }
+    }
+
+    // whether the mean accel moved since the window before, which ended a window ago, or there
+    // is no window before yet
+    private boolean hasTurned() {
+        float meanX = (float) ax.getMean();
+        float meanY = (float) ay.getMean();
+        float meanZ = (float) az.getMean();
+        boolean turned = pastCount < pastX.length
+                || Math.abs(meanX - pastX[past]) > MAX_DIRECTION_SHIFT
+                || Math.abs(meanY - pastY[past]) > MAX_DIRECTION_SHIFT
+                || Math.abs(meanZ - pastZ[past]) > MAX_DIRECTION_SHIFT;
+        pastX[past] = meanX;
+        pastY[past] = meanY;
+        pastZ[past] = meanZ;
+        past = past + 1 == pastX.length ? 0 : past + 1;
+        if (pastCount < pastX.length) {
+            pastCount++;
+        }
+        return turned;
+    }
+
+    private boolean isStill() {
+        return accel.getMin() > GRAVITY - MAX_GRAVITY_ERROR
+                && accel.getMax() < GRAVITY + MAX_GRAVITY_ERROR
+                && accel.getStdDev() < MAX_ACCEL_DEVIATION
+                && gx.getStdDev() < MAX_GYRO_DEVIATION
+                && gy.getStdDev() < MAX_GYRO_DEVIATION
+                && gz.getStdDev() < MAX_GYRO_DEVIATION;
+    }
+}
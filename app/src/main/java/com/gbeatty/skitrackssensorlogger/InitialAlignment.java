@@ -0,0 +1,190 @@
+package com.gbeatty.skitrackssensorlogger;
+
+/**
+ * Coarse alignment of a filter: the board's orientation from its accelerometer and magnetometer
+ * averaged over a short still window (TRIAD, gravity and the magnetic field, see
+ * {@link SensorMath#getRotationMatrix}), so a filter can start at the right orientation
+ * instead of converging to it from a single sample or from the identity.
+ *
+ * Frames are added until {@link #DEFAULT_WINDOW} consecutive frames were still: the accel
+ * magnitude stays within {@link #MAX_ACCEL_SPREAD} and the gyro below {@link #MAX_GYRO_RATE}.
+ * That's 200 ms at 100 Hz. A board that keeps moving is aligned on what it has once
+ * {@link #DEFAULT_TIMEOUT_NANOS} of sample time passed. Without a magnetometer reading the
+ * alignment is tilt only, with an arbitrary heading.
+ *
+ * Owned by the thread feeding the frames.
+ */
+public class InitialAlignment {
+
+    public static final int DEFAULT_WINDOW = 20;
+    public static final long DEFAULT_TIMEOUT_NANOS = 1000000000L;
+    // g, spread of the accel magnitude within the window
+    public static final float MAX_ACCEL_SPREAD = 0.05f;
+    // deg/s, the MetaWear gyro's unit
+    public static final float MAX_GYRO_RATE = 10.0f;
+
+    private final int window;
+    private final long timeoutNanos;
+
+    private long startNanos;
+    private int count;
+    private double ax, ay, az;
+    private double mx, my, mz;
+    private float minAccel, maxAccel;
+    // the window started at a frame that was turning, so it isn't still yet
+    private boolean windowMoving;
+
+    private boolean aligned;
+    private boolean heading;
+    private long alignedNanos;
+    private final float[] rotation = new float[9];
+
+    private final float[] accel = new float[3];
+    private final float[] mag = new float[3];
+    private final float[] nwu = new float[9];
+    private final float[] wxyz = new float[4];
+
+    public InitialAlignment() {
+        this(DEFAULT_WINDOW, DEFAULT_TIMEOUT_NANOS);
+    }
+
+    /**
+     * @param window number of still frames to average
+     * @param timeoutNanos sample time after the first frame to align on a moving board
+     */
+    public InitialAlignment(int window, long timeoutNanos) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        this.window = window;
+        this.timeoutNanos = timeoutNanos;
+        reset();
+    }
+
+    public void reset() {
+        aligned = false;
+        heading = false;
+        alignedNanos = 0;
+        startNanos = Long.MIN_VALUE;
+        windowMoving = false;
+        restart();
+    }
+
+    /**
+     * Adds a frame of a block.
+     * @return true once aligned, the frame completing the alignment included
+     */
+    public boolean add(FrameBlock frames, int i) {
+        if (aligned) {
+            return true;
+        }
+        long time = frames.timeNanos[i];
+        if (startNanos == Long.MIN_VALUE) {
+            startNanos = time;
+        }
+
+        float x = frames.ax[i];
+        float y = frames.ay[i];
+        float z = frames.az[i];
+        float norm = (float) Math.sqrt(x * x + y * y + z * z);
+        float gx = frames.gx[i];
+        float gy = frames.gy[i];
+        float gz = frames.gz[i];
+        boolean turning = gx * gx + gy * gy + gz * gz > MAX_GYRO_RATE * MAX_GYRO_RATE;
+        boolean shaking = count > 0 && Math.max(maxAccel, norm) - Math.min(minAccel, norm) > MAX_ACCEL_SPREAD;
+        if (turning || shaking || windowMoving) {
+            // moving, start the window over at this frame
+            restart();
+        }
+        windowMoving = turning;
+
+        ax += x;
+        ay += y;
+        az += z;
+        mx += frames.mx[i];
+        my += frames.my[i];
+        mz += frames.mz[i];
+        minAccel = count == 0 ? norm : Math.min(minAccel, norm);
+        maxAccel = count == 0 ? norm : Math.max(maxAccel, norm);
+        count++;
+
+        if ((count >= window && !windowMoving) || time - startNanos >= timeoutNanos) {
+            align(time);
+        }
+        return aligned;
+    }
+
+    public boolean isAligned() {
+        return aligned;
+    }
+
+    /**
+     * False if the alignment is tilt only, for lack of a magnetometer reading.
+     */
+    public boolean hasHeading() {
+        return heading;
+    }
+
+    /**
+     * Sample time of the frame that completed the alignment.
+     */
+    public long getAlignedTime() {
+        return alignedNanos;
+    }
+
+    /**
+     * The rotation matrix from the board to East, North, Up, like
+     * {@link SensorMath#getRotationMatrix} and {@link SensorFusion#getRotationMatrix}.
+     */
+    public void getRotationMatrix(float[] R) {
+        System.arraycopy(rotation, 0, R, 0, 9);
+    }
+
+    /**
+     * The orientation as a Madgwick filter quaternion (w, x, y, z): the board relative to
+     * North, West, Up.
+     */
+    public void getQuaternionNWU(double[] q) {
+        // rows of ENU to NWU: north is y, west is -x
+        for (int i = 0; i < 3; i++) {
+            nwu[i] = rotation[3 + i];
+            nwu[3 + i] = -rotation[i];
+            nwu[6 + i] = rotation[6 + i];
+        }
+        SensorMath.getQuaternionFromMatrix(wxyz, nwu);
+        for (int i = 0; i < 4; i++) {
+            q[i] = wxyz[i];
+        }
+    }
+
+    private void restart() {
+        count = 0;
+        ax = ay = az = 0;
+        mx = my = mz = 0;
+        minAccel = 0;
+        maxAccel = 0;
+    }
+
+    private void align(long time) {
+        // the board is still, so the mean accel is gravity, scaled to 1 g
+        double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+        if (norm == 0) {
+            return;
+        }
+        accel[0] = (float) (ax / norm);
+        accel[1] = (float) (ay / norm);
+        accel[2] = (float) (az / norm);
+        mag[0] = (float) (mx / count);
+        mag[1] = (float) (my / count);
+        mag[2] = (float) (mz / count);
+
+        heading = SensorMath.getRotationMatrix(rotation, null, accel, mag, SensorMath.FREE_FALL_G);
+        if (!heading && !SensorMath.getTiltMatrix(rotation, accel, SensorMath.FREE_FALL_G)) {
+            // gravity straight along x, tilt it a hair so there is a heading to pick
+            accel[1] = 1e-3f;
+            SensorMath.getTiltMatrix(rotation, accel, SensorMath.FREE_FALL_G);
+        }
+        aligned = true;
+        alignedNanos = time;
+    }
+}
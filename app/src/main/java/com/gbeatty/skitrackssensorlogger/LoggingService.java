@@ -8,6 +8,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
@@ -37,172 +38,117 @@ import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Timer;
 import java.util.TimerTask;
 
 public class LoggingService extends Service implements ServiceConnection, LocationListener{
 
-    SensorFusion sf = new SensorFusion();
-    private LinkedBlockingQueue<double[]> accelSamples = new LinkedBlockingQueue<double[]>();
-    private LinkedBlockingQueue<double[]> gyroSamples = new LinkedBlockingQueue<double[]>();
-    private double[] currentMagSample = null;
+    private final SessionManager session = new SessionManager();
+
+    // The boards of a session, each with its own processing lane and IMU log
+    // (Imu_<name>_<time>.bin). The first one drives the orientation shown in the UI.
+    private final Board[] boards = {
+            new Board("helmet", "FA:02:BA:BD:6E:EA", MountProfile.HELMET)
+    };
+
+    // the timer thread of the metrics report, cancelled when processing stops
+    private Timer reportingTimer;
 
     private void StartDataProcessing()
     {
-        startRateMonitor(1000);
-        startDataUpdate(10);
-        startDataReporting(40);
+        session.start();
+        reportingTimer = new Timer();
+        startMetricsReporting(1000);
     }
 
     private void StopDataProcessing()
     {
-        rateMonitorTask.cancel();
-        dataUpdateTask.cancel();
-        dataReportingTask.cancel();
-        accelSamples.clear();
-        gyroSamples.clear();
+        reportingTimer.cancel();
+        if (!session.stop()) {
+            Log.w("SkiTracksLogger", "Sensor processing didn't finish within a second of stopping");
+        }
     }
 
-    private double lastTimerTime = 0;
-    private AtomicInteger numFailedSamples = new AtomicInteger(0);
-    private AtomicInteger numProcessedSamples = new AtomicInteger(0);
-    private AtomicInteger backlogSize = new AtomicInteger(0);
-    private TimerTask rateMonitorTask;
-    private void startRateMonitor(int period) {
-
-        rateMonitorTask = new TimerTask() {
-            public void run() {
-                double currentTime = System.currentTimeMillis();
-
-                if(lastTimerTime != 0) {
-
-                    double deltaTime = currentTime - lastTimerTime;
-                    int numSamples = numProcessedSamples.getAndSet(0);
-                    Log.i("SkiTracksLogger", "Rate:  " + numSamples / deltaTime * 1000);
-
-                    int backSize = backlogSize.get();
-                    int failedSize = numFailedSamples.getAndSet(0);
-                    boolean backlogged = backSize > 10;
-                    boolean ranDry = failedSize > 1;
+    private TimerTask metricsReportingTask;
+    private void startMetricsReporting(int period) {
 
-                    Log.i("SkiTracksLogger", "Backlog size: " + backSize + "    Failed: " + failedSize);
+        metricsReportingTask = new TimerTask() {
+            long lastReportTime = 0;
 
-                    if (backlogged && ranDry) {
-                        // Our streaming rate must be fluctuating a lot, so leave the update rate alone
-                        Log.i("SkiTracksLogger", "Rate Fluctuating");
-                    } else {
-                        int newPeriod;
-                        if (backlogged) {
-                            // pick up the pace, 20% faster
-                            newPeriod = updateTaskPeriod - (int) ((double) updateTaskPeriod * 0.2);
-                            Log.i("SkiTracksLogger", "Speeding Up: " + newPeriod);
-
-
-                        } else {
-                            // slow down, 20% slower
-                            newPeriod = updateTaskPeriod + (int) ((double) updateTaskPeriod * 0.2);
-                            Log.i("SkiTracksLogger", "Slowing Down: " + newPeriod);
-
-                        }
-
-                        dataUpdateTask.cancel();
-                        startDataUpdate(newPeriod);
-                    }
-                }
-
-                lastTimerTime = currentTime;
-            }
-        };
-
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(rateMonitorTask, 0, period);
-    }
-
-    private TimerTask dataUpdateTask;
-    private int updateTaskPeriod;
-    private void startDataUpdate(int period) {
-
-        dataUpdateTask = new TimerTask() {
             public void run() {
-                if (accelSamples.isEmpty() || gyroSamples.isEmpty() || currentMagSample == null) {
-                    numFailedSamples.incrementAndGet();
-                }
-                else {
-                    try {
-                        double[] accel = accelSamples.take();
-                        double[] gyro = gyroSamples.take();
-
-                        numProcessedSamples.incrementAndGet();
-                        backlogSize.set(accelSamples.size());
-
-                        float[] magFloat = {(float) currentMagSample[0], (float) currentMagSample[1], (float) currentMagSample[2]};
-                        sf.SetMag(magFloat);
+                long currentTime = System.nanoTime();
 
-                        float[] accelFloat = {(float) accel[0], (float) accel[1], (float) accel[2]};
-                        sf.SetAccel(accelFloat);
+                if (lastReportTime != 0) {
+                    for (BoardLane lane : session.getLanes()) {
+                        Log.i("SkiTracksLogger", lane.report(currentTime - lastReportTime));
 
-                        float[] gyroFloat = {(float) gyro[0], (float) gyro[1], (float) gyro[2]};
-                        sf.SetGyro(gyroFloat, (float) System.currentTimeMillis() / 1000.0f);
-                    }
-                    catch (InterruptedException e) {
+                        AsyncLogWriter writer = lane.getLogWriter();
+                        if (writer != null && writer.getFailure() != null) {
+                            Log.e("SkiTracksLogger", lane.getName() + " IMU log write failed: " + writer.getFailure().toString());
+                        }
                     }
                 }
-            }
-        };
 
-        Timer timer = new Timer();
-        timer.schedule(dataUpdateTask, 0, period);
-        updateTaskPeriod = period;
-    }
-
-    private TimerTask dataReportingTask;
-    private void startDataReporting(int period) {
-
-        dataReportingTask = new TimerTask() {
-            public void run() {
-                registeredConnectionListener.UpdateRotationVector(sf.gyroMatrix);
+                lastReportTime = currentTime;
             }
         };
 
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(dataReportingTask, 0, period);
+        reportingTimer.scheduleAtFixedRate(metricsReportingTask, 0, period);
     }
 
     final SimpleDateFormat format = new SimpleDateFormat("MM_dd_yyyy_hh_mm_ss.SSS");
 
     private MetaWearBleService.LocalBinder serviceBinder;
-    private final String MW_MAC_ADDRESS = "FA:02:BA:BD:6E:EA";
 
     private MwBoardConnectionListener registeredConnectionListener;
-    private boolean connectedToMwBoard = false;
-    private MetaWearBoard mwBoard;
+    private int connectedBoards = 0;
 
-    private Bmi160Accelerometer bmi160AccModule;
-    private OutputStreamWriter accelWriter;
+    // Raw accel, gyro and mag samples of each board, plus the GPS lines, get written on the
+    // boards' log writer threads so a slow storage write never holds up the sensor or location
+    // callbacks. Write the IMU logs delta encoded and deflated (Imu_*.imz) instead of as fixed
+    // size records with a seek index (Imu_*.bin and Imu_*.idx)
+    private static final boolean COMPRESS_IMU_LOG = false;
 
-    private Bmi160Gyro bmi160GyroModule;
-    private OutputStreamWriter gyroWriter;
+    // each board's magnetometer calibration, keyed by MAC address
+    private static final String MAG_CALIBRATION_PREFERENCES = "MagCalibration";
 
-    private Bmm150Magnetometer bmm150MagModule;
-    private OutputStreamWriter magWriter;
-
-    private OutputStreamWriter gpsWriter;
+    private volatile OutputStreamWriter gpsWriter;
 
     private final IBinder mBinder = new LoggingServiceBinder();
 
     @Override
     public void onLocationChanged(Location location) {
+        if (location.hasAltitude()) {
+            // location times are wall clock milliseconds, like the sample times
+            long timeNanos = location.getTime() * 1000000L;
+            for (Board board : boards) {
+                board.lane.getSegmenter().addLocation(timeNanos, location.getAltitude());
+            }
+        }
 
-        if(gpsWriter != null) {
-            try {
-                GregorianCalendar cal = new GregorianCalendar();
-                cal.setTimeInMillis(location.getTime());
+        final OutputStreamWriter writer = gpsWriter;
+        if(writer != null) {
+            GregorianCalendar cal = new GregorianCalendar();
+            cal.setTimeInMillis(location.getTime());
 
-                gpsWriter.write(format.format(cal.getTime()) + ',' + location.getLatitude() + ',' + location.getLongitude() + ',' + location.getAltitude() + ',' + location.getSpeed() + ',' + location.getAccuracy() + '\n');
-            } catch (Exception e) {
-                Log.e("Exception", "Gps write failed: " + e.toString());
+            final String line = format.format(cal.getTime()) + ',' + location.getLatitude() + ',' + location.getLongitude() + ',' + location.getAltitude() + ',' + location.getSpeed() + ',' + location.getAccuracy() + '\n';
+            Runnable write = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writer.write(line);
+                    } catch (Exception e) {
+                        Log.e("Exception", "Gps write failed: " + e.toString());
+                    }
+                }
+            };
+
+            // the GPS lines go through the first board's IMU log writer
+            AsyncLogWriter asyncWriter = boards[0].lane.getLogWriter();
+            if(asyncWriter == null) {
+                write.run();
+            } else if(!asyncWriter.post(write)) {
+                Log.e("SkiTracksLogger", "Gps write dropped, log writer is behind");
             }
         }
     }
@@ -228,25 +174,22 @@ public class LoggingService extends Service implements ServiceConnection, Locati
         }
     }
 
-    private final MetaWearBoard.ConnectionStateHandler connectionStateHandler = new MetaWearBoard.ConnectionStateHandler() {
-        @Override
-        public void connected() {
-            Log.i("SkiTracksLogger", "MetaWear Board Connected");
-            connectedToMwBoard = true;
-            if (registeredConnectionListener != null) {
-                registeredConnectionListener.Connected();
-            }
+    // The listener hears Connected once every board is connected, and Disconnected when
+    // the first one drops out
+    private synchronized void BoardConnected(Board board) {
+        Log.i("SkiTracksLogger", "MetaWear Board Connected: " + board.name);
+        connectedBoards++;
+        if (connectedBoards == boards.length && registeredConnectionListener != null) {
+            registeredConnectionListener.Connected();
         }
+    }
 
-        @Override
-        public void disconnected() {
-            Log.i("SkiTracksLogger", "MetaWear Board Disconnected");
-            connectedToMwBoard = false;
-            if (registeredConnectionListener != null) {
-                registeredConnectionListener.Disconnected();
-            }
+    private synchronized void BoardDisconnected(Board board) {
+        Log.i("SkiTracksLogger", "MetaWear Board Disconnected: " + board.name);
+        if (connectedBoards-- == boards.length && registeredConnectionListener != null) {
+            registeredConnectionListener.Disconnected();
         }
-    };
+    }
 
     public LoggingService() {
     }
@@ -304,6 +247,10 @@ public class LoggingService extends Service implements ServiceConnection, Locati
 
     public void RegisterConnectionListener(MwBoardConnectionListener connectionListener) {
         registeredConnectionListener = connectionListener;
+        if (connectionListener != null) {
+            // the listener reads the first board's orientation whenever it draws
+            connectionListener.UpdateOrientation(boards[0].lane.getFusion().getOrientation());
+        }
     }
 
     private void ConnectToMetaWearService() {
@@ -322,39 +269,41 @@ public class LoggingService extends Service implements ServiceConnection, Locati
     public void ConnectToMetaWearBoard() {
         final BluetoothManager btManager =
                 (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-        final BluetoothDevice remoteDevice =
-                btManager.getAdapter().getRemoteDevice(MW_MAC_ADDRESS);
-
-        // Create a MetaWear board object for the Bluetooth Device
-        Log.i("SkiTracksLogger", "Get MetaWear Board");
-        mwBoard = serviceBinder.getMetaWearBoard(remoteDevice);
-
-        Log.i("SkiTracksLogger", "Connect to MetaWear Board");
-        mwBoard.setConnectionStateHandler(connectionStateHandler);
-        mwBoard.connect();
+        for (Board board : boards) {
+            board.Connect(btManager);
+        }
     }
 
     public void DisconnectFromMetaWearBoard() {
-        if (connectedToMwBoard && mwBoard != null) {
-            mwBoard.disconnect();
+        for (Board board : boards) {
+            board.Disconnect();
         }
     }
 
     public void StartLogging() {
+        StartLogImu();
         StartLogGps();
-        StartLogAccel();
-        StartLogGyro();
-        StartLogMag();
+        for (Board board : boards) {
+            board.StartLogAccel();
+            board.StartLogGyro();
+            board.StartLogMag();
+        }
 
         StartDataProcessing();
     }
 
     public void StopLogging() {
-        StopLogGps();
-        StopLogAccel();
-        StopLogGryo();
-        StopLogMag();
+        for (Board board : boards) {
+            board.StopLogAccel();
+            board.StopLogGryo();
+            board.StopLogMag();
+        }
+        // the frames still draining and the segmenter's events go to the IMU log, so stop the
+        // processing before closing it
         StopDataProcessing();
+        // writes any queued GPS lines too, so close it before the GPS file
+        StopLogImu();
+        StopLogGps();
     }
 
     private void StartLogGps() {
@@ -373,265 +322,306 @@ public class LoggingService extends Service implements ServiceConnection, Locati
         }
     }
 
-    private void StartLogAccel() {
-        Log.i("SkiTracksLogger", "Logging Accelerometer Data");
-        try {
-            //accelWriter = NewOutputStreamWriter("Accel_");
+    private void StartLogImu() {
+        Log.i("SkiTracksLogger", "Logging IMU Data");
+        for (Board board : boards) {
+            try {
+                SampleWriter log;
+                if (COMPRESS_IMU_LOG) {
+                    log = new CompressedLogWriter(NewLogFile("Imu_" + board.name + "_", ".imz"), true);
+                } else {
+                    File logFile = NewLogFile("Imu_" + board.name + "_", ".bin");
+                    SessionIndexWriter index = new SessionIndexWriter(SessionIndex.fileFor(logFile));
+                    log = new BinaryLogWriter(logFile, BinaryLogWriter.DEFAULT_BUFFER_SIZE, index);
+                }
+                AsyncLogWriter writer = new AsyncLogWriter(log);
+                writer.start();
+                board.lane.setLogWriter(writer);
+            } catch (IOException e) {
+                Log.e("SkiTracksLogger", board.name + " IMU log open failed: " + e.toString());
+            }
+        }
+    }
 
-            bmi160AccModule = mwBoard.getModule(Bmi160Accelerometer.class);
+    private void StopLogImu() {
+        for (Board board : boards) {
+            AsyncLogWriter writer = board.lane.getLogWriter();
+            board.lane.setLogWriter(null);
+            if(writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.e("SkiTracksLogger", board.name + " IMU file close failed: " + e.toString());
+                }
+            }
+        }
+    }
 
-            // Set measurement range to +/- 2G
-            // Set output data rate to 25Hz
-            final int sampleDeltaMillisecond = (int)(1.0 / 100.0 * 1000.0);
-            bmi160AccModule.configureAxisSampling()
-                    .setFullScaleRange(Bmi160Accelerometer.AccRange.AR_2G)
-                    .setOutputDataRate(Bmi160Accelerometer.OutputDataRate.ODR_100_HZ)
-                    .commit();
+    /**
+     * One MetaWear board of the session: its connection, its sensor modules and the lane
+     * its samples go through.
+     */
+    private class Board {
+        final String name;
+        final String macAddress;
+        final BoardLane lane;
 
-            // enable axis sampling
-            bmi160AccModule.enableAxisSampling();
+        private MetaWearBoard mwBoard;
+        private boolean connected = false;
 
-            final Logging logger = mwBoard.getModule(Logging.class);
+        private Bmi160Accelerometer bmi160AccModule;
+        private Bmi160Gyro bmi160GyroModule;
+        private Bmm150Magnetometer bmm150MagModule;
 
-            bmi160AccModule.routeData().fromHighFreqAxes()
-                    .stream("AccData")
-                    .commit().onComplete(new AsyncOperation.CompletionHandler<RouteManager>() {
+        Board(String name, String macAddress, MountProfile mount) {
+            this.name = name;
+            this.macAddress = macAddress;
+            this.lane = session.addLane(name, mount, new SensorFusion());
+        }
 
-                @Override
-                public void success(RouteManager result) {
-                    result.subscribe("AccData", new RouteManager.MessageHandler() {
-                        Calendar sampleTime = null;
-
-                        @Override
-                        public void process(Message msg) {
-                            CartesianFloat axes = CorrectForDeviceMountingOrientation(msg.getData(CartesianFloat.class));
-
-                            // ignore the timestamp in the message because data gets transferred
-                            // from the board in blocks so we'll get a couple samples together
-                            // with almost identical time stamps. We know the sampling rate
-                            // so we'll manually calculate the sample time.
-                            if(sampleTime == null)
-                            {
-                                sampleTime = msg.getTimestamp();
-                                sampleTime.add(Calendar.MILLISECOND, -sampleDeltaMillisecond);
-                            }
+        private final MetaWearBoard.ConnectionStateHandler connectionStateHandler = new MetaWearBoard.ConnectionStateHandler() {
+            @Override
+            public void connected() {
+                connected = true;
+                BoardConnected(Board.this);
+            }
 
-                            sampleTime.add(Calendar.MILLISECOND, sampleDeltaMillisecond);
+            @Override
+            public void disconnected() {
+                connected = false;
+                BoardDisconnected(Board.this);
+            }
+        };
 
-                            //try {
-                                //accelWriter.write(format.format(sampleTime.getTime()) + ',' + axes.x().toString() + ',' + axes.y().toString() + ',' + axes.z().toString() + '\n');
-                                accelSamples.add(new double[]{axes.x(), axes.y(), axes.z()});
-                            //} catch (IOException e) {
-                            //    Log.e("Exception", "Accel write failed: " + e.toString());
-                            //}
-                            //Log.i("SkiTracksLogger", "axes:  " + axes.toString());
-                        }
-                    });
+        void Connect(BluetoothManager btManager) {
+            final BluetoothDevice remoteDevice =
+                    btManager.getAdapter().getRemoteDevice(macAddress);
 
-                    // start sampling
-                    bmi160AccModule.start();
-                }
-            });
+            // Create a MetaWear board object for the Bluetooth Device
+            Log.i("SkiTracksLogger", "Get MetaWear Board " + name);
+            mwBoard = serviceBinder.getMetaWearBoard(remoteDevice);
 
-        } catch (UnsupportedModuleException e) {
-            e.printStackTrace();
+            Log.i("SkiTracksLogger", "Connect to MetaWear Board " + name);
+            mwBoard.setConnectionStateHandler(connectionStateHandler);
+            mwBoard.connect();
         }
-    }
 
-    private void StopLogAccel() {
-        if(bmi160AccModule != null) {
-            bmi160AccModule.stop();
-            bmi160AccModule.disableAxisSampling();
+        void Disconnect() {
+            if (connected && mwBoard != null) {
+                mwBoard.disconnect();
+            }
         }
 
-        if(accelWriter != null) {
+        void StartLogAccel() {
+            Log.i("SkiTracksLogger", "Logging Accelerometer Data");
             try {
-                accelWriter.write(format.format(Calendar.getInstance().getTime()));
-                accelWriter.close();
-            } catch (IOException e) {
-                Log.e("SkiTracksLogger", "Accel file close failed: " + e.toString());
-            }
-        }
-    }
+                bmi160AccModule = mwBoard.getModule(Bmi160Accelerometer.class);
+
+                // Set measurement range to +/- 2G
+                // Set output data rate to 25Hz
+                final int sampleDeltaMillisecond = (int)(1.0 / 100.0 * 1000.0);
+                bmi160AccModule.configureAxisSampling()
+                        .setFullScaleRange(Bmi160Accelerometer.AccRange.AR_2G)
+                        .setOutputDataRate(Bmi160Accelerometer.OutputDataRate.ODR_100_HZ)
+                        .commit();
+
+                // enable axis sampling
+                bmi160AccModule.enableAxisSampling();
+
+                final Logging logger = mwBoard.getModule(Logging.class);
+
+                bmi160AccModule.routeData().fromHighFreqAxes()
+                        .stream("AccData")
+                        .commit().onComplete(new AsyncOperation.CompletionHandler<RouteManager>() {
+
+                    @Override
+                    public void success(RouteManager result) {
+                        result.subscribe("AccData", new RouteManager.MessageHandler() {
+                            Calendar sampleTime = null;
+
+                            @Override
+                            public void process(Message msg) {
+                                CartesianFloat axes = msg.getData(CartesianFloat.class);
+
+                                // ignore the timestamp in the message because data gets transferred
+                                // from the board in blocks so we'll get a couple samples together
+                                // with almost identical time stamps. We know the sampling rate
+                                // so we'll manually calculate the sample time.
+                                if(sampleTime == null)
+                                {
+                                    sampleTime = msg.getTimestamp();
+                                    sampleTime.add(Calendar.MILLISECOND, -sampleDeltaMillisecond);
+                                }
 
-    private void StartLogGyro() {
-        Log.i("SkiTracksLogger", "Logging Gyroscope Data");
-        try {
-            //gyroWriter = NewOutputStreamWriter("Gyro_");
+                                sampleTime.add(Calendar.MILLISECOND, sampleDeltaMillisecond);
 
-            bmi160GyroModule = mwBoard.getModule(Bmi160Gyro.class);
+                                long timeNanos = sampleTime.getTimeInMillis() * 1000000L;
+                                lane.addAccel(timeNanos, axes.x(), axes.y(), axes.z());
+                                //Log.i("SkiTracksLogger", "axes:  " + axes.toString());
+                            }
+                        });
 
-            final int sampleDeltaMillisecond = (int)(1.0 /100.0 * 1000.0);
-            bmi160GyroModule.configure()
-                    .setFullScaleRange(Bmi160Gyro.FullScaleRange.FSR_250)
-                    .setOutputDataRate(Bmi160Gyro.OutputDataRate.ODR_100_HZ)
-                    .commit();
+                        // start sampling
+                        bmi160AccModule.start();
+                    }
+                });
 
-            bmi160GyroModule.routeData().fromHighFreqAxes()
-                    .stream("GyroData").commit().onComplete(new AsyncOperation.CompletionHandler<RouteManager>() {
-                @Override
-                public void success(RouteManager result) {
-                    result.subscribe("GyroData", new RouteManager.MessageHandler() {
-                        Calendar sampleTime = null;
-
-                        @Override
-                        public void process(Message msg) {
-                            final CartesianFloat spinData = CorrectForDeviceMountingOrientation(msg.getData(CartesianFloat.class));
-
-                            // ignore the timestamp in the message because data gets transferred
-                            // from the board in blocks so we'll get a couple samples together
-                            // with almost identical time stamps. We know the sampling rate
-                            // so we'll manually calculate the sample time.
-                            if(sampleTime == null)
-                            {
-                                sampleTime = msg.getTimestamp();
-                                sampleTime.add(Calendar.MILLISECOND, -sampleDeltaMillisecond);
-                            }
+            } catch (UnsupportedModuleException e) {
+                e.printStackTrace();
+            }
+        }
 
-                            sampleTime.add(Calendar.MILLISECOND, sampleDeltaMillisecond);
+        void StopLogAccel() {
+            if(bmi160AccModule != null) {
+                bmi160AccModule.stop();
+                bmi160AccModule.disableAxisSampling();
+            }
+        }
 
-                            //try {
-                                //gyroWriter.write(format.format(sampleTime.getTime()) + ',' + spinData.x().toString() + ',' + spinData.y().toString() + ',' + spinData.z().toString() + '\n');
-                                gyroSamples.add(new double[]{spinData.x(), spinData.y(), spinData.z()});
-                            //} catch (IOException e) {
-                            //    Log.e("Exception", "GyroData write failed: " + e.toString());
-                            //}
-                            //Log.i("SkiTracksLogger", "gyro:  " + spinData.toString());
-                        }
-                    });
+        void StartLogGyro() {
+            Log.i("SkiTracksLogger", "Logging Gyroscope Data");
+            try {
+                bmi160GyroModule = mwBoard.getModule(Bmi160Gyro.class);
+
+                final int sampleDeltaMillisecond = (int)(1.0 /100.0 * 1000.0);
+                bmi160GyroModule.configure()
+                        .setFullScaleRange(Bmi160Gyro.FullScaleRange.FSR_250)
+                        .setOutputDataRate(Bmi160Gyro.OutputDataRate.ODR_100_HZ)
+                        .commit();
+
+                bmi160GyroModule.routeData().fromHighFreqAxes()
+                        .stream("GyroData").commit().onComplete(new AsyncOperation.CompletionHandler<RouteManager>() {
+                    @Override
+                    public void success(RouteManager result) {
+                        result.subscribe("GyroData", new RouteManager.MessageHandler() {
+                            Calendar sampleTime = null;
+
+                            @Override
+                            public void process(Message msg) {
+                                CartesianFloat spinData = msg.getData(CartesianFloat.class);
+
+                                // ignore the timestamp in the message because data gets transferred
+                                // from the board in blocks so we'll get a couple samples together
+                                // with almost identical time stamps. We know the sampling rate
+                                // so we'll manually calculate the sample time.
+                                if(sampleTime == null)
+                                {
+                                    sampleTime = msg.getTimestamp();
+                                    sampleTime.add(Calendar.MILLISECOND, -sampleDeltaMillisecond);
+                                }
 
-                    // start sampling
-                    bmi160GyroModule.start();
-                }
-            });
+                                sampleTime.add(Calendar.MILLISECOND, sampleDeltaMillisecond);
 
-        } catch (UnsupportedModuleException e) {
-            e.printStackTrace();
-        }
-    }
+                                long timeNanos = sampleTime.getTimeInMillis() * 1000000L;
+                                lane.addGyro(timeNanos, spinData.x(), spinData.y(), spinData.z());
+                                //Log.i("SkiTracksLogger", "gyro:  " + spinData.toString());
+                            }
+                        });
+
+                        // start sampling
+                        bmi160GyroModule.start();
+                    }
+                });
 
-    private void StopLogGryo() {
-        if(bmi160GyroModule != null) {
-            bmi160GyroModule.stop();
+            } catch (UnsupportedModuleException e) {
+                e.printStackTrace();
+            }
         }
 
-        if(gyroWriter != null) {
-            try {
-                gyroWriter.close();
-            } catch (IOException e) {
-                Log.e("SkiTracksLogger", "Gyro file close failed: " + e.toString());
+        void StopLogGryo() {
+            if(bmi160GyroModule != null) {
+                bmi160GyroModule.stop();
             }
         }
-    }
 
-    double mx;
-    double my;
-    double mz;
-    private void StartLogMag() {
-        Log.i("SkiTracksLogger", "Logging Magnetometer Data");
-        try {
-           //magWriter = NewOutputStreamWriter("Mag_");
-
-            bmm150MagModule = mwBoard.getModule(Bmm150Magnetometer.class);
-            bmm150MagModule.setPowerPreset(Bmm150Magnetometer.PowerPreset.ENHANCED_REGULAR);
-            bmm150MagModule.enableBFieldSampling();
-
-            // ENHANCED_REGULAR mode samples at 10Hz
-            final int sampleDeltaMillisecond = (int)(1.0 / 10.0 * 1000.0);
-
-            bmm150MagModule.routeData()
-                    .fromBField()
-                    .stream("MagData")
-                    .commit()
-                    .onComplete(
-                            new AsyncOperation.CompletionHandler<RouteManager>() {
-                                @Override
-                                public void success(RouteManager result) {
-                                    result.subscribe("MagData", new RouteManager.MessageHandler() {
-                                        Calendar sampleTime = null;
-
-                                        final double hardIronCorrectionX = -3.155170;
-                                        final double hardIronCorrectionY = 12.191927;
-                                        final double hardIronCorrectionZ = -9.894998;
-
-                                        final double[] softIronMtx1 = {0.962221, -0.004818, 0.002260};
-                                        final double[] softIronMtx2 = {-0.004818, 0.959747, -0.004253};
-                                        final double[] softIronMtx3 = {0.002260, -0.004253, 1.038005};
-
-                                        @Override
-                                        public void process(Message msg) {
-                                            CartesianFloat magData = msg.getData(CartesianFloat.class);
-
-                                            // correct for hard iron distortion
-                                            /*double x = magData.x() - hardIronCorrectionX;
-                                            double y = magData.y() - hardIronCorrectionY;
-                                            double z = magData.z() - hardIronCorrectionZ;
-
-                                            double correctedX = softIronMtx1[0] * x + softIronMtx1[1] * y + softIronMtx1[2] * z;
-                                            double correctedY = softIronMtx2[0] * x + softIronMtx2[1] * y + softIronMtx2[2] * z;
-                                            double correctedZ = softIronMtx3[0] * x + softIronMtx3[1] * y + softIronMtx3[2] * z;*/
-
-                                            // The magnetometer isn't oriented in the same direction as the accel & gyro.
-                                            // It's rotated 180 degrees around the x axis, so correct so it matches
-                                            mx =  magData.x();
-                                            my = -magData.y();
-                                            mz = -magData.z();
-
-                                            magData = CorrectForDeviceMountingOrientation(new CartesianFloatImpl((float)mx, (float)my, (float)mz));
-
-                                            // ignore the timestamp in the message because data gets transferred
-                                            // from the board in blocks so we'll get a couple samples together
-                                            // with almost identical time stamps. We know the sampling rate
-                                            // so we'll manually calculate the sample time.
-                                            if (sampleTime == null) {
-                                                sampleTime = msg.getTimestamp();
-                                                sampleTime.add(Calendar.MILLISECOND, -sampleDeltaMillisecond);
+        void StartLogMag() {
+            Log.i("SkiTracksLogger", "Logging Magnetometer Data");
+            // start from the calibration fitted in an earlier session until this one has its own
+            SharedPreferences preferences = getSharedPreferences(MAG_CALIBRATION_PREFERENCES, MODE_PRIVATE);
+            MagCalibration saved = MagCalibration.decode(preferences.getString(macAddress, null));
+            if (saved != null) {
+                Log.i("SkiTracksLogger", name + " mag calibration: " + saved);
+                lane.getMagCalibrator().setCalibration(saved);
+            }
+            try {
+                bmm150MagModule = mwBoard.getModule(Bmm150Magnetometer.class);
+                bmm150MagModule.setPowerPreset(Bmm150Magnetometer.PowerPreset.ENHANCED_REGULAR);
+                bmm150MagModule.enableBFieldSampling();
+
+                // ENHANCED_REGULAR mode samples at 10Hz
+                final int sampleDeltaMillisecond = (int)(1.0 / 10.0 * 1000.0);
+
+                bmm150MagModule.routeData()
+                        .fromBField()
+                        .stream("MagData")
+                        .commit()
+                        .onComplete(
+                                new AsyncOperation.CompletionHandler<RouteManager>() {
+                                    @Override
+                                    public void success(RouteManager result) {
+                                        result.subscribe("MagData", new RouteManager.MessageHandler() {
+                                            Calendar sampleTime = null;
+
+                                            @Override
+                                            public void process(Message msg) {
+                                                CartesianFloat magData = msg.getData(CartesianFloat.class);
+
+                                                // ignore the timestamp in the message because data gets transferred
+                                                // from the board in blocks so we'll get a couple samples together
+                                                // with almost identical time stamps. We know the sampling rate
+                                                // so we'll manually calculate the sample time.
+                                                if (sampleTime == null) {
+                                                    sampleTime = msg.getTimestamp();
+                                                    sampleTime.add(Calendar.MILLISECOND, -sampleDeltaMillisecond);
+                                                }
+
+                                                sampleTime.add(Calendar.MILLISECOND, sampleDeltaMillisecond);
+
+                                                long timeNanos = sampleTime.getTimeInMillis() * 1000000L;
+                                                // The lane corrects for hard and soft iron distortion, and the board's mount
+                                                // profile for the magnetometer not being oriented like the accel & gyro
+                                                lane.addMag(timeNanos, magData.x(), magData.y(), magData.z());
+                                                //Log.i("SkiTracksLogger", "mag:  " + magData.toString());
+                                                //Log.i("SkiTracksLogger", "heading:  " + String.format("%.2f", heading));
                                             }
+                                        });
 
-                                            sampleTime.add(Calendar.MILLISECOND, sampleDeltaMillisecond);
-
-                                            //try {
-                                                //magWriter.write(format.format(sampleTime.getTime()) + ',' + magData.x() + ',' + magData.y() + ',' + magData.z() + '\n');
-                                                currentMagSample = new double[]{magData.x(), magData.y(), magData.z()};
-                                            //} catch (IOException e) {
-                                            //    Log.e("Exception", "MagData write failed: " + e.toString());
-                                            //}
-                                            //Log.i("SkiTracksLogger", "mag:  " + magData.toString());
-                                            //Log.i("SkiTracksLogger", "heading:  " + String.format("%.2f", heading));
-                                        }
-                                    });
-
-                                    // start sampling
-                                    bmm150MagModule.start();
-                                }
-                            });
+                                        // start sampling
+                                        bmm150MagModule.start();
+                                    }
+                                });
 
-        } catch (UnsupportedModuleException e) {
-            e.printStackTrace();
+            } catch (UnsupportedModuleException e) {
+                e.printStackTrace();
+            }
         }
-    }
 
-    private void StopLogMag() {
-        if(bmm150MagModule != null) {
-            bmm150MagModule.stop();
-            bmm150MagModule.disableBFieldSampling();
-        }
+        void StopLogMag() {
+            if(bmm150MagModule != null) {
+                bmm150MagModule.stop();
+                bmm150MagModule.disableBFieldSampling();
+            }
 
-        if(magWriter != null) {
-            try {
-                magWriter.close();
-            } catch (IOException e) {
-                Log.e("SkiTracksLogger", "Mag file close failed: " + e.toString());
+            MagCalibrator calibrator = lane.getMagCalibrator();
+            if (calibrator.getFits() > 0) {
+                Log.i("SkiTracksLogger", name + " mag calibration: " + calibrator.getCalibration());
+                getSharedPreferences(MAG_CALIBRATION_PREFERENCES, MODE_PRIVATE).edit()
+                        .putString(macAddress, calibrator.getCalibration().encode())
+                        .apply();
             }
         }
     }
 
-    private OutputStreamWriter NewOutputStreamWriter(String prefix) {
+    private File NewLogFile(String prefix, String extension) {
         SimpleDateFormat format = new SimpleDateFormat("MM_dd_yyyy_hh_mm_ss");
-        String fileName = prefix + format.format(Calendar.getInstance().getTime()) + ".csv";
+        String fileName = prefix + format.format(Calendar.getInstance().getTime()) + extension;
         File dir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
         dir.mkdirs();
-        File file = new File(dir, fileName);
+        return new File(dir, fileName);
+    }
+
+    private OutputStreamWriter NewOutputStreamWriter(String prefix) {
+        File file = NewLogFile(prefix, ".csv");
         try {
             FileOutputStream outStream = new FileOutputStream(file);
             return new OutputStreamWriter(outStream);
@@ -641,48 +631,4 @@ public class LoggingService extends Service implements ServiceConnection, Locati
             return null;
         }
     }
-
-    private class CartesianFloatImpl extends CartesianFloat {
-
-        @Override
-        public Float x() {
-            return m_x;
-        }
-
-        @Override
-        public Float y() {
-            return m_y;
-        }
-
-        @Override
-        public Float z() {
-            return m_z;
-        }
-
-        CartesianFloatImpl(float x, float y, float z)
-        {
-            m_x = x;
-            m_y = y;
-            m_z = z;
-        }
-
-        private float m_x;
-        private float m_y;
-        private float m_z;
-    }
-
-    private CartesianFloat CorrectForDeviceMountingOrientation(CartesianFloat device)
-    {
-        // Our post processing application to compute quaternions expects an North East Down
-        // reference frame. When facing north, we expect the +X axis to be pointing north,
-        // the +Y axis to be pointing east, and the +Z axis to be pointing down.
-        // If the device is mounted in a different orientation, we need to correct for
-        // that here
-
-        // Helmet mount:
-        // When facing north +Y points east, +Z points north, and +X points up.
-        CartesianFloat corrected = new CartesianFloatImpl(device.z(), device.y(), -device.x());
-
-        return corrected;
-    }
 }
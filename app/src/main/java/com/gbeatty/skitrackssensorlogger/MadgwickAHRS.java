@@ -8,6 +8,24 @@ public abstract class MadgwickAHRS{
 	protected double beta;				/*< algorithm gain */
 	protected double[] q;	/*< quaternion of sensor frame relative to auxiliary frame */
 	protected double samplingFreq;
+
+	/** number of values per sample taken by {@link #update(float[], int, int)} */
+	public static final int IMU_STRIDE = 6;
+
+	/** default longest interval a timestamped update integrates over, in sampling periods */
+	public static final double DEFAULT_MAX_DT_PERIODS = 5.0;
+
+	private static final double NS2S = 1d / 1000000000d;
+	private long lastTimeNanos;	/*< timestamp of the last timestamped update */
+	private boolean hasTime = false;
+	private double maxDt;		/*< longer intervals (e.g. after a BLE dropout) are clamped to this */
+
+	// running mean and variance (Welford) of the accepted update intervals
+	private long dtCount;
+	private double dtMean;
+	private double dtM2;
+	private long clampedIntervals;
+
 	/**
 		Constructor
 		@param beta algorithm gain
@@ -17,7 +35,69 @@ public abstract class MadgwickAHRS{
 	public MadgwickAHRS(double beta, double[] q, double samplingFreq){
 		this.beta = beta;
 		this.q = q;
+		setSamplingFreq(samplingFreq);
+	}
+
+	/**
+		Change the nominal sampling frequency, e.g. after retuning the sensor output data rate,
+		without losing the orientation. Also resets the longest accepted update interval to
+		{@link #DEFAULT_MAX_DT_PERIODS} sampling periods.
+		@param samplingFreq Sampling frequency in Hz
+	*/
+	public void setSamplingFreq(double samplingFreq){
+		if (!(samplingFreq > 0)) {
+			throw new IllegalArgumentException("samplingFreq must be positive: " + samplingFreq);
+		}
 		this.samplingFreq = samplingFreq;
+		this.maxDt = DEFAULT_MAX_DT_PERIODS / samplingFreq;
+	}
+
+	public double getSamplingFreq(){
+		return samplingFreq;
+	}
+
+	/**
+		Set the longest interval a timestamped update integrates over, in seconds. Longer gaps
+		between samples are clamped to it, so a dropout doesn't spin the orientation by the
+		current rate of turn times the length of the gap.
+	*/
+	public void setMaxDt(double maxDt){
+		if (!(maxDt > 0)) {
+			throw new IllegalArgumentException("maxDt must be positive: " + maxDt);
+		}
+		this.maxDt = maxDt;
+	}
+
+	public double getMaxDt(){
+		return maxDt;
+	}
+
+	/**
+		Mean of the update intervals seen by the timestamped updates, in seconds
+	*/
+	public double getDtMean(){
+		return dtMean;
+	}
+
+	/**
+		Standard deviation of the update intervals seen by the timestamped updates, in seconds
+	*/
+	public double getDtJitter(){
+		return dtCount > 1 ? Math.sqrt(dtM2 / (dtCount - 1)) : 0d;
+	}
+
+	/**
+		Number of timestamped updates whose interval was out of order or longer than the max dt
+	*/
+	public long getClampedIntervals(){
+		return clampedIntervals;
+	}
+
+	public void resetDtStats(){
+		dtCount = 0;
+		dtMean = 0;
+		dtM2 = 0;
+		clampedIntervals = 0;
 	}
 
 	/**
@@ -37,9 +117,16 @@ public abstract class MadgwickAHRS{
 	}
 	
 	/**
-		Update the orientation according to the latest set of measurements
+		Update the orientation according to the latest set of measurements, one sampling period after the previous ones
 	*/
-	public abstract void  AHRSUpdate(double gx, double gy, double gz, double ax, double ay, double az, double mx, double my, double mz);
+	public void AHRSUpdate(double gx, double gy, double gz, double ax, double ay, double az, double mx, double my, double mz) {
+		AHRSUpdate(gx, gy, gz, ax, ay, az, mx, my, mz, 1d / samplingFreq);
+	}
+
+	/**
+		Update the orientation according to the latest set of measurements, taken dt seconds after the previous ones
+	*/
+	public abstract void AHRSUpdate(double gx, double gy, double gz, double ax, double ay, double az, double mx, double my, double mz, double dt);
 
     /**
      Update the orientation according to the latest set of measurements
@@ -47,6 +134,90 @@ public abstract class MadgwickAHRS{
      */
     public abstract void IMUUpdate(double[] IMUdata);
 
+    /**
+     Update the orientation from gyroscope (rad/s) and accelerometer measurements, one sampling period after the previous ones
+     */
+    public void IMUUpdate(double gx, double gy, double gz, double ax, double ay, double az) {
+        IMUUpdate(gx, gy, gz, ax, ay, az, 1d / samplingFreq);
+    }
+
+    /**
+     Update the orientation from gyroscope (rad/s) and accelerometer measurements, taken dt seconds after the previous ones
+     */
+    public abstract void IMUUpdate(double gx, double gy, double gz, double ax, double ay, double az, double dt);
+
+    /**
+     Update the orientation with count consecutive samples of {@link #IMU_STRIDE} values each,
+     gx, gy, gz (rad/s), ax, ay, az, starting at samples[offset]. The samples are left unchanged.
+     */
+    public void update(float[] samples, int offset, int count) {
+        if (offset < 0 || count < 0 || offset + count * IMU_STRIDE > samples.length) {
+            throw new ArrayIndexOutOfBoundsException("offset " + offset + ", count " + count + ", length " + samples.length);
+        }
+        int end = offset + count * IMU_STRIDE;
+        for (int i = offset; i < end; i += IMU_STRIDE) {
+            IMUUpdate(samples[i], samples[i + 1], samples[i + 2], samples[i + 3], samples[i + 4], samples[i + 5]);
+        }
+    }
+
+    /**
+     Update the orientation with all frames of a block, see {@link #update(FrameBlock, int, int, double)}
+     */
+    public void update(FrameBlock frames, double gyroScale) {
+        update(frames, 0, frames.count, gyroScale);
+    }
+
+    /**
+     Update the orientation with count consecutive frames of a block starting at offset, see
+     {@link #update(long, double, double, double, double, double, double, double, double, double)}.
+     @param gyroScale multiplies the gyro values of the frames to get rad/s (Math.PI / 180 for MetaWear data)
+     */
+    public void update(FrameBlock frames, int offset, int count, double gyroScale) {
+        if (offset < 0 || count < 0 || offset + count > frames.count) {
+            throw new ArrayIndexOutOfBoundsException("offset " + offset + ", count " + count + ", frames " + frames.count);
+        }
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            update(frames.timeNanos[i],
+                    frames.gx[i] * gyroScale, frames.gy[i] * gyroScale, frames.gz[i] * gyroScale,
+                    frames.ax[i], frames.ay[i], frames.az[i],
+                    frames.mx[i], frames.my[i], frames.mz[i]);
+        }
+    }
+
+    /**
+     Update the orientation with measurements taken at timeNanos, integrating over the time since
+     the previous timestamped update. The very first update, and one that isn't newer than the
+     previous one, is integrated over one sampling period; an interval longer than
+     {@link #getMaxDt()} is clamped to it. Both count as clamped intervals and stay out of the dt
+     statistics. A zero magnetometer reading makes the update fall back to the IMU only algorithm.
+     */
+    public void update(long timeNanos, double gx, double gy, double gz, double ax, double ay, double az, double mx, double my, double mz) {
+        double dt;
+        if (!hasTime) {
+            dt = 1d / samplingFreq;
+        } else if (timeNanos <= lastTimeNanos) {
+            dt = 1d / samplingFreq;
+            clampedIntervals++;
+        } else {
+            dt = (timeNanos - lastTimeNanos) * NS2S;
+            if (dt > maxDt) {
+                dt = maxDt;
+                clampedIntervals++;
+            } else {
+                dtCount++;
+                double delta = dt - dtMean;
+                dtMean += delta / dtCount;
+                dtM2 += delta * (dt - dtMean);
+            }
+        }
+        // an out of order sample doesn't move the clock back
+        if (!hasTime || timeNanos > lastTimeNanos) {
+            lastTimeNanos = timeNanos;
+        }
+        hasTime = true;
+        AHRSUpdate(gx, gy, gz, ax, ay, az, mx, my, mz, dt);
+    }
 
     /**
 		Replaced Madgwick's sqrt(1/x) implementation with 1/Math.sqrt(x) since I don't need real time calculations, and due to the instability pointed out by Tobias Simon
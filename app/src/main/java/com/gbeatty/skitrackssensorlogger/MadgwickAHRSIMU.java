@@ -17,10 +17,10 @@ public class MadgwickAHRSIMU extends MadgwickAHRS{
 	}
 
     /**
-     Update the orientation according to the latest set of measurements
+     Update the orientation according to the latest set of measurements, taken dt seconds after the previous ones
      */
     @Override
-    public void AHRSUpdate(double gx, double gy, double gz, double ax, double ay, double az, double mx, double my, double mz)
+    public void AHRSUpdate(double gx, double gy, double gz, double ax, double ay, double az, double mx, double my, double mz, double dt)
     {
         double recipNorm;
         double s0, s1, s2, s3;
@@ -30,8 +30,7 @@ public class MadgwickAHRSIMU extends MadgwickAHRS{
 
         // Use IMU algorithm if magnetometer measurement invalid (avoids NaN in magnetometer normalisation)
         if((mx == 0.0f) && (my == 0.0f) && (mz == 0.0f)) {
-            double[] IMUdata = {gx, gy, gz, ax, ay, az};
-            IMUUpdate(IMUdata);
+            IMUUpdate(gx, gy, gz, ax, ay, az, dt);
             return;
         }
 
@@ -91,24 +90,28 @@ public class MadgwickAHRSIMU extends MadgwickAHRS{
             s1 = _2q3 * (2.0f * q1q3 - _2q0q2 - ax) + _2q0 * (2.0f * q0q1 + _2q2q3 - ay) - 4.0f * q[1] * (1 - 2.0f * q1q1 - 2.0f * q2q2 - az) + _2bz * q[3] * (_2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx) + (_2bx * q[2] + _2bz * q[0]) * (_2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my) + (_2bx * q[3] - _4bz * q[1]) * (_2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz);
             s2 = -_2q0 * (2.0f * q1q3 - _2q0q2 - ax) + _2q3 * (2.0f * q0q1 + _2q2q3 - ay) - 4.0f * q[2] * (1 - 2.0f * q1q1 - 2.0f * q2q2 - az) + (-_4bx * q[2] - _2bz * q[0]) * (_2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx) + (_2bx * q[1] + _2bz * q[3]) * (_2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my) + (_2bx * q[0] - _4bz * q[2]) * (_2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz);
             s3 = _2q1 * (2.0f * q1q3 - _2q0q2 - ax) + _2q2 * (2.0f * q0q1 + _2q2q3 - ay) + (-_4bx * q[3] + _2bz * q[1]) * (_2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx) + (-_2bx * q[0] + _2bz * q[2]) * (_2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my) + _2bx * q[1] * (_2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz);
-            recipNorm = invSqrt(s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3); // normalise step magnitude
-            s0 *= recipNorm;
-            s1 *= recipNorm;
-            s2 *= recipNorm;
-            s3 *= recipNorm;
-
-            // Apply feedback step
-            qDot1 -= beta * s0;
-            qDot2 -= beta * s1;
-            qDot3 -= beta * s2;
-            qDot4 -= beta * s3;
+            // Skip a zero step, it has no direction (see IMUUpdate)
+            double stepNorm = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+            if (stepNorm > 0d) {
+                recipNorm = invSqrt(stepNorm); // normalise step magnitude
+                s0 *= recipNorm;
+                s1 *= recipNorm;
+                s2 *= recipNorm;
+                s3 *= recipNorm;
+
+                // Apply feedback step
+                qDot1 -= beta * s0;
+                qDot2 -= beta * s1;
+                qDot3 -= beta * s2;
+                qDot4 -= beta * s3;
+            }
         }
 
         // Integrate rate of change of quaternion to yield quaternion
-        q[0] += qDot1 * (1.0f / samplingFreq);
-        q[1] += qDot2 * (1.0f / samplingFreq);
-        q[2] += qDot3 * (1.0f / samplingFreq);
-        q[3] += qDot4 * (1.0f / samplingFreq);
+        q[0] += qDot1 * dt;
+        q[1] += qDot2 * dt;
+        q[2] += qDot3 * dt;
+        q[3] += qDot4 * dt;
 
         // Normalise quaternion
         recipNorm = invSqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
@@ -119,79 +122,89 @@ public class MadgwickAHRSIMU extends MadgwickAHRS{
     }
 
 	/**
-	 Update the orientation according to the latest set of measurements
+	 Update the orientation according to the latest set of measurements. IMUdata is left unchanged.
 	 @param IMUdata The latest set of IMU or MARG data [0-2] gyro, [3-5] accelerometer, {[6-8] magnetometer}
 	 */
 	@Override
 	public void  IMUUpdate(double[] IMUdata)
+    {
+		IMUUpdate(IMUdata[0], IMUdata[1], IMUdata[2], IMUdata[3], IMUdata[4], IMUdata[5]);
+	}
+
+	/**
+	 Update the orientation from gyroscope (rad/s) and accelerometer measurements only, taken dt
+	 seconds after the previous ones. Works on scalar locals, so it allocates nothing.
+	 */
+	@Override
+	public void IMUUpdate(double gx, double gy, double gz, double ax, double ay, double az, double dt)
     {
 		double recipNorm;
-		double[] s		= new double[4];
-		double[] qDot	= new double[4];
-		double[] _2q	= new double[4];
-		double[] _4q	= new double[3];
-		double[] _8q	= new double[2];
-		double[] qq		= new double[4];
-		
+		double s0, s1, s2, s3;
+		double qDot1, qDot2, qDot3, qDot4;
+		double _2q0, _2q1, _2q2, _2q3, _4q0, _4q1, _4q2, _8q1, _8q2, q0q0, q1q1, q2q2, q3q3;
+		double q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3];
+
 		// Rate of change of quaternion from gyroscope
-		qDot[0] = 0.5d * (-q[1] * IMUdata[0] - q[2] * IMUdata[1] - q[3] * IMUdata[2]);
-		qDot[1] = 0.5d * (q[0] * IMUdata[0] + q[2] * IMUdata[2] - q[3] * IMUdata[1]);
-		qDot[2] = 0.5d * (q[0] * IMUdata[1] - q[1] * IMUdata[2] + q[3] * IMUdata[0]);
-		qDot[3] = 0.5d * (q[0] * IMUdata[2] + q[1] * IMUdata[1] - q[2] * IMUdata[0]);
+		qDot1 = 0.5d * (-q1 * gx - q2 * gy - q3 * gz);
+		qDot2 = 0.5d * (q0 * gx + q2 * gz - q3 * gy);
+		qDot3 = 0.5d * (q0 * gy - q1 * gz + q3 * gx);
+		qDot4 = 0.5d * (q0 * gz + q1 * gy - q2 * gx);
 
 		// Compute feedback only if accelerometer measurement valid (avoids NaN in accelerometer normalisation)
-		if(!((IMUdata[3] == 0d) && (IMUdata[4] == 0d) && (IMUdata[5] == 0d))) {
+		if(!((ax == 0d) && (ay == 0d) && (az == 0d))) {
 
 			// Normalise accelerometer measurement
-			recipNorm	= invSqrt(IMUdata[3] * IMUdata[3] + IMUdata[4] * IMUdata[4] + IMUdata[5] * IMUdata[5]);
-			IMUdata[3]	*= recipNorm;
-			IMUdata[4]	*= recipNorm;
-			IMUdata[5]	*= recipNorm;
+			recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+			ax *= recipNorm;
+			ay *= recipNorm;
+			az *= recipNorm;
 
 			// Auxiliary variables to avoid repeated arithmetic
-			_2q[0] = 2d * q[0];
-			_2q[1] = 2d * q[1];
-			_2q[2] = 2d * q[2];
-			_2q[3] = 2d * q[3];
-			_4q[0] = 4d * q[0];
-			_4q[1] = 4d * q[1];
-			_4q[2] = 4d * q[2];
-			_8q[0] = 8d * q[1];
-			_8q[1] = 8d * q[2];
-			qq[0] = q[0] * q[0];
-			qq[1] = q[1] * q[1];
-			qq[2] = q[2] * q[2];
-			qq[3] = q[3] * q[3];
+			_2q0 = 2d * q0;
+			_2q1 = 2d * q1;
+			_2q2 = 2d * q2;
+			_2q3 = 2d * q3;
+			_4q0 = 4d * q0;
+			_4q1 = 4d * q1;
+			_4q2 = 4d * q2;
+			_8q1 = 8d * q1;
+			_8q2 = 8d * q2;
+			q0q0 = q0 * q0;
+			q1q1 = q1 * q1;
+			q2q2 = q2 * q2;
+			q3q3 = q3 * q3;
 
 			// Gradient decent algorithm corrective step
-			s[0] = _4q[0] * qq[2] + _2q[2] * IMUdata[3] + _4q[0] * qq[1] - _2q[1] * IMUdata[4];
-			s[1] = _4q[1] * qq[3] - _2q[3] * IMUdata[3] + 4.0f * qq[0] * q[1] - _2q[0] * IMUdata[4] - _4q[1] + _8q[0] * qq[1] + _8q[0] * qq[2] + _4q[1] * IMUdata[5];
-			s[2] = 4.0f * qq[0] * q[2] + _2q[0] * IMUdata[3] + _4q[2] * qq[3] - _2q[3] * IMUdata[4] - _4q[2] + _8q[1] * qq[1] + _8q[1] * qq[2] + _4q[2] * IMUdata[5];
-			s[3] = 4.0f * qq[1] * q[3] - _2q[1] * IMUdata[3] + 4.0f * qq[2] * q[3] - _2q[2] * IMUdata[4];
-			recipNorm = invSqrt(s[0] * s[0] + s[1] * s[1] + s[2] * s[2] + s[3] * s[3]); // normalise step magnitude
-			s[0] *= recipNorm;
-			s[1] *= recipNorm;
-			s[2] *= recipNorm;
-			s[3] *= recipNorm;
-
-			// Apply feedback step
-			qDot[0] -= beta * s[0];
-			qDot[1] -= beta * s[1];
-			qDot[2] -= beta * s[2];
-			qDot[3] -= beta * s[3];
+			s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+			s1 = _4q1 * q3q3 - _2q3 * ax + 4d * q0q0 * q1 - _2q0 * ay - _4q1 + _8q1 * q1q1 + _8q1 * q2q2 + _4q1 * az;
+			s2 = 4d * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2 + _8q2 * q1q1 + _8q2 * q2q2 + _4q2 * az;
+			s3 = 4d * q1q1 * q3 - _2q1 * ax + 4d * q2q2 * q3 - _2q2 * ay;
+
+			// A zero step (accelerometer exactly along the estimated gravity) has no direction
+			// and would turn the quaternion into NaN
+			double stepNorm = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+			if (stepNorm > 0d) {
+				recipNorm = invSqrt(stepNorm); // normalise step magnitude
+
+				// Apply feedback step
+				qDot1 -= beta * s0 * recipNorm;
+				qDot2 -= beta * s1 * recipNorm;
+				qDot3 -= beta * s2 * recipNorm;
+				qDot4 -= beta * s3 * recipNorm;
+			}
 		}
 
 		// Integrate rate of change of quaternion to yield quaternion
-		q[0] += qDot[0] * (1.0f / samplingFreq);
-		q[1] += qDot[1] * (1.0f / samplingFreq);
-		q[2] += qDot[2] * (1.0f / samplingFreq);
-		q[3] += qDot[3] * (1.0f / samplingFreq);
+		q0 += qDot1 * dt;
+		q1 += qDot2 * dt;
+		q2 += qDot3 * dt;
+		q3 += qDot4 * dt;
 
 		// Normalise quaternion
-		recipNorm = invSqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
-		q[0] *= recipNorm;
-		q[1] *= recipNorm;
-		q[2] *= recipNorm;
-		q[3] *= recipNorm;	
+		recipNorm = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+		q[0] = q0 * recipNorm;
+		q[1] = q1 * recipNorm;
+		q[2] = q2 * recipNorm;
+		q[3] = q3 * recipNorm;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,111 @@
+package com.gbeatty.skitrackssensorlogger;
+
+/**
+ * Hard and soft iron correction for one magnetometer: corrected = softIron * (raw - offset).
+ * Immutable, so it can be handed from the thread fitting it to the threads correcting samples.
+ */
+public final class MagCalibration {
+
+    /**
+     * Leaves samples as they are.
+     */
+    public static final MagCalibration IDENTITY = new MagCalibration(
+            new double[]{0, 0, 0}, new double[]{1, 0, 0, 0, 1, 0, 0, 0, 1}, 0, 0);
+
+    private static final int ENCODED_VALUES = 14;
+
+    private final double[] offset;
+    private final double[] softIron;
+    private final double fieldStrength;
+    private final long samples;
+
+    /**
+     * @param offset hard iron offset, in the magnetometer's units
+     * @param softIron row major 3x3 soft iron matrix
+     * @param fieldStrength the fitted field strength, in the magnetometer's units
+     * @param samples how many samples the fit is based on
+     */
+    public MagCalibration(double[] offset, double[] softIron, double fieldStrength, long samples) {
+        this.offset = offset.clone();
+        this.softIron = softIron.clone();
+        this.fieldStrength = fieldStrength;
+        this.samples = samples;
+    }
+
+    public double getOffset(int axis) {
+        return offset[axis];
+    }
+
+    /**
+     * @return the soft iron matrix element in row, column
+     */
+    public double getSoftIron(int row, int column) {
+        return softIron[row * 3 + column];
+    }
+
+    public double getFieldStrength() {
+        return fieldStrength;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Writes the corrected sample x, y, z into out.
+     */
+    public void correct(float x, float y, float z, float[] out) {
+        double dx = x - offset[0];
+        double dy = y - offset[1];
+        double dz = z - offset[2];
+        out[0] = (float) (softIron[0] * dx + softIron[1] * dy + softIron[2] * dz);
+        out[1] = (float) (softIron[3] * dx + softIron[4] * dy + softIron[5] * dz);
+        out[2] = (float) (softIron[6] * dx + softIron[7] * dy + softIron[8] * dz);
+    }
+
+    /**
+     * @return the calibration as a single line of text, read back by {@link #decode(String)}
+     */
+    public String encode() {
+        StringBuilder text = new StringBuilder(256);
+        for (double value : offset) {
+            text.append(value).append(',');
+        }
+        for (double value : softIron) {
+            text.append(value).append(',');
+        }
+        return text.append(fieldStrength).append(',').append(samples).toString();
+    }
+
+    /**
+     * @return the calibration encoded in text, or null if text is null or not a calibration
+     */
+    public static MagCalibration decode(String text) {
+        if (text == null) {
+            return null;
+        }
+        String[] values = text.split(",");
+        if (values.length != ENCODED_VALUES) {
+            return null;
+        }
+        try {
+            double[] offset = new double[3];
+            double[] softIron = new double[9];
+            for (int i = 0; i < 3; i++) {
+                offset[i] = Double.parseDouble(values[i]);
+            }
+            for (int i = 0; i < 9; i++) {
+                softIron[i] = Double.parseDouble(values[3 + i]);
+            }
+            return new MagCalibration(offset, softIron, Double.parseDouble(values[12]), Long.parseLong(values[13]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("offset %.2f %.2f %.2f  field %.2f  samples %d",
+                offset[0], offset[1], offset[2], fieldStrength, samples);
+    }
+}
@@ -0,0 +1,358 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fits the hard and soft iron distortion of a magnetometer while it streams.
+ *
+ * Every sample feeds a recursive least squares fit of the general ellipsoid
+ *   a x^2 + b y^2 + c z^2 + 2d xy + 2e xz + 2f yz + 2g x + 2h y + 2i z = 1
+ * which costs a fixed, small amount of work per sample and allocates nothing. Old samples fade
+ * out of the fit with a forgetting factor, so it follows a hard iron offset that changes, e.g.
+ * when the board is remounted next to something magnetic. Every so often
+ * the fitted parameters are copied and turned into a {@link MagCalibration} (ellipsoid center,
+ * and the matrix mapping the ellipsoid onto a sphere) on the executor, so the eigen
+ * decomposition never runs on the thread delivering samples. A new calibration is only
+ * published when the fit looks like a real ellipsoid.
+ *
+ * add is called by one thread at a time; correct and getCalibration from any thread.
+ */
+public class MagCalibrator {
+
+    // samples before the first calibration is fitted, 10s at the 10Hz mag rate
+    public static final int MIN_SAMPLES = 100;
+    // samples between fits
+    public static final int FIT_INTERVAL = 20;
+
+    // samples are scaled to roughly unit length around the Earth's field (in uT) so the
+    // squared terms don't swamp the linear ones
+    private static final double SCALE = 50.0;
+    private static final double INITIAL_COVARIANCE = 1000.0;
+    // weight of a sample relative to the next one, a memory of about 1000 samples (100s)
+    private static final double FORGETTING_FACTOR = 0.999;
+
+    // fits outside these are rejected: the Earth's field is 25 to 65uT, and soft iron
+    // distortion squashes the sphere by a few percent, not by half
+    private static final double MIN_FIELD = 10.0;
+    private static final double MAX_FIELD = 150.0;
+    private static final double MAX_AXIS_RATIO = 2.0;
+
+    private static final int JACOBI_SWEEPS = 50;
+
+    // recursive least squares state, only touched by the thread adding samples
+    private final double[] theta = new double[9];
+    private final double[] covariance = new double[81];
+    private final double[] regressor = new double[9];
+    private final double[] gain = new double[9];
+    private long samples = 0;
+
+    // handed to the fit while it runs, written again only once it's done
+    private final double[] fitTheta = new double[9];
+    private long fitSamples;
+    private final AtomicBoolean fitting = new AtomicBoolean(false);
+    private final Runnable fit = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                MagCalibration calibration = solve(fitTheta, fitSamples);
+                if (calibration != null) {
+                    current = calibration;
+                    fits++;
+                } else {
+                    rejectedFits++;
+                }
+            } finally {
+                fitting.set(false);
+            }
+        }
+    };
+
+    private volatile Executor executor;
+    private volatile MagCalibration current = MagCalibration.IDENTITY;
+    private volatile int fits = 0;
+    private volatile int rejectedFits = 0;
+
+    public MagCalibrator() {
+        reset();
+    }
+
+    /**
+     * @param executor runs the fits, null to stop fitting (samples still feed the estimate)
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Starts over with the given calibration, e.g. one saved for the board earlier.
+     * Ignored if calibration is null.
+     */
+    public void setCalibration(MagCalibration calibration) {
+        if (calibration != null) {
+            current = calibration;
+        }
+    }
+
+    public MagCalibration getCalibration() {
+        return current;
+    }
+
+    /**
+     * Number of samples in the running fit.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    public int getFits() {
+        return fits;
+    }
+
+    public int getRejectedFits() {
+        return rejectedFits;
+    }
+
+    /**
+     * Forgets the running fit, but keeps the current calibration.
+     */
+    public void reset() {
+        for (int i = 0; i < 9; i++) {
+            theta[i] = 0;
+            for (int j = 0; j < 9; j++) {
+                covariance[i * 9 + j] = i == j ? INITIAL_COVARIANCE : 0;
+            }
+        }
+        samples = 0;
+    }
+
+    /**
+     * Adds a raw sample to the fit.
+     */
+    public void add(float x, float y, float z) {
+        double sx = x / SCALE;
+        double sy = y / SCALE;
+        double sz = z / SCALE;
+        double[] phi = regressor;
+        phi[0] = sx * sx;
+        phi[1] = sy * sy;
+        phi[2] = sz * sz;
+        phi[3] = 2 * sx * sy;
+        phi[4] = 2 * sx * sz;
+        phi[5] = 2 * sy * sz;
+        phi[6] = 2 * sx;
+        phi[7] = 2 * sy;
+        phi[8] = 2 * sz;
+
+        // forget old samples, unless P is as uncertain as it started: while the board only
+        // turns about one axis, the directions it doesn't excite would grow without bound
+        double[] P = covariance;
+        double trace = 0;
+        for (int i = 0; i < 9; i++) {
+            trace += P[i * 9 + i];
+        }
+        double forgetting = trace < 9 * INITIAL_COVARIANCE ? FORGETTING_FACTOR : 1.0;
+
+        // gain = P phi / (lambda + phi' P phi)
+        double denominator = forgetting;
+        double prediction = 0.0;
+        for (int i = 0; i < 9; i++) {
+            double sum = 0;
+            for (int j = 0; j < 9; j++) {
+                sum += P[i * 9 + j] * phi[j];
+            }
+            gain[i] = sum;
+            denominator += phi[i] * sum;
+            prediction += phi[i] * theta[i];
+        }
+        double error = 1.0 - prediction;
+
+        // P = (P - gain gain' / denominator) / lambda, keeping P exactly symmetric
+        for (int i = 0; i < 9; i++) {
+            for (int j = i; j < 9; j++) {
+                double value = (P[i * 9 + j] - gain[i] * gain[j] / denominator) / forgetting;
+                P[i * 9 + j] = value;
+                P[j * 9 + i] = value;
+            }
+        }
+        for (int i = 0; i < 9; i++) {
+            theta[i] += gain[i] / denominator * error;
+        }
+
+        samples++;
+        if (samples >= MIN_SAMPLES && samples % FIT_INTERVAL == 0) {
+            scheduleFit();
+        }
+    }
+
+    /**
+     * Writes the sample x, y, z corrected with the current calibration into out.
+     */
+    public void correct(float x, float y, float z, float[] out) {
+        current.correct(x, y, z, out);
+    }
+
+    private void scheduleFit() {
+        Executor executor = this.executor;
+        // skip this one if the last fit is still running
+        if (executor == null || !fitting.compareAndSet(false, true)) {
+            return;
+        }
+        System.arraycopy(theta, 0, fitTheta, 0, 9);
+        fitSamples = samples;
+        try {
+            executor.execute(fit);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            fitting.set(false);
+        }
+    }
+
+    /**
+     * Turns the ellipsoid parameters into a calibration.
+     * @return null if the parameters don't describe a plausible ellipsoid
+     */
+    static MagCalibration solve(double[] theta, long samples) {
+        double[] A = {
+                theta[0], theta[3], theta[4],
+                theta[3], theta[1], theta[5],
+                theta[4], theta[5], theta[2]};
+
+        // the center solves A c = -v
+        double[] inverse = new double[9];
+        if (!invert(A, inverse)) {
+            return null;
+        }
+        double[] center = new double[3];
+        for (int i = 0; i < 3; i++) {
+            center[i] = -(inverse[i * 3] * theta[6] + inverse[i * 3 + 1] * theta[7] + inverse[i * 3 + 2] * theta[8]);
+        }
+
+        // (x - c)' A (x - c) = 1 + c' A c, normalize so the right side is 1
+        double k = 1.0;
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                k += center[i] * A[i * 3 + j] * center[j];
+            }
+        }
+        if (!(k > 0)) {
+            return null;
+        }
+        for (int i = 0; i < 9; i++) {
+            A[i] /= k;
+        }
+
+        double[] eigenvalues = new double[3];
+        double[] eigenvectors = new double[9];
+        symmetricEigen(A, eigenvalues, eigenvectors);
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double eigenvalue : eigenvalues) {
+            if (!(eigenvalue > 0)) {
+                return null;
+            }
+            min = Math.min(min, eigenvalue);
+            max = Math.max(max, eigenvalue);
+        }
+        // the semi axes are 1 / sqrt(eigenvalue)
+        if (Math.sqrt(max / min) > MAX_AXIS_RATIO) {
+            return null;
+        }
+        // keep the field strength, the geometric mean of the semi axes
+        double field = Math.pow(eigenvalues[0] * eigenvalues[1] * eigenvalues[2], -1.0 / 6.0);
+        if (field * SCALE < MIN_FIELD || field * SCALE > MAX_FIELD) {
+            return null;
+        }
+
+        // softIron = field * V sqrt(D) V'
+        double[] softIron = new double[9];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                double sum = 0;
+                for (int n = 0; n < 3; n++) {
+                    sum += eigenvectors[i * 3 + n] * Math.sqrt(eigenvalues[n]) * eigenvectors[j * 3 + n];
+                }
+                softIron[i * 3 + j] = field * sum;
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            center[i] *= SCALE;
+        }
+        return new MagCalibration(center, softIron, field * SCALE, samples);
+    }
+
+    private static boolean invert(double[] m, double[] out) {
+        double c0 = m[4] * m[8] - m[5] * m[7];
+        double c1 = m[5] * m[6] - m[3] * m[8];
+        double c2 = m[3] * m[7] - m[4] * m[6];
+        double det = m[0] * c0 + m[1] * c1 + m[2] * c2;
+        if (det == 0 || Double.isNaN(det)) {
+            return false;
+        }
+        out[0] = c0 / det;
+        out[1] = (m[2] * m[7] - m[1] * m[8]) / det;
+        out[2] = (m[1] * m[5] - m[2] * m[4]) / det;
+        out[3] = c1 / det;
+        out[4] = (m[0] * m[8] - m[2] * m[6]) / det;
+        out[5] = (m[2] * m[3] - m[0] * m[5]) / det;
+        out[6] = c2 / det;
+        out[7] = (m[1] * m[6] - m[0] * m[7]) / det;
+        out[8] = (m[0] * m[4] - m[1] * m[3]) / det;
+        return true;
+    }
+
+    /**
+     * Cyclic Jacobi eigen decomposition of the symmetric 3x3 matrix m, which is overwritten.
+     * @param values receives the eigenvalues
+     * @param vectors receives the eigenvectors as columns, row major
+     */
+    static void symmetricEigen(double[] m, double[] values, double[] vectors) {
+        for (int i = 0; i < 9; i++) {
+            vectors[i] = i % 4 == 0 ? 1 : 0;
+        }
+        for (int sweep = 0; sweep < JACOBI_SWEEPS; sweep++) {
+            double offDiagonal = Math.abs(m[1]) + Math.abs(m[2]) + Math.abs(m[5]);
+            if (offDiagonal < 1e-15) {
+                break;
+            }
+            for (int p = 0; p < 2; p++) {
+                for (int q = p + 1; q < 3; q++) {
+                    double apq = m[p * 3 + q];
+                    if (apq == 0) {
+                        continue;
+                    }
+                    // the rotation in the p, q plane that zeroes m[p][q]
+                    double theta = (m[q * 3 + q] - m[p * 3 + p]) / (2 * apq);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < 3; k++) {
+                        double mkp = m[k * 3 + p];
+                        double mkq = m[k * 3 + q];
+                        m[k * 3 + p] = c * mkp - s * mkq;
+                        m[k * 3 + q] = s * mkp + c * mkq;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double mpk = m[p * 3 + k];
+                        double mqk = m[q * 3 + k];
+                        m[p * 3 + k] = c * mpk - s * mqk;
+                        m[q * 3 + k] = s * mpk + c * mqk;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double vkp = vectors[k * 3 + p];
+                        double vkq = vectors[k * 3 + q];
+                        vectors[k * 3 + p] = c * vkp - s * vkq;
+                        vectors[k * 3 + q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            values[i] = m[i * 4];
+        }
+    }
+}
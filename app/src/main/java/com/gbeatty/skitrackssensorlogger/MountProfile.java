@@ -0,0 +1,147 @@
+package com.gbeatty.skitrackssensorlogger;
+
+/**
+ * Where a board is mounted. Our post processing application to compute quaternions expects a
+ * North East Down reference frame: when facing north, +X points north, +Y points east and +Z
+ * points down. The profile maps a sample from the board's axes onto that frame.
+ *
+ * The mapping is a rotation matrix computed once per profile, and applied to primitive floats
+ * so correcting a sample allocates nothing. The magnetometer on the board is rotated 180
+ * degrees around the x axis relative to the accel and gyro, which is folded into a second
+ * matrix used for mag samples.
+ */
+public final class MountProfile {
+
+    // the magnetometer's axes are the board's x, -y, -z, declared before the profiles that use it
+    private static final float[] MAG_TO_BOARD = {
+            1, 0, 0,
+            0, -1, 0,
+            0, 0, -1};
+
+    /**
+     * On the side of the helmet: when facing north +Y points east, +Z points north, and +X points up.
+     */
+    public static final MountProfile HELMET = new MountProfile("helmet", new float[]{
+            0, 0, 1,
+            0, 1, 0,
+            -1, 0, 0});
+
+    /**
+     * On a chest strap: when facing north +X points east, +Y points up, and +Z points south
+     * (into the chest).
+     */
+    public static final MountProfile CHEST = new MountProfile("chest", new float[]{
+            0, 0, -1,
+            1, 0, 0,
+            0, -1, 0});
+
+    /**
+     * Flat on the ski in front of the binding: +X points to the tip, +Y to the left and +Z up.
+     */
+    public static final MountProfile SKI = new MountProfile("ski", new float[]{
+            1, 0, 0,
+            0, -1, 0,
+            0, 0, -1});
+
+    /**
+     * On the back of the boot cuff: when facing north +X points up, +Y points west, and +Z
+     * points south (away from the boot).
+     */
+    public static final MountProfile BOOT = new MountProfile("boot", new float[]{
+            0, 0, -1,
+            0, -1, 0,
+            -1, 0, 0});
+
+    // how far rows may be from unit length and orthogonal in fromMatrix
+    private static final float ROTATION_TOLERANCE = 1e-3f;
+
+    private final String name;
+    // row major, ned = matrix * board
+    private final float[] matrix;
+    private final float[] magMatrix;
+
+    private MountProfile(String name, float[] matrix) {
+        this.name = name;
+        this.matrix = matrix.clone();
+        this.magMatrix = multiply(this.matrix, MAG_TO_BOARD);
+    }
+
+    /**
+     * A profile for an arbitrary mount, e.g. one calibrated on the slope.
+     * @param matrix row major rotation from the board frame to North East Down
+     * @throws IllegalArgumentException if matrix isn't a rotation
+     */
+    public static MountProfile fromMatrix(String name, float[] matrix) {
+        if (matrix.length != 9) {
+            throw new IllegalArgumentException("expected a 3x3 matrix, got " + matrix.length + " values");
+        }
+        for (int i = 0; i < 3; i++) {
+            for (int j = i; j < 3; j++) {
+                float dot = matrix[i * 3] * matrix[j * 3] + matrix[i * 3 + 1] * matrix[j * 3 + 1] + matrix[i * 3 + 2] * matrix[j * 3 + 2];
+                if (Math.abs(dot - (i == j ? 1.0f : 0.0f)) > ROTATION_TOLERANCE) {
+                    throw new IllegalArgumentException("not a rotation matrix, rows " + i + " and " + j + " give " + dot);
+                }
+            }
+        }
+        if (determinant(matrix) < 0) {
+            throw new IllegalArgumentException("not a rotation matrix, it mirrors");
+        }
+        return new MountProfile(name, matrix);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param out receives the row major rotation from the board frame to North East Down
+     */
+    public void getMatrix(float[] out) {
+        System.arraycopy(matrix, 0, out, 0, 9);
+    }
+
+    /**
+     * Writes the accel or gyro sample x, y, z in the North East Down frame into out.
+     */
+    public void correct(float x, float y, float z, float[] out) {
+        apply(matrix, x, y, z, out);
+    }
+
+    /**
+     * Writes the magnetometer sample x, y, z, as it comes from the magnetometer, in the North
+     * East Down frame into out.
+     */
+    public void correctMag(float x, float y, float z, float[] out) {
+        apply(magMatrix, x, y, z, out);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static void apply(float[] m, float x, float y, float z, float[] out) {
+        float nx = m[0] * x + m[1] * y + m[2] * z;
+        float ny = m[3] * x + m[4] * y + m[5] * z;
+        float nz = m[6] * x + m[7] * y + m[8] * z;
+        out[0] = nx;
+        out[1] = ny;
+        out[2] = nz;
+    }
+
+    private static float[] multiply(float[] a, float[] b) {
+        float[] result = new float[9];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                result[i * 3 + j] = a[i * 3] * b[j] + a[i * 3 + 1] * b[3 + j] + a[i * 3 + 2] * b[6 + j];
+            }
+        }
+        return result;
+    }
+
+    private static float determinant(float[] m) {
+        return m[0] * (m[4] * m[8] - m[5] * m[7])
+                - m[1] * (m[3] * m[8] - m[5] * m[6])
+                + m[2] * (m[3] * m[7] - m[4] * m[6]);
+    }
+}
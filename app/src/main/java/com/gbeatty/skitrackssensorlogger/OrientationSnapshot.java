@@ -0,0 +1,77 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latest orientation of a filter, a rotation matrix with the sample time it belongs to,
+ * published by the thread running the filter and read by any number of other threads (the
+ * reporting timer, the GL thread) without locks and without allocating.
+ *
+ * It's a sequence lock over two buffers. The sequence is odd while a publish is in progress,
+ * and each publish goes to the buffer the previous one didn't use, so a reader copies the last
+ * complete orientation while the next one is being written. A reader only has to retry when
+ * the writer got two publishes ahead of it during its copy. The values are kept in atomic
+ * arrays so the copy is ordered against the sequence reads under the Java memory model.
+ *
+ * Only one thread may publish.
+ */
+public final class OrientationSnapshot {
+
+    private static final int SIZE = 9;
+
+    private final AtomicIntegerArray matrices = new AtomicIntegerArray(2 * SIZE);
+    private final AtomicLongArray times = new AtomicLongArray(2);
+    private volatile long sequence = 0;
+
+    /**
+     * Publishes a new orientation. Called by the filter's thread only.
+     * @param matrix row major 3x3 rotation matrix
+     */
+    public void publish(float[] matrix, long timeNanos) {
+        long start = sequence + 1;
+        sequence = start;
+        // the buffer the last complete publish didn't use
+        int buffer = (int) ((start >> 1) + 1) & 1;
+        int offset = buffer * SIZE;
+        for (int i = 0; i < SIZE; i++) {
+            matrices.lazySet(offset + i, Float.floatToRawIntBits(matrix[i]));
+        }
+        times.lazySet(buffer, timeNanos);
+        sequence = start + 1;
+    }
+
+    /**
+     * Number of complete publishes, so a reader can tell whether anything changed.
+     */
+    public long getVersion() {
+        return sequence >> 1;
+    }
+
+    /**
+     * Copies the latest complete orientation.
+     * @param matrix receives the row major 3x3 rotation matrix
+     * @return the sample time of the orientation, or -1 if nothing was published yet (matrix
+     *         is left alone then)
+     */
+    public long read(float[] matrix) {
+        while (true) {
+            long before = sequence;
+            long version = before >> 1;
+            if (version == 0) {
+                return -1;
+            }
+            int buffer = (int) (version & 1);
+            int offset = buffer * SIZE;
+            for (int i = 0; i < SIZE; i++) {
+                matrix[i] = Float.intBitsToFloat(matrices.get(offset + i));
+            }
+            long time = times.get(buffer);
+            // the buffer is written again by the publish of version + 2, which makes the sequence
+            // reach 2 * version + 3
+            if (sequence - 2 * version < 3) {
+                return time;
+            }
+        }
+    }
+}
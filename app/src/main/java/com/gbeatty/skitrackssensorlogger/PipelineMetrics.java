@@ -0,0 +1,89 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters collected by the {@link SensorPipeline} processing thread.
+ *
+ * Latency is measured from the arrival of the gyro sample of the first frame in a drain until
+ * the drain that emits it completes, so it includes the time the synchronizer held the frame
+ * back waiting for the mag sample after it. It is kept as a histogram with power of two
+ * microsecond buckets: bucket i counts latencies in [2^i, 2^(i+1)) us.
+ *
+ * The processing thread only ever adds to the counters. {@link #report} is called from a
+ * reporting thread and takes (and resets) everything collected since the previous report.
+ */
+public class PipelineMetrics {
+    public static final int LATENCY_BUCKETS = 24;
+
+    private final AtomicLong drains = new AtomicLong(0);
+    private final AtomicLong frames = new AtomicLong(0);
+    private final AtomicLong maxBatch = new AtomicLong(0);
+    private final AtomicLong maxQueueDepth = new AtomicLong(0);
+    private final AtomicLongArray latency = new AtomicLongArray(LATENCY_BUCKETS);
+
+    void recordDrain(int batchSize, int queueDepth, long latencyNanos) {
+        drains.incrementAndGet();
+        frames.addAndGet(batchSize);
+        if (batchSize > maxBatch.get()) {
+            maxBatch.set(batchSize);
+        }
+        if (queueDepth > maxQueueDepth.get()) {
+            maxQueueDepth.set(queueDepth);
+        }
+        latency.incrementAndGet(latencyBucket(latencyNanos));
+    }
+
+    static int latencyBucket(long latencyNanos) {
+        long micros = latencyNanos / 1000;
+        if (micros < 1) {
+            return 0;
+        }
+        int bucket = 63 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, LATENCY_BUCKETS - 1);
+    }
+
+    /**
+     * Summarizes and resets everything recorded since the last call.
+     * @param elapsedNanos time since the last report, used for the frame rate
+     */
+    public String report(long elapsedNanos) {
+        long numDrains = drains.getAndSet(0);
+        long numFrames = frames.getAndSet(0);
+        long batch = maxBatch.getAndSet(0);
+        long depth = maxQueueDepth.getAndSet(0);
+
+        long[] counts = new long[LATENCY_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            counts[i] = latency.getAndSet(i, 0);
+            total += counts[i];
+        }
+
+        double rate = elapsedNanos > 0 ? numFrames * 1000000000.0 / elapsedNanos : 0.0;
+        return "Rate: " + Math.round(rate)
+                + "  Drains: " + numDrains
+                + "  Avg batch: " + (numDrains > 0 ? numFrames / numDrains : 0)
+                + "  Max batch: " + batch
+                + "  Max queue depth: " + depth
+                + "  Latency p50 < " + percentileMicros(counts, total, 0.5) + "us"
+                + "  p99 < " + percentileMicros(counts, total, 0.99) + "us";
+    }
+
+    // upper bound of the bucket containing the given percentile
+    private static long percentileMicros(long[] counts, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= threshold) {
+                return 1L << (i + 1);
+            }
+        }
+        return 1L << counts.length;
+    }
+}
@@ -0,0 +1,242 @@
+package com.gbeatty.skitrackssensorlogger;
+
+/**
+ * Splits a session into lift rides and runs, and runs into turns, as the frames come out of
+ * sensor fusion, so a session can be summarized and indexed without post processing.
+ *
+ * Lift or run: riding a lift the GPS altitude climbs while the board is quiet, on a run the
+ * altitude drops or, without a GPS fix, the board is busy. Activity is the spread of the accel
+ * magnitude over the last two seconds. A new state has to hold for {@link #STATE_HOLD_NANOS}
+ * of sample time before it's reported, so a short stop or a bump on the chair doesn't count.
+ *
+ * Turns: the rate of turning about the vertical, from the gyro and the fusion's rotation
+ * matrix, with hysteresis: a turn starts when the rate passes {@link #TURN_START_RATE} and
+ * ends when it falls back below {@link #TURN_END_RATE}, i.e. around the zero crossing before
+ * the next turn. Turns aren't counted on a lift.
+ *
+ * Every change is reported as an event at the sample time it was detected, which for a lift
+ * or run is {@link #STATE_HOLD_NANOS} after it began:
+ * <pre>
+ *   EVENT_LIFT, EVENT_RUN   value: altitude where it began (m, NaN without GPS),
+ *                           seconds: how long the previous lift or run lasted, 0 for the first
+ *   EVENT_TURN              value: peak rate (deg/s, positive turning left), seconds: duration
+ * </pre>
+ *
+ * update is called by the pipeline's drain, addLocation by the location callbacks. The
+ * pipeline resets it when it starts, so every session starts over.
+ */
+public class RunSegmenter {
+
+    public static final int EVENT_LIFT = 1;
+    public static final int EVENT_RUN = 2;
+    public static final int EVENT_TURN = 3;
+
+    public static final int STATE_UNKNOWN = 0;
+    public static final int STATE_LIFT = EVENT_LIFT;
+    public static final int STATE_RUN = EVENT_RUN;
+
+    public static final long STATE_HOLD_NANOS = 20000000000L;
+    // deg/s, the MetaWear gyro's unit
+    public static final float TURN_START_RATE = 20.0f;
+    public static final float TURN_END_RATE = 5.0f;
+
+    private static final long MIN_TURN_NANOS = 300000000L;
+    // two seconds at 100Hz
+    private static final int ACTIVITY_WINDOW = 200;
+    // g, standard deviation of the accel magnitude
+    private static final double QUIET_ACTIVITY = 0.08;
+    private static final double BUSY_ACTIVITY = 0.15;
+    // m/s, lifts climb at 2 to 6 m/s
+    private static final float MIN_VERTICAL_SPEED = 0.5f;
+    private static final float VERTICAL_SPEED_TIME_CONSTANT = 20.0f;
+    // without a fix this long the vertical speed is unknown
+    private static final long MAX_FIX_AGE_NANOS = 30000000000L;
+    // smoothing of the turn rate per frame
+    private static final float TURN_RATE_GAIN = 0.2f;
+
+    /**
+     * Receives the events, on the thread calling update.
+     */
+    public interface Listener {
+        void onEvent(long timeNanos, int type, float value, float seconds);
+    }
+
+    private final Listener listener;
+
+    // written by the location callbacks
+    private double lastAltitude = Double.NaN;
+    private long lastFixNanos = 0;
+    private volatile float verticalSpeed = 0;
+    private volatile float altitude = Float.NaN;
+    private volatile long fixNanos = 0;
+
+    // owned by the thread calling update
+    private final SlidingWindowStats activity = new SlidingWindowStats(ACTIVITY_WINDOW);
+    private int state = STATE_UNKNOWN;
+    // when the current state began, not when it was recognized
+    private long stateSince = 0;
+    private int candidate = STATE_UNKNOWN;
+    private long candidateSince = 0;
+    private float candidateAltitude = Float.NaN;
+
+    private float turnRate = 0;
+    private int turnDirection = 0;
+    private long turnStart = 0;
+    private float turnPeak = 0;
+
+    private volatile int lifts = 0;
+    private volatile int runs = 0;
+    private volatile int turns = 0;
+
+    public RunSegmenter(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Forgets the state, the turn in progress, the counts and the GPS fixes. Call while no
+     * frames are being added, a fix added meanwhile may be lost.
+     */
+    public void reset() {
+        lastAltitude = Double.NaN;
+        lastFixNanos = 0;
+        verticalSpeed = 0;
+        altitude = Float.NaN;
+        fixNanos = 0;
+
+        activity.clear();
+        state = STATE_UNKNOWN;
+        stateSince = 0;
+        candidate = STATE_UNKNOWN;
+        candidateSince = 0;
+        candidateAltitude = Float.NaN;
+
+        turnRate = 0;
+        turnDirection = 0;
+        turnStart = 0;
+        turnPeak = 0;
+
+        lifts = 0;
+        runs = 0;
+        turns = 0;
+    }
+
+    /**
+     * Adds a GPS fix.
+     * @param timeNanos time of the fix, on the same clock as the sample times
+     * @param altitude in m
+     */
+    public void addLocation(long timeNanos, double altitude) {
+        if (lastFixNanos != 0 && timeNanos > lastFixNanos) {
+            float dt = (timeNanos - lastFixNanos) / 1e9f;
+            float speed = (float) ((altitude - lastAltitude) / dt);
+            float gain = dt / (VERTICAL_SPEED_TIME_CONSTANT + dt);
+            verticalSpeed += gain * (speed - verticalSpeed);
+        }
+        lastAltitude = altitude;
+        lastFixNanos = timeNanos;
+        this.altitude = (float) altitude;
+        fixNanos = timeNanos;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public int getLifts() {
+        return lifts;
+    }
+
+    public int getRuns() {
+        return runs;
+    }
+
+    public int getTurns() {
+        return turns;
+    }
+
+    /**
+     * Processes the frames of a block.
+     * @param rotation the fusion's rotation matrix after the block, for the vertical axis
+     */
+    public void update(FrameBlock frames, float[] rotation) {
+        // the vertical changes slowly enough to use one matrix for a block
+        float upX = rotation[6];
+        float upY = rotation[7];
+        float upZ = rotation[8];
+        for (int i = 0; i < frames.count; i++) {
+            long time = frames.timeNanos[i];
+            float ax = frames.ax[i];
+            float ay = frames.ay[i];
+            float az = frames.az[i];
+            activity.add(Math.sqrt(ax * ax + ay * ay + az * az));
+            updateState(time);
+
+            float rate = upX * frames.gx[i] + upY * frames.gy[i] + upZ * frames.gz[i];
+            turnRate += TURN_RATE_GAIN * (rate - turnRate);
+            if (state != STATE_LIFT) {
+                updateTurn(time);
+            }
+        }
+    }
+
+    private void updateState(long time) {
+        if (!activity.isFull()) {
+            return;
+        }
+        double spread = activity.getStdDev();
+        boolean haveFix = fixNanos != 0 && time - fixNanos < MAX_FIX_AGE_NANOS;
+        float climb = haveFix ? verticalSpeed : 0;
+
+        int next;
+        if (climb > MIN_VERTICAL_SPEED && spread < QUIET_ACTIVITY) {
+            next = STATE_LIFT;
+        } else if (climb < -MIN_VERTICAL_SPEED || (!haveFix && spread > BUSY_ACTIVITY)) {
+            next = STATE_RUN;
+        } else {
+            // nothing conclusive, keep what we have
+            return;
+        }
+
+        if (next != candidate) {
+            candidate = next;
+            candidateSince = time;
+            candidateAltitude = haveFix ? altitude : Float.NaN;
+        } else if (candidate != state && time - candidateSince >= STATE_HOLD_NANOS) {
+            float lasted = state == STATE_UNKNOWN ? 0 : (candidateSince - stateSince) / 1e9f;
+            state = candidate;
+            stateSince = candidateSince;
+            if (state == STATE_LIFT) {
+                lifts++;
+                endTurn(time);
+            } else {
+                runs++;
+            }
+            listener.onEvent(time, state, candidateAltitude, lasted);
+        }
+    }
+
+    private void updateTurn(long time) {
+        if (turnDirection == 0) {
+            if (Math.abs(turnRate) > TURN_START_RATE) {
+                turnDirection = turnRate > 0 ? 1 : -1;
+                turnStart = time;
+                turnPeak = turnRate;
+            }
+        } else if (turnRate * turnDirection < TURN_END_RATE) {
+            endTurn(time);
+        } else if (Math.abs(turnRate) > Math.abs(turnPeak)) {
+            turnPeak = turnRate;
+        }
+    }
+
+    private void endTurn(long time) {
+        if (turnDirection == 0) {
+            return;
+        }
+        turnDirection = 0;
+        if (time - turnStart >= MIN_TURN_NANOS) {
+            turns++;
+            listener.onEvent(time, EVENT_TURN, turnPeak, (time - turnStart) / 1e9f);
+        }
+    }
+}
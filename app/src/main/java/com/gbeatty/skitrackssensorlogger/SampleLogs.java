@@ -0,0 +1,37 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Opens recorded sensor logs without the caller having to know which format they're in.
+ */
+public final class SampleLogs {
+
+    private SampleLogs() {
+    }
+
+    /**
+     * Opens a log written by BinaryLogWriter or CompressedLogWriter.
+     */
+    public static SampleSource open(File file) throws IOException {
+        int magic;
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            magic = in.readInt();
+        } finally {
+            in.close();
+        }
+
+        if (magic == CompressedLogWriter.MAGIC) {
+            return new CompressedLogReader(file);
+        }
+        // the binary log is little endian
+        if (Integer.reverseBytes(magic) == BinaryLogWriter.MAGIC) {
+            return new BinaryLogReader(file);
+        }
+        throw new IOException(file + " is not a sensor log");
+    }
+}
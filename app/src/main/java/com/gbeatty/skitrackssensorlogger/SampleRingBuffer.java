@@ -0,0 +1,191 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed capacity single producer / single consumer queue of timestamped 3 axis samples.
+ *
+ * Samples are stored in flat primitive arrays (one timestamp and x, y, z per slot) that are
+ * allocated once up front, so neither the producer (the MetaWear message handlers) nor the
+ * consumer (the data processing task) allocate anything once the buffer is running.
+ *
+ * When the buffer is full the producer either drops the new sample or overwrites the oldest
+ * unread one, depending on the {@link OverflowPolicy}. Both cases are counted.
+ *
+ * A sample can carry the {@link System#nanoTime()} it was received at as well as its sample
+ * time, which is on the board's clock, for measuring how long it takes to get processed.
+ */
+public class SampleRingBuffer {
+
+    public enum OverflowPolicy { DROP_NEWEST, OVERWRITE_OLDEST }
+
+    private final int capacity;
+    private final int mask;
+    private final OverflowPolicy policy;
+
+    private final long[] times;
+    private final long[] received;
+    private final float[] values;
+
+    // head is the next slot to read, tail the next slot to write. Both only ever increase.
+    // The producer may advance head too when overwriting, hence the CAS on the consumer side.
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+
+    private final AtomicLong droppedSamples = new AtomicLong(0);
+    private final AtomicLong overwrittenSamples = new AtomicLong(0);
+
+    // consumer owned scratch space for drainTo
+    private final long[] drainTime = new long[1];
+    private final float[] drainXyz = new float[3];
+
+    /**
+     * @param minCapacity minimum number of samples the buffer can hold, rounded up to a power of two
+     * @param policy what to do with a new sample when the buffer is full
+     */
+    public SampleRingBuffer(int minCapacity, OverflowPolicy policy) {
+        if (minCapacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + minCapacity);
+        }
+        int cap = Integer.highestOneBit(minCapacity);
+        if (cap < minCapacity) {
+            cap <<= 1;
+        }
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.policy = policy;
+        this.times = new long[cap];
+        this.received = new long[cap];
+        this.values = new float[cap * 3];
+    }
+
+    /**
+     * Producer side. Adds one sample.
+     * @return false if the sample was dropped because the buffer is full
+     */
+    public boolean offer(long timeNanos, float x, float y, float z) {
+        return offer(timeNanos, 0, x, y, z);
+    }
+
+    /**
+     * Producer side. Adds one sample with the time it was received.
+     * @param receivedNanos the {@link System#nanoTime()} the sample was received at, 0 if unknown
+     * @return false if the sample was dropped because the buffer is full
+     */
+    public boolean offer(long timeNanos, long receivedNanos, float x, float y, float z) {
+        long t = tail.get();
+        while (t - head.get() >= capacity) {
+            if (policy == OverflowPolicy.DROP_NEWEST) {
+                droppedSamples.incrementAndGet();
+                return false;
+            }
+            long h = t - capacity;
+            if (head.compareAndSet(h, h + 1)) {
+                overwrittenSamples.incrementAndGet();
+            }
+        }
+
+        int slot = (int) t & mask;
+        times[slot] = timeNanos;
+        received[slot] = receivedNanos;
+        values[slot * 3] = x;
+        values[slot * 3 + 1] = y;
+        values[slot * 3 + 2] = z;
+
+        // publish the slot contents before the new tail becomes visible to the consumer
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side. Removes the oldest sample.
+     * @param time receives the sample time in time[0], and the time the sample was received in
+     *             time[1] if it has room for it
+     * @param xyz receives the sample values in xyz[0..2]
+     * @return false if the buffer was empty
+     */
+    public boolean poll(long[] time, float[] xyz) {
+        while (true) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                return false;
+            }
+            int slot = (int) h & mask;
+            long sampleTime = times[slot];
+            long receivedTime = received[slot];
+            float x = values[slot * 3];
+            float y = values[slot * 3 + 1];
+            float z = values[slot * 3 + 2];
+
+            // if the producer overwrote this slot while we were copying it the CAS fails
+            // and we retry with the new oldest sample
+            if (head.compareAndSet(h, h + 1)) {
+                time[0] = sampleTime;
+                if (time.length > 1) {
+                    time[1] = receivedTime;
+                }
+                xyz[0] = x;
+                xyz[1] = y;
+                xyz[2] = z;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Consumer side. Removes up to maxSamples samples in one pass.
+     * @param timesOut receives sample times starting at index 0
+     * @param xyzOut receives sample values packed x, y, z starting at index 0
+     * @return the number of samples copied
+     */
+    public int drainTo(long[] timesOut, float[] xyzOut, int maxSamples) {
+        int count = 0;
+        long[] time = drainTime;
+        float[] xyz = drainXyz;
+        while (count < maxSamples && poll(time, xyz)) {
+            timesOut[count] = time[0];
+            xyzOut[count * 3] = xyz[0];
+            xyzOut[count * 3 + 1] = xyz[1];
+            xyzOut[count * 3 + 2] = xyz[2];
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Consumer side. Discards everything currently in the buffer.
+     */
+    public void clear() {
+        while (true) {
+            long h = head.get();
+            long t = tail.get();
+            if (h >= t || head.compareAndSet(h, t)) {
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples.get();
+    }
+
+    public long getOverwrittenSamples() {
+        return overwrittenSamples.get();
+    }
+}
@@ -0,0 +1,29 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A recorded stream of timestamped accelerometer, gyro and magnetometer samples,
+ * merged across sensors in time order.
+ *
+ * Logs can also hold events detected while logging, e.g. the start of a run, as records of
+ * the pseudo sensor {@link #SENSOR_EVENT}. Sources that don't know about events skip them.
+ */
+public interface SampleSource extends Closeable {
+    int SENSOR_ACCEL = 1;
+    int SENSOR_GYRO = 2;
+    int SENSOR_MAG = 3;
+    /**
+     * An event, x holds the event type and y and z its values, see {@link RunSegmenter}.
+     */
+    int SENSOR_EVENT = 4;
+
+    /**
+     * Reads the next sample.
+     * @param time receives the sample time in nanoseconds in time[0]
+     * @param xyz receives the sample values in xyz[0..2]
+     * @return the sensor the sample came from, or -1 at the end of the recording
+     */
+    int next(long[] time, float[] xyz) throws IOException;
+}
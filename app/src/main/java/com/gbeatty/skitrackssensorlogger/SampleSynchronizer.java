@@ -0,0 +1,232 @@
+package com.gbeatty.skitrackssensorlogger;
+
+/**
+ * Aligns the gyro, accelerometer and magnetometer streams on a common time grid.
+ *
+ * The gyro samples define the grid since they drive the orientation integration. For every
+ * gyro sample the accelerometer is linearly interpolated to the gyro sample time and the
+ * (much slower) magnetometer is spherically interpolated between the two magnetometer samples
+ * that bracket it. A frame is only emitted once both bracketing samples have arrived, unless a
+ * stream has stalled for longer than its maximum wait, in which case its latest value is held.
+ * At the end of a recording every stream counts as stalled, so no gyro sample is left waiting.
+ *
+ * Everything runs on the consumer thread and nothing is allocated after construction.
+ */
+public class SampleSynchronizer {
+
+    private static final int READY = 0;
+    private static final int WAIT = 1;
+    private static final int TOO_EARLY = 2;
+
+    private static final float EPSILON = 0.000001f;
+
+    private final Track accel;
+    private final Track mag;
+
+    // the gyro sample time and the time it was received
+    private final long[] gyroTime = new long[2];
+    private final float[] gyroSample = new float[3];
+    private boolean gyroPending = false;
+    private long firstReceivedNanos = 0;
+
+    private final float[] accelSample = new float[3];
+    private final float[] magSample = new float[3];
+
+    // written by the thread calling process, read by whoever reports it
+    private volatile long droppedGyroSamples = 0;
+
+    /**
+     * @param maxAccelWaitNanos how long past the last accelerometer sample to wait for the next one
+     * @param maxMagWaitNanos how long past the last magnetometer sample to wait for the next one
+     */
+    public SampleSynchronizer(long maxAccelWaitNanos, long maxMagWaitNanos) {
+        accel = new Track(maxAccelWaitNanos, false);
+        mag = new Track(maxMagWaitNanos, true);
+    }
+
+    /**
+     * Pulls as many samples as can currently be aligned from the input buffers and appends the
+     * resulting frames to the block, stopping when the block is full or a stream needs to wait.
+     * @return the number of frames appended
+     */
+    public int process(SampleRingBuffer gyroIn, SampleRingBuffer accelIn, SampleRingBuffer magIn, FrameBlock out) {
+        return process(gyroIn, accelIn, magIn, out, false);
+    }
+
+    /**
+     * @param ended true once nothing more will be added to the input buffers: instead of waiting
+     *              for a stream its latest value is held, and gyro samples from before a stream
+     *              that never started are dropped
+     * @return the number of frames appended
+     */
+    public int process(SampleRingBuffer gyroIn, SampleRingBuffer accelIn, SampleRingBuffer magIn, FrameBlock out, boolean ended) {
+        int emitted = 0;
+        firstReceivedNanos = 0;
+        while (!out.isFull()) {
+            if (!gyroPending) {
+                if (!gyroIn.poll(gyroTime, gyroSample)) {
+                    break;
+                }
+                gyroPending = true;
+            }
+
+            long t = gyroTime[0];
+            int accelState = accel.advanceTo(t, accelIn, ended);
+            int magState = mag.advanceTo(t, magIn, ended);
+
+            if (accelState == TOO_EARLY || magState == TOO_EARLY) {
+                // gyro sample from before the other streams started, there is nothing to pair it with
+                gyroPending = false;
+                droppedGyroSamples++;
+                continue;
+            }
+            if (accelState == WAIT || magState == WAIT) {
+                break;
+            }
+
+            accel.sample(t, accelSample);
+            mag.sample(t, magSample);
+            out.add(t, gyroSample, accelSample, magSample);
+            if (emitted == 0) {
+                firstReceivedNanos = gyroTime[1];
+            }
+            gyroPending = false;
+            emitted++;
+        }
+        return emitted;
+    }
+
+    public void reset() {
+        gyroPending = false;
+        accel.reset();
+        mag.reset();
+    }
+
+    /**
+     * @return the time the gyro sample of the first frame appended by the last {@link #process}
+     * was received, however long it was held back waiting for the other streams, 0 if no frame
+     * was appended or the time is unknown
+     */
+    public long getFirstReceivedNanos() {
+        return firstReceivedNanos;
+    }
+
+    public long getDroppedGyroSamples() {
+        return droppedGyroSamples;
+    }
+
+    /**
+     * The two most recent samples of one stream that bracket the current grid time.
+     */
+    private static class Track {
+        private final long maxWaitNanos;
+        private final boolean spherical;
+
+        private final long[] pollTime = new long[1];
+        private float[] prev = new float[3];
+        private float[] next = new float[3];
+        private long prevTime;
+        private long nextTime;
+        private boolean hasPrev;
+        private boolean hasNext;
+
+        // cached for the spherical interpolation between prev and next
+        private float angle;
+        private float sinAngle;
+        private float prevNorm;
+        private float nextNorm;
+
+        Track(long maxWaitNanos, boolean spherical) {
+            this.maxWaitNanos = maxWaitNanos;
+            this.spherical = spherical;
+        }
+
+        void reset() {
+            hasPrev = false;
+            hasNext = false;
+        }
+
+        int advanceTo(long t, SampleRingBuffer in, boolean ended) {
+            boolean shifted = false;
+            while (!hasNext || nextTime < t) {
+                if (hasNext) {
+                    float[] tmp = prev;
+                    prev = next;
+                    next = tmp;
+                    prevTime = nextTime;
+                    hasPrev = true;
+                    hasNext = false;
+                }
+                if (!in.poll(pollTime, next)) {
+                    break;
+                }
+                nextTime = pollTime[0];
+                hasNext = true;
+                shifted = true;
+            }
+
+            if (hasNext) {
+                if (spherical && shifted && hasPrev) {
+                    updateAngle();
+                }
+                if (hasPrev || nextTime - t <= maxWaitNanos) {
+                    return READY;
+                }
+                return TOO_EARLY;
+            }
+
+            if (hasPrev && (ended || t - prevTime > maxWaitNanos)) {
+                // the stream has stalled, hold its last value rather than stalling the others
+                return READY;
+            }
+            return ended ? TOO_EARLY : WAIT;
+        }
+
+        void sample(long t, float[] out) {
+            if (hasPrev && hasNext && t >= prevTime && nextTime > prevTime) {
+                float f = (float) (t - prevTime) / (float) (nextTime - prevTime);
+                if (spherical) {
+                    slerp(f, out);
+                } else {
+                    out[0] = prev[0] + f * (next[0] - prev[0]);
+                    out[1] = prev[1] + f * (next[1] - prev[1]);
+                    out[2] = prev[2] + f * (next[2] - prev[2]);
+                }
+            } else if (hasPrev) {
+                System.arraycopy(prev, 0, out, 0, 3);
+            } else {
+                System.arraycopy(next, 0, out, 0, 3);
+            }
+        }
+
+        private void updateAngle() {
+            prevNorm = (float) Math.sqrt(prev[0] * prev[0] + prev[1] * prev[1] + prev[2] * prev[2]);
+            nextNorm = (float) Math.sqrt(next[0] * next[0] + next[1] * next[1] + next[2] * next[2]);
+            if (prevNorm < EPSILON || nextNorm < EPSILON) {
+                angle = 0.0f;
+                sinAngle = 0.0f;
+                return;
+            }
+            float cos = (prev[0] * next[0] + prev[1] * next[1] + prev[2] * next[2]) / (prevNorm * nextNorm);
+            angle = (float) Math.acos(Math.max(-1.0f, Math.min(1.0f, cos)));
+            sinAngle = (float) Math.sin(angle);
+        }
+
+        // Interpolates the direction of the field along the great circle and its magnitude linearly.
+        // Falls back to a linear interpolation when the two directions are (nearly) parallel.
+        private void slerp(float f, float[] out) {
+            if (sinAngle < 0.001f) {
+                out[0] = prev[0] + f * (next[0] - prev[0]);
+                out[1] = prev[1] + f * (next[1] - prev[1]);
+                out[2] = prev[2] + f * (next[2] - prev[2]);
+                return;
+            }
+            float norm = prevNorm + f * (nextNorm - prevNorm);
+            float wPrev = (float) Math.sin((1.0f - f) * angle) / sinAngle * norm / prevNorm;
+            float wNext = (float) Math.sin(f * angle) / sinAngle * norm / nextNorm;
+            out[0] = wPrev * prev[0] + wNext * next[0];
+            out[1] = wPrev * prev[1] + wNext * next[1];
+            out[2] = wPrev * prev[2] + wNext * next[2];
+        }
+    }
+}
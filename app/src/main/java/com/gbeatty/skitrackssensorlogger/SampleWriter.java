@@ -0,0 +1,17 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * A log that timestamped accelerometer, gyro and magnetometer samples are written to,
+ * the counterpart of {@link SampleSource}.
+ */
+public interface SampleWriter extends Closeable, Flushable {
+
+    /**
+     * @param sensor one of the SampleSource.SENSOR_ constants, including SENSOR_EVENT
+     */
+    void write(int sensor, long timeNanos, float x, float y, float z) throws IOException;
+}
@@ -1,20 +1,43 @@
 package com.gbeatty.skitrackssensorlogger;
 
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
-import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import android.hardware.SensorManager;
-
+/**
+ * Gyro / accelerometer / magnetometer complementary filter. The gyro is integrated sample by
+ * sample, and every reference period of sample time the result is blended with the
+ * accelerometer/magnetometer orientation to compensate gyro drift, all on the thread feeding
+ * the samples.
+ *
+ * The filter is multi-rate: the accelerometer/magnetometer orientation, the trigonometry heavy
+ * part, is only computed for the blend, by default every 100 ms like the magnetometer updates.
+ * The blend is scaled to the period so the drift correction has the same time constant as
+ * blending with filter_coefficient every TIME_CONSTANT ms.
+ *
+ * In {@link Mode#QUATERNION} mode the orientation is kept as a unit quaternion and the blend
+ * is a normalized lerp toward the accelerometer/magnetometer quaternion, with no Euler angles
+ * in the loop; see {@link #getOrientationAngles} for those.
+ *
+ * Frames start with a coarse {@link InitialAlignment} on a short still window, the orientation
+ * is published and blended from the frame that completes it.
+ *
+ * The accel is taken in g, like the MetaWear board delivers it: the reference is only
+ * rejected as free fall under a tenth of 1 g, see {@link SensorMath#FREE_FALL_G}.
+ *
+ * A new instance is stopped and ignores samples until {@link #start()}.
+ */
 public class SensorFusion {
 
+    public enum Mode {
+        // blends azimuth, pitch and roll, the original filter
+        EULER,
+        // blends unit quaternions, no trigonometry past the gyro integration
+        QUATERNION
+    }
+
     // angular speeds from gyro
     private float[] gyro = new float[3];
-    // rotation matrix from gyro data
-    public float[] gyroMatrix = new float[9];
+    // rotation matrix from gyro data, only for the thread running the filter; other threads
+    // read the published copy, see getOrientation()
+    private final float[] gyroMatrix = new float[9];
+    private final OrientationSnapshot orientation = new OrientationSnapshot();
     // orientation angles from gyro matrix
     private float[] gyroOrientation = new float[3];
     // magnetic field vector
@@ -27,26 +50,108 @@ public class SensorFusion {
     private float[] fusedOrientation = new float[3];
     // accelerometer and magnetometer based rotation matrix
     private float[] rotationMatrix = new float[9];
+    // gyro values of the frame being processed by SetFrames
+    private float[] frameGyro = new float[3];
+
+    // scratch space for gyroFunction, so integrating a sample doesn't allocate
+    private final float[] normValues = new float[3];
+    private final float[] deltaVector = new float[4];
+    private final float[] deltaMatrix = new float[9];
+    private final float[] initMatrix = new float[9];
 
-    //public String azimut;
-    public String pitch;
-    public String roll;
-    public String coefficient;
+    private Mode mode = Mode.EULER;
+    // the orientation in QUATERNION mode, gyroMatrix follows it
+    private float qw, qx, qy, qz;
+    // accelerometer and magnetometer based quaternion (w, x, y, z)
+    private final float[] referenceQuaternion = new float[4];
+
+    private final InitialAlignment alignment = new InitialAlignment();
 
     public static final float EPSILON = 0.000000001f;
-    private float timestamp;
+    private static final float NS2S = 1.0f / 1000000000.0f;
+    private long timestamp;
     private boolean initState = true;
 
     public static final int TIME_CONSTANT = 10;
     public float filter_coefficient = 0.90f;
 
+    public static final long DEFAULT_REFERENCE_PERIOD_NANOS = 100000000L;
+    // filter_coefficient is the weight of the gyro orientation per TIME_CONSTANT ms
+    private static final long COEFFICIENT_PERIOD_NANOS = TIME_CONSTANT * 1000000L;
+    // sample time before the first complementary filter step when the gyro orientation was
+    // initialized from a single sample (SetGyro) rather than aligned
+    private static final long FUSE_DELAY_NANOS = 1000000000L;
+    private static final long FUSE_NOT_SCHEDULED = Long.MIN_VALUE;
+    private long referencePeriodNanos = DEFAULT_REFERENCE_PERIOD_NANOS;
+    private long nextFuseNanos = FUSE_NOT_SCHEDULED;
+    // filter_coefficient scaled to the reference period, recomputed when either changes
+    private float fuseCoefficient;
+    private float fuseCoefficientFor = Float.NaN;
+
+    private volatile boolean running = false;
+
     public SensorFusion() {
+        reset();
+    }
+
+    /**
+     * Resets the filter and starts processing samples.
+     */
+    public void start() {
+        reset();
+        running = true;
+    }
+
+    /**
+     * Stops processing samples, they are ignored until the next start. The last published
+     * orientation stays readable.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Sets how often, in sample time, the accelerometer/magnetometer orientation is computed
+     * and blended in. Call while stopped or from the thread feeding the samples.
+     */
+    public void setReferencePeriod(long periodNanos) {
+        if (periodNanos <= 0) {
+            throw new IllegalArgumentException("reference period must be positive: " + periodNanos);
+        }
+        referencePeriodNanos = periodNanos;
+        fuseCoefficientFor = Float.NaN;
+    }
 
+    public long getReferencePeriod() {
+        return referencePeriodNanos;
+    }
 
-		/* Init gyro values */
-        gyroOrientation[0] = 0.0f;
-        gyroOrientation[1] = 0.0f;
-        gyroOrientation[2] = 0.0f;
+    /**
+     * Sets how the orientation is kept and blended. Call while stopped, it takes effect with
+     * the next start.
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Forgets the orientation, the next sample initializes it from the accelerometer and
+     * magnetometer again. Call while stopped or from the thread feeding the samples.
+     */
+    public void reset() {
+        for (int i = 0; i < 3; i++) {
+            gyroOrientation[i] = 0.0f;
+            accMagOrientation[i] = 0.0f;
+            fusedOrientation[i] = 0.0f;
+        }
 
         // Initialize gyroMatrix with identity matrix
         gyroMatrix[0] = 1.0f;
@@ -58,21 +163,35 @@ public class SensorFusion {
         gyroMatrix[6] = 0.0f;
         gyroMatrix[7] = 0.0f;
         gyroMatrix[8] = 1.0f;
+        qw = 1.0f;
+        qx = 0.0f;
+        qy = 0.0f;
+        qz = 0.0f;
+
+        initState = true;
+        timestamp = 0;
+        nextFuseNanos = FUSE_NOT_SCHEDULED;
+        alignment.reset();
+    }
 
-         // Wait for one second until gyroscope and magnetometer/accelerometer
-        // Data is initialized then schedule the complementary filter task
-        new Timer().scheduleAtFixedRate(new calculateFusedOrientationTask(), 1000, TIME_CONSTANT);
+    /**
+     * The orientation after the last gyro sample, for reading from other threads.
+     */
+    public OrientationSnapshot getOrientation() {
+        return orientation;
     }
 
     public void SetAccel(float[] acc)
     {
         System.arraycopy(acc, 0, accel, 0, 3);
-        calculateAccMagOrientation();
     }
 
-    public void SetGyro(float[] gyro, float time)
+    public void SetGyro(float[] gyro, long timeNanos)
     {
-        gyroFunction(gyro, time);
+        if (!running) {
+            return;
+        }
+        gyroFunction(gyro, timeNanos);
     }
 
     public void SetMag(float[] mag)
@@ -80,18 +199,88 @@ public class SensorFusion {
         System.arraycopy(mag, 0, magnet, 0, 3);
     }
 
-    // Calculates orientation angles from accelerometer and magnetometer output
-    public void calculateAccMagOrientation() {
-        if (SensorManager.getRotationMatrix(rotationMatrix, null, accel, magnet)) {
-            SensorManager.getOrientation(rotationMatrix, accMagOrientation);
+    // Runs a whole block of time aligned frames through the filter in one call
+    public void SetFrames(FrameBlock frames)
+    {
+        for (int i = 0; i < frames.count; i++) {
+            SetFrame(frames, i);
         }
     }
 
+    // Runs a single frame of a block through the filter
+    public void SetFrame(FrameBlock frames, int i)
+    {
+        if (!running) {
+            return;
+        }
+        magnet[0] = frames.mx[i];
+        magnet[1] = frames.my[i];
+        magnet[2] = frames.mz[i];
+
+        accel[0] = frames.ax[i];
+        accel[1] = frames.ay[i];
+        accel[2] = frames.az[i];
+
+        if (initState) {
+            // nothing is integrated until the coarse alignment is done
+            if (alignment.add(frames, i)) {
+                alignment.getRotationMatrix(initMatrix);
+                initOrientation(initMatrix);
+                timestamp = frames.timeNanos[i];
+                nextFuseNanos = timestamp + referencePeriodNanos;
+                orientation.publish(gyroMatrix, timestamp);
+            }
+            return;
+        }
+
+        frameGyro[0] = frames.gx[i];
+        frameGyro[1] = frames.gy[i];
+        frameGyro[2] = frames.gz[i];
+        gyroFunction(frameGyro, frames.timeNanos[i]);
+    }
+
+    /**
+     * The initial alignment of the frames since the last start.
+     */
+    public InitialAlignment getAlignment() {
+        return alignment;
+    }
+
+    /**
+     * The orientation as azimuth, pitch and roll in radians. Call from the thread feeding the
+     * samples.
+     */
+    public float[] getOrientationAngles(float[] values) {
+        return SensorMath.getOrientation(gyroMatrix, values);
+    }
+
+    /**
+     * The rotation matrix from the board to East, North, Up. Call from the thread feeding the
+     * samples, other threads read {@link #getOrientation()}.
+     */
+    public float[] getRotationMatrix(float[] R) {
+        System.arraycopy(gyroMatrix, 0, R, 0, 9);
+        return R;
+    }
+
+    // Calculates orientation angles from accelerometer and magnetometer output. Only needed
+    // when the gyro orientation is initialized or blended, see fuseOrientation. Returns false,
+    // leaving the angles as they were, without a usable reference (free fall, no field).
+    public boolean calculateAccMagOrientation() {
+        if (!SensorMath.getRotationMatrix(rotationMatrix, null, accel, magnet, SensorMath.FREE_FALL_G)) {
+            return false;
+        }
+        SensorMath.getOrientation(rotationMatrix, accMagOrientation);
+        return true;
+    }
+
     // This function is borrowed from the Android reference at
     // http://developer.android.com/reference/android/hardware/SensorEvent.html#values
     // It calculates a rotation vector from the gyroscope angular speed values.
     private void getRotationVectorFromGyro(float[] gyroValues, float[] deltaRotationVector, float timeFactor) {
-        float[] normValues = new float[3];
+        normValues[0] = 0.0f;
+        normValues[1] = 0.0f;
+        normValues[2] = 0.0f;
 
         // Calculate the angular speed of the sample
         float omegaMagnitude = (float) Math.sqrt(gyroValues[0] * gyroValues[0] + gyroValues[1] * gyroValues[1] + gyroValues[2] * gyroValues[2]);
@@ -117,49 +306,107 @@ public class SensorFusion {
     }
 
     // This function performs the integration of the gyroscope data.
-    // It writes the gyroscope based orientation into gyroOrientation.
-    public void gyroFunction(float[] g, float time) {
-        // Don't start until first accelerometer/magnetometer orientation has been acquired
-        if (accMagOrientation == null)
-            return;
-
+    // It writes the gyroscope based orientation into gyroMatrix.
+    public void gyroFunction(float[] g, long timeNanos) {
         // Initialization of the gyroscope based rotation matrix
         if (initState) {
-            float[] initMatrix = getRotationMatrixFromOrientation(accMagOrientation);
-            float[] test = new float[3];
-            SensorManager.getOrientation(initMatrix, test);
-            gyroMatrix = matrixMultiplication(gyroMatrix, initMatrix);
-            initState = false;
+            calculateAccMagOrientation();
+            getRotationMatrixFromOrientation(accMagOrientation, initMatrix);
+            initOrientation(initMatrix);
         }
 
         // Copy the new gyro values into the gyro array
         // Convert the raw gyro data into a rotation vector
-        float[] deltaVector = new float[4];
         if (timestamp != 0) {
-            final float dT = time - timestamp;
+            final float dT = (timeNanos - timestamp) * NS2S;
             System.arraycopy(g, 0, gyro, 0, 3);
             getRotationVectorFromGyro(gyro, deltaVector, dT / 2.0f);
+        } else {
+            deltaVector[0] = 0.0f;
+            deltaVector[1] = 0.0f;
+            deltaVector[2] = 0.0f;
+            deltaVector[3] = 1.0f;
         }
 
         // Measurement done, save current time for next interval
-        timestamp = time;
+        timestamp = timeNanos;
+
+        if (mode == Mode.QUATERNION) {
+            // Apply the rotation interval straight to the quaternion, q = q * delta
+            float dx = deltaVector[0];
+            float dy = deltaVector[1];
+            float dz = deltaVector[2];
+            float dw = deltaVector[3];
+            setQuaternion(qw * dw - qx * dx - qy * dy - qz * dz,
+                    qw * dx + qx * dw + qy * dz - qz * dy,
+                    qw * dy - qx * dz + qy * dw + qz * dx,
+                    qw * dz + qx * dy - qy * dx + qz * dw);
+        } else {
+            // Convert rotation vector into rotation matrix
+            SensorMath.getRotationMatrixFromVector(deltaMatrix, deltaVector);
+
+            // Apply the new rotation interval on the gyroscope based rotation matrix
+            matrixMultiplication(gyroMatrix, deltaMatrix, gyroMatrix);
+        }
 
-        // Convert rotation vector into rotation matrix
-        float[] deltaMatrix = new float[9];
-        SensorManager.getRotationMatrixFromVector(deltaMatrix, deltaVector);
+        // Compensate the drift every reference period of sample time. After a gap in the data
+        // the filter runs once and the schedule restarts from this sample.
+        if (nextFuseNanos == FUSE_NOT_SCHEDULED) {
+            nextFuseNanos = timeNanos + FUSE_DELAY_NANOS;
+        } else if (timeNanos >= nextFuseNanos) {
+            fuseOrientation();
+            nextFuseNanos += referencePeriodNanos;
+            if (nextFuseNanos <= timeNanos) {
+                nextFuseNanos = timeNanos + referencePeriodNanos;
+            }
+        }
 
-        // Apply the new rotation interval on the gyroscope based rotation matrix
-        gyroMatrix = matrixMultiplication(gyroMatrix, deltaMatrix);
+        orientation.publish(gyroMatrix, timeNanos);
+    }
 
-        // Get the gyroscope based orientation from the rotation matrix
-        SensorManager.getOrientation(gyroMatrix, gyroOrientation);
+    // Starts the gyro orientation at the given rotation matrix
+    private void initOrientation(float[] matrix) {
+        System.arraycopy(matrix, 0, gyroMatrix, 0, 9);
+        if (mode == Mode.QUATERNION) {
+            SensorMath.getQuaternionFromMatrix(referenceQuaternion, gyroMatrix);
+            setQuaternion(referenceQuaternion[0], referenceQuaternion[1], referenceQuaternion[2], referenceQuaternion[3]);
+        }
+        initState = false;
     }
 
-    private float[] getRotationMatrixFromOrientation(float[] o) {
-        float[] xM = new float[9];
-        float[] yM = new float[9];
-        float[] zM = new float[9];
+    // Normalizes and stores the quaternion, and writes its rotation matrix into gyroMatrix
+    private void setQuaternion(float w, float x, float y, float z) {
+        float norm = (float) (1.0 / Math.sqrt(w * w + x * x + y * y + z * z));
+        qw = w * norm;
+        qx = x * norm;
+        qy = y * norm;
+        qz = z * norm;
+
+        float xx = 2 * qx * qx;
+        float yy = 2 * qy * qy;
+        float zz = 2 * qz * qz;
+        float xy = 2 * qx * qy;
+        float zw = 2 * qz * qw;
+        float xz = 2 * qx * qz;
+        float yw = 2 * qy * qw;
+        float yz = 2 * qy * qz;
+        float xw = 2 * qx * qw;
+
+        gyroMatrix[0] = 1 - yy - zz;
+        gyroMatrix[1] = xy - zw;
+        gyroMatrix[2] = xz + yw;
+        gyroMatrix[3] = xy + zw;
+        gyroMatrix[4] = 1 - xx - zz;
+        gyroMatrix[5] = yz - xw;
+        gyroMatrix[6] = xz - yw;
+        gyroMatrix[7] = yz + xw;
+        gyroMatrix[8] = 1 - xx - yy;
+    }
 
+    // Writes the rotation matrix for the given orientation angles into result.
+    // This is the product zM * xM * yM of the rotations about the z axis (azimuth),
+    // x axis (pitch) and y axis (roll), multiplied out so no intermediate matrices are needed.
+    private void getRotationMatrixFromOrientation(float[] o, float[] result) {
         float sinX = (float) Math.sin(o[1]);
         float cosX = (float) Math.cos(o[1]);
         float sinY = (float) Math.sin(o[2]);
@@ -167,110 +414,135 @@ public class SensorFusion {
         float sinZ = (float) Math.sin(o[0]);
         float cosZ = (float) Math.cos(o[0]);
 
-        // Rotation about x-axis (pitch)
-        xM[0] = 1.0f;
-        xM[1] = 0.0f;
-        xM[2] = 0.0f;
-        xM[3] = 0.0f;
-        xM[4] = cosX;
-        xM[5] = sinX;
-        xM[6] = 0.0f;
-        xM[7] = -sinX;
-        xM[8] = cosX;
-
-        // Rotation about y-axis (roll)
-        yM[0] = cosY;
-        yM[1] = 0.0f;
-        yM[2] = sinY;
-        yM[3] = 0.0f;
-        yM[4] = 1.0f;
-        yM[5] = 0.0f;
-        yM[6] = -sinY;
-        yM[7] = 0.0f;
-        yM[8] = cosY;
-
-        // Rotation about z-axis (azimuth)
-        zM[0] = cosZ;
-        zM[1] = sinZ;
-        zM[2] = 0.0f;
-        zM[3] = -sinZ;
-        zM[4] = cosZ;
-        zM[5] = 0.0f;
-        zM[6] = 0.0f;
-        zM[7] = 0.0f;
-        zM[8] = 1.0f;
-
         // Rotation order is y, x, z (roll, pitch, azimuth)
-        float[] resultMatrix = matrixMultiplication(xM, yM);
-        resultMatrix = matrixMultiplication(zM, resultMatrix);
-        return resultMatrix;
-    }
+        result[0] = cosZ * cosY - sinZ * sinX * sinY;
+        result[1] = sinZ * cosX;
+        result[2] = cosZ * sinY + sinZ * sinX * cosY;
+
+        result[3] = -sinZ * cosY - cosZ * sinX * sinY;
+        result[4] = cosZ * cosX;
+        result[5] = -sinZ * sinY + cosZ * sinX * cosY;
 
-    private float[] matrixMultiplication(float[] A, float[] B) {
-        float[] result = new float[9];
+        result[6] = -cosX * sinY;
+        result[7] = -sinX;
+        result[8] = cosX * cosY;
+    }
 
-        result[0] = A[0] * B[0] + A[1] * B[3] + A[2] * B[6];
-        result[1] = A[0] * B[1] + A[1] * B[4] + A[2] * B[7];
-        result[2] = A[0] * B[2] + A[1] * B[5] + A[2] * B[8];
+    // result = A * B for 3x3 matrices. result may be the same array as A or B.
+    private static void matrixMultiplication(float[] A, float[] B, float[] result) {
+        float r0 = A[0] * B[0] + A[1] * B[3] + A[2] * B[6];
+        float r1 = A[0] * B[1] + A[1] * B[4] + A[2] * B[7];
+        float r2 = A[0] * B[2] + A[1] * B[5] + A[2] * B[8];
+
+        float r3 = A[3] * B[0] + A[4] * B[3] + A[5] * B[6];
+        float r4 = A[3] * B[1] + A[4] * B[4] + A[5] * B[7];
+        float r5 = A[3] * B[2] + A[4] * B[5] + A[5] * B[8];
+
+        float r6 = A[6] * B[0] + A[7] * B[3] + A[8] * B[6];
+        float r7 = A[6] * B[1] + A[7] * B[4] + A[8] * B[7];
+        float r8 = A[6] * B[2] + A[7] * B[5] + A[8] * B[8];
+
+        result[0] = r0;
+        result[1] = r1;
+        result[2] = r2;
+        result[3] = r3;
+        result[4] = r4;
+        result[5] = r5;
+        result[6] = r6;
+        result[7] = r7;
+        result[8] = r8;
+    }
 
-        result[3] = A[3] * B[0] + A[4] * B[3] + A[5] * B[6];
-        result[4] = A[3] * B[1] + A[4] * B[4] + A[5] * B[7];
-        result[5] = A[3] * B[2] + A[4] * B[5] + A[5] * B[8];
+    // Blends the gyro orientation with the accelerometer/magnetometer orientation, computed from
+    // the latest samples, to compensate gyro drift. Runs from gyroFunction every reference
+    // period of sample time.
+    void fuseOrientation() {
+        if (filter_coefficient != fuseCoefficientFor) {
+            fuseCoefficient = (float) Math.pow(filter_coefficient, (double) referencePeriodNanos / COEFFICIENT_PERIOD_NANOS);
+            fuseCoefficientFor = filter_coefficient;
+        }
+        float coefficient = fuseCoefficient;
+        float oneMinusCoeff = 1.0f - coefficient;
 
-        result[6] = A[6] * B[0] + A[7] * B[3] + A[8] * B[6];
-        result[7] = A[6] * B[1] + A[7] * B[4] + A[8] * B[7];
-        result[8] = A[6] * B[2] + A[7] * B[5] + A[8] * B[8];
+        if (mode == Mode.QUATERNION) {
+            fuseQuaternion(coefficient, oneMinusCoeff);
+            return;
+        }
 
-        return result;
+        // without a usable reference the gyro carries on alone, rather than being pulled toward
+        // the angles of an old reference
+        if (!calculateAccMagOrientation()) {
+            return;
+        }
+        SensorMath.getOrientation(gyroMatrix, gyroOrientation);
+
+        /*
+         * Fix for 179 <--> -179 transition problem: Check whether one of
+         * the two orientation angles (gyro or accMag) is negative while the
+         * other one is positive. If so, add 360 (2 * math.PI) to the
+         * negative value, perform the sensor fusion, and remove the 360
+         * from the result if it is greater than 180. This stabilizes the
+         * output in positive-to-negative-transition cases.
+         */
+
+        // Azimuth
+        if (gyroOrientation[0] < -0.5 * Math.PI && accMagOrientation[0] > 0.0) {
+            fusedOrientation[0] = (float) (coefficient * (gyroOrientation[0] + 2.0 * Math.PI) + oneMinusCoeff * accMagOrientation[0]);
+            fusedOrientation[0] -= (fusedOrientation[0] > Math.PI) ? 2.0 * Math.PI : 0;
+        } else if (accMagOrientation[0] < -0.5 * Math.PI && gyroOrientation[0] > 0.0) {
+            fusedOrientation[0] = (float) (coefficient * gyroOrientation[0] + oneMinusCoeff * (accMagOrientation[0] + 2.0 * Math.PI));
+            fusedOrientation[0] -= (fusedOrientation[0] > Math.PI) ? 2.0 * Math.PI : 0;
+        } else
+            fusedOrientation[0] = coefficient * gyroOrientation[0] + oneMinusCoeff * accMagOrientation[0];
+
+        // Pitch
+        if (gyroOrientation[1] < -0.5 * Math.PI && accMagOrientation[1] > 0.0) {
+            fusedOrientation[1] = (float) (coefficient * (gyroOrientation[1] + 2.0 * Math.PI) + oneMinusCoeff * accMagOrientation[1]);
+            fusedOrientation[1] -= (fusedOrientation[1] > Math.PI) ? 2.0 * Math.PI : 0;
+        } else if (accMagOrientation[1] < -0.5 * Math.PI && gyroOrientation[1] > 0.0) {
+            fusedOrientation[1] = (float) (coefficient * gyroOrientation[1] + oneMinusCoeff * (accMagOrientation[1] + 2.0 * Math.PI));
+            fusedOrientation[1] -= (fusedOrientation[1] > Math.PI) ? 2.0 * Math.PI : 0;
+        } else
+            fusedOrientation[1] = coefficient * gyroOrientation[1] + oneMinusCoeff * accMagOrientation[1];
+
+        // Roll
+        if (gyroOrientation[2] < -0.5 * Math.PI && accMagOrientation[2] > 0.0) {
+            fusedOrientation[2] = (float) (coefficient * (gyroOrientation[2] + 2.0 * Math.PI) + oneMinusCoeff * accMagOrientation[2]);
+            fusedOrientation[2] -= (fusedOrientation[2] > Math.PI) ? 2.0 * Math.PI : 0;
+        } else if (accMagOrientation[2] < -0.5 * Math.PI && gyroOrientation[2] > 0.0) {
+            fusedOrientation[2] = (float) (coefficient * gyroOrientation[2] + oneMinusCoeff * (accMagOrientation[2] + 2.0 * Math.PI));
+            fusedOrientation[2] -= (fusedOrientation[2] > Math.PI) ? 2.0 * Math.PI : 0;
+        } else
+            fusedOrientation[2] = coefficient * gyroOrientation[2] + oneMinusCoeff * accMagOrientation[2];
+
+        // Overwrite gyro matrix and orientation with fused orientation to comensate gyro drift
+        getRotationMatrixFromOrientation(fusedOrientation, gyroMatrix);
+        System.arraycopy(fusedOrientation, 0, gyroOrientation, 0, 3);
     }
 
-    class calculateFusedOrientationTask extends TimerTask {
-        public void run() {
-            float oneMinusCoeff = 1.0f - filter_coefficient;
-
-			/*
-             * Fix for 179 <--> -179 transition problem: Check whether one of
-			 * the two orientation angles (gyro or accMag) is negative while the
-			 * other one is positive. If so, add 360 (2 * math.PI) to the
-			 * negative value, perform the sensor fusion, and remove the 360
-			 * from the result if it is greater than 180. This stabilizes the
-			 * output in positive-to-negative-transition cases.
-			 */
-
-            // Azimuth
-            if (gyroOrientation[0] < -0.5 * Math.PI && accMagOrientation[0] > 0.0) {
-                fusedOrientation[0] = (float) (filter_coefficient * (gyroOrientation[0] + 2.0 * Math.PI) + oneMinusCoeff * accMagOrientation[0]);
-                fusedOrientation[0] -= (fusedOrientation[0] > Math.PI) ? 2.0 * Math.PI : 0;
-            } else if (accMagOrientation[0] < -0.5 * Math.PI && gyroOrientation[0] > 0.0) {
-                fusedOrientation[0] = (float) (filter_coefficient * gyroOrientation[0] + oneMinusCoeff * (accMagOrientation[0] + 2.0 * Math.PI));
-                fusedOrientation[0] -= (fusedOrientation[0] > Math.PI) ? 2.0 * Math.PI : 0;
-            } else
-                fusedOrientation[0] = filter_coefficient * gyroOrientation[0] + oneMinusCoeff * accMagOrientation[0];
-
-            // Pitch
-            if (gyroOrientation[1] < -0.5 * Math.PI && accMagOrientation[1] > 0.0) {
-                fusedOrientation[1] = (float) (filter_coefficient * (gyroOrientation[1] + 2.0 * Math.PI) + oneMinusCoeff * accMagOrientation[1]);
-                fusedOrientation[1] -= (fusedOrientation[1] > Math.PI) ? 2.0 * Math.PI : 0;
-            } else if (accMagOrientation[1] < -0.5 * Math.PI && gyroOrientation[1] > 0.0) {
-                fusedOrientation[1] = (float) (filter_coefficient * gyroOrientation[1] + oneMinusCoeff * (accMagOrientation[1] + 2.0 * Math.PI));
-                fusedOrientation[1] -= (fusedOrientation[1] > Math.PI) ? 2.0 * Math.PI : 0;
-            } else
-                fusedOrientation[1] = filter_coefficient * gyroOrientation[1] + oneMinusCoeff * accMagOrientation[1];
-
-            // Roll
-            if (gyroOrientation[2] < -0.5 * Math.PI && accMagOrientation[2] > 0.0) {
-                fusedOrientation[2] = (float) (filter_coefficient * (gyroOrientation[2] + 2.0 * Math.PI) + oneMinusCoeff * accMagOrientation[2]);
-                fusedOrientation[2] -= (fusedOrientation[2] > Math.PI) ? 2.0 * Math.PI : 0;
-            } else if (accMagOrientation[2] < -0.5 * Math.PI && gyroOrientation[2] > 0.0) {
-                fusedOrientation[2] = (float) (filter_coefficient * gyroOrientation[2] + oneMinusCoeff * (accMagOrientation[2] + 2.0 * Math.PI));
-                fusedOrientation[2] -= (fusedOrientation[2] > Math.PI) ? 2.0 * Math.PI : 0;
-            } else
-                fusedOrientation[2] = filter_coefficient * gyroOrientation[2] + oneMinusCoeff * accMagOrientation[2];
-
-            // Overwrite gyro matrix and orientation with fused orientation to comensate gyro drift
-            gyroMatrix = getRotationMatrixFromOrientation(fusedOrientation);
-            System.arraycopy(fusedOrientation, 0, gyroOrientation, 0, 3);
-
+    // The QUATERNION mode blend: a normalized lerp from the gyro quaternion toward the
+    // accelerometer/magnetometer one. No angles, so no wrap around to handle.
+    private void fuseQuaternion(float coefficient, float oneMinusCoeff) {
+        // without a usable reference (free fall, no field) the gyro carries on alone
+        if (!SensorMath.getRotationMatrix(rotationMatrix, null, accel, magnet, SensorMath.FREE_FALL_G)) {
+            return;
+        }
+        SensorMath.getQuaternionFromMatrix(referenceQuaternion, rotationMatrix);
+        float rw = referenceQuaternion[0];
+        float rx = referenceQuaternion[1];
+        float ry = referenceQuaternion[2];
+        float rz = referenceQuaternion[3];
+
+        // q and -q are the same rotation, blend toward the nearer one
+        if (qw * rw + qx * rx + qy * ry + qz * rz < 0) {
+            rw = -rw;
+            rx = -rx;
+            ry = -ry;
+            rz = -rz;
         }
+        setQuaternion(coefficient * qw + oneMinusCoeff * rw,
+                coefficient * qx + oneMinusCoeff * rx,
+                coefficient * qy + oneMinusCoeff * ry,
+                coefficient * qz + oneMinusCoeff * rz);
     }
 }
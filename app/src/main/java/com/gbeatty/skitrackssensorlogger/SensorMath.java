@@ -0,0 +1,266 @@
+package com.gbeatty.skitrackssensorlogger;
+
+/**
+ * Pure Java versions of the android.hardware.SensorManager rotation functions used by
+ * sensor fusion, so the fusion code runs (and can be tested and benchmarked) on a plain JVM.
+ *
+ * The math is a straight port of the Android implementations and gives the same results,
+ * but only 3x3 rotation matrices (float[9]) are supported.
+ *
+ * Units: like Android, {@link #getRotationMatrix(float[], float[], float[], float[])} and
+ * {@link #getTiltMatrix(float[], float[])} take gravity in m/s^2 and reject anything under
+ * a tenth of 1 g as free fall. The MetaWear accelerometer reports g, where that check would
+ * reject a still board reading less than 0.981 g, so callers with MetaWear data pass
+ * {@link #FREE_FALL_G} to the overloads taking the threshold.
+ */
+public final class SensorMath {
+
+    private static final float GRAVITY_EARTH = 9.81f;
+    /** Squared gravity under which the device counts as in free fall, for gravity in m/s^2. */
+    public static final float FREE_FALL_MS2 = 0.01f * GRAVITY_EARTH * GRAVITY_EARTH;
+    /** Squared gravity under which the device counts as in free fall, for gravity in g. */
+    public static final float FREE_FALL_G = 0.01f;
+
+    private SensorMath() {
+    }
+
+    /**
+     * Computes the rotation matrix transforming a vector from the device coordinate system to
+     * the world's coordinate system (East, North, Up) from the gravity and geomagnetic vectors.
+     * Same as SensorManager.getRotationMatrix. Like the Android version the free fall check
+     * assumes gravity is given in m/s^2, see the class comment.
+     * @param R receives the rotation matrix, may be null
+     * @param I receives the inclination matrix, may be null
+     * @return false if the device is in free fall or the vectors are (close to) parallel,
+     *         in which case R and I are left untouched
+     */
+    public static boolean getRotationMatrix(float[] R, float[] I, float[] gravity, float[] geomagnetic) {
+        return getRotationMatrix(R, I, gravity, geomagnetic, FREE_FALL_MS2);
+    }
+
+    /**
+     * {@link #getRotationMatrix(float[], float[], float[], float[])} for gravity in any unit.
+     * @param freeFall squared gravity under which the device counts as in free fall,
+     *                 {@link #FREE_FALL_MS2} or {@link #FREE_FALL_G}
+     */
+    public static boolean getRotationMatrix(float[] R, float[] I, float[] gravity, float[] geomagnetic, float freeFall) {
+        float Ax = gravity[0];
+        float Ay = gravity[1];
+        float Az = gravity[2];
+
+        final float normsqA = (Ax * Ax + Ay * Ay + Az * Az);
+        if (normsqA < freeFall) {
+            // gravity less than 10% of normal value
+            return false;
+        }
+
+        final float Ex = geomagnetic[0];
+        final float Ey = geomagnetic[1];
+        final float Ez = geomagnetic[2];
+        float Hx = Ey * Az - Ez * Ay;
+        float Hy = Ez * Ax - Ex * Az;
+        float Hz = Ex * Ay - Ey * Ax;
+        final float normH = (float) Math.sqrt(Hx * Hx + Hy * Hy + Hz * Hz);
+
+        if (normH < 0.1f) {
+            // device is close to free fall (or in space?), or close to
+            // magnetic north pole. Typical values are  > 100.
+            return false;
+        }
+        final float invH = 1.0f / normH;
+        Hx *= invH;
+        Hy *= invH;
+        Hz *= invH;
+        final float invA = 1.0f / (float) Math.sqrt(Ax * Ax + Ay * Ay + Az * Az);
+        Ax *= invA;
+        Ay *= invA;
+        Az *= invA;
+        final float Mx = Ay * Hz - Az * Hy;
+        final float My = Az * Hx - Ax * Hz;
+        final float Mz = Ax * Hy - Ay * Hx;
+
+        if (R != null) {
+            R[0] = Hx;
+            R[1] = Hy;
+            R[2] = Hz;
+            R[3] = Mx;
+            R[4] = My;
+            R[5] = Mz;
+            R[6] = Ax;
+            R[7] = Ay;
+            R[8] = Az;
+        }
+
+        if (I != null) {
+            // compute the inclination matrix by projecting the geomagnetic
+            // vector onto the Z (gravity) and X (horizontal component
+            // of geomagnetic vector) axes.
+            final float invE = 1.0f / (float) Math.sqrt(Ex * Ex + Ey * Ey + Ez * Ez);
+            final float c = (Ex * Mx + Ey * My + Ez * Mz) * invE;
+            final float s = (Ex * Ax + Ey * Ay + Ez * Az) * invE;
+            I[0] = 1;
+            I[1] = 0;
+            I[2] = 0;
+            I[3] = 0;
+            I[4] = c;
+            I[5] = s;
+            I[6] = 0;
+            I[7] = -s;
+            I[8] = c;
+        }
+        return true;
+    }
+
+    /**
+     * Computes a tilt only rotation matrix from the gravity vector, for when there is no
+     * magnetometer: the same as {@link #getRotationMatrix} but with an arbitrary heading, the
+     * device's x axis kept in the world's x-z plane. Port of NXP's f3DOFTiltAndroid (see
+     * MyUtils) to the row major layout of getRotationMatrix.
+     * @param R receives the rotation matrix
+     * @return false if the device is in free fall or its x axis points straight up or down,
+     *         in which case R is left untouched
+     */
+    public static boolean getTiltMatrix(float[] R, float[] gravity) {
+        return getTiltMatrix(R, gravity, FREE_FALL_MS2);
+    }
+
+    /**
+     * {@link #getTiltMatrix(float[], float[])} for gravity in any unit.
+     * @param freeFall squared gravity under which the device counts as in free fall,
+     *                 {@link #FREE_FALL_MS2} or {@link #FREE_FALL_G}
+     */
+    public static boolean getTiltMatrix(float[] R, float[] gravity, float freeFall) {
+        float Ax = gravity[0];
+        float Ay = gravity[1];
+        float Az = gravity[2];
+
+        // compute the accelerometer magnitude and R00
+        float modGyz = Ay * Ay + Az * Az;
+        float modGxyz = modGyz + Ax * Ax;
+        if (modGxyz < freeFall || modGyz == 0.0f) {
+            return false;
+        }
+        modGyz = (float) Math.sqrt(modGyz);
+        modGxyz = (float) Math.sqrt(modGxyz);
+
+        // normalize the accelerometer reading
+        float invA = 1.0f / modGxyz;
+        Ax *= invA;
+        Ay *= invA;
+        Az *= invA;
+
+        R[0] = modGyz * invA;
+        float tmp = 1.0f / R[0];
+        R[1] = -Ax * Ay * tmp;
+        R[2] = -Ax * Az * tmp;
+
+        R[3] = 0.0f;
+        R[4] = Az * tmp;
+        R[5] = -Ay * tmp;
+
+        R[6] = Ax;
+        R[7] = Ay;
+        R[8] = Az;
+        return true;
+    }
+
+    /**
+     * Computes the device's orientation (azimuth, pitch, roll in radians) from a rotation matrix.
+     * Same as SensorManager.getOrientation.
+     * @return values
+     */
+    public static float[] getOrientation(float[] R, float[] values) {
+        values[0] = (float) Math.atan2(R[1], R[4]);
+        values[1] = (float) Math.asin(-R[7]);
+        values[2] = (float) Math.atan2(-R[6], R[8]);
+        return values;
+    }
+
+    /**
+     * Converts a rotation vector (x, y, z and optionally the scalar w of a unit quaternion)
+     * to a rotation matrix. Same as SensorManager.getRotationMatrixFromVector.
+     */
+    public static void getRotationMatrixFromVector(float[] R, float[] rotationVector) {
+        float q0;
+        float q1 = rotationVector[0];
+        float q2 = rotationVector[1];
+        float q3 = rotationVector[2];
+
+        if (rotationVector.length >= 4) {
+            q0 = rotationVector[3];
+        } else {
+            q0 = 1 - q1 * q1 - q2 * q2 - q3 * q3;
+            q0 = (q0 > 0) ? (float) Math.sqrt(q0) : 0;
+        }
+
+        float sq_q1 = 2 * q1 * q1;
+        float sq_q2 = 2 * q2 * q2;
+        float sq_q3 = 2 * q3 * q3;
+        float q1_q2 = 2 * q1 * q2;
+        float q3_q0 = 2 * q3 * q0;
+        float q1_q3 = 2 * q1 * q3;
+        float q2_q0 = 2 * q2 * q0;
+        float q2_q3 = 2 * q2 * q3;
+        float q1_q0 = 2 * q1 * q0;
+
+        R[0] = 1 - sq_q2 - sq_q3;
+        R[1] = q1_q2 - q3_q0;
+        R[2] = q1_q3 + q2_q0;
+
+        R[3] = q1_q2 + q3_q0;
+        R[4] = 1 - sq_q1 - sq_q3;
+        R[5] = q2_q3 - q1_q0;
+
+        R[6] = q1_q3 - q2_q0;
+        R[7] = q2_q3 + q1_q0;
+        R[8] = 1 - sq_q1 - sq_q2;
+    }
+
+    /**
+     * Converts a rotation matrix to a unit quaternion (w, x, y, z). This is the inverse of
+     * {@link #getRotationMatrixFromVector} for a rotation vector (x, y, z, w).
+     */
+    public static void getQuaternionFromMatrix(float[] q, float[] R) {
+        float trace = R[0] + R[4] + R[8];
+        float w, x, y, z;
+
+        // pick the largest of w, x, y, z to divide by so the result stays accurate
+        if (trace > 0) {
+            float s = 2.0f * (float) Math.sqrt(trace + 1.0f);
+            w = 0.25f * s;
+            x = (R[7] - R[5]) / s;
+            y = (R[2] - R[6]) / s;
+            z = (R[3] - R[1]) / s;
+        } else if (R[0] > R[4] && R[0] > R[8]) {
+            float s = 2.0f * (float) Math.sqrt(1.0f + R[0] - R[4] - R[8]);
+            w = (R[7] - R[5]) / s;
+            x = 0.25f * s;
+            y = (R[1] + R[3]) / s;
+            z = (R[2] + R[6]) / s;
+        } else if (R[4] > R[8]) {
+            float s = 2.0f * (float) Math.sqrt(1.0f + R[4] - R[0] - R[8]);
+            w = (R[2] - R[6]) / s;
+            x = (R[1] + R[3]) / s;
+            y = 0.25f * s;
+            z = (R[5] + R[7]) / s;
+        } else {
+            float s = 2.0f * (float) Math.sqrt(1.0f + R[8] - R[0] - R[4]);
+            w = (R[3] - R[1]) / s;
+            x = (R[2] + R[6]) / s;
+            y = (R[5] + R[7]) / s;
+            z = 0.25f * s;
+        }
+
+        // keep w positive so consecutive quaternions don't flip sign
+        if (w < 0) {
+            w = -w;
+            x = -x;
+            y = -y;
+            z = -z;
+        }
+        q[0] = w;
+        q[1] = x;
+        q[2] = y;
+        q[3] = z;
+    }
+}
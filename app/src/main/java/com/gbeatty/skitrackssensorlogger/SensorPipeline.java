@@ -0,0 +1,227 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves samples from the MetaWear message handlers through the synchronizer into sensor fusion.
+ *
+ * The handlers add samples to lock free ring buffers and signal the pipeline. The first signal
+ * while the pipeline is idle schedules a drain on the executor, and that drain keeps going until
+ * every sample that arrived in the meantime has been processed, so processing follows sample
+ * arrival rather than a polling period. At most one drain runs at a time, even on an executor
+ * with several threads.
+ *
+ * The consumer side (the synchronizer, fusion and the buffers' read end) belongs to whichever
+ * thread holds the consumer lock: the drain while it runs, start and stop otherwise. stop waits
+ * for a drain in progress before it stops fusion and clears the buffers.
+ */
+public class SensorPipeline {
+
+    // Roughly five seconds of samples at 100Hz. If processing falls that far behind we'd
+    // rather lose the oldest samples than the newest ones.
+    private static final int SAMPLE_BUFFER_CAPACITY = 512;
+
+    // Wait at most two sample periods past the last sample of a stream, 20ms for the 100Hz accel
+    // and 200ms for the 10Hz mag, before holding the last value instead of interpolating
+    private static final long MAX_ACCEL_WAIT_NANOS = 20000000L;
+    private static final long MAX_MAG_WAIT_NANOS = 200000000L;
+
+    private final SensorFusion fusion;
+    private final PipelineMetrics metrics = new PipelineMetrics();
+
+    private final SampleRingBuffer accelSamples = new SampleRingBuffer(SAMPLE_BUFFER_CAPACITY, SampleRingBuffer.OverflowPolicy.OVERWRITE_OLDEST);
+    private final SampleRingBuffer gyroSamples = new SampleRingBuffer(SAMPLE_BUFFER_CAPACITY, SampleRingBuffer.OverflowPolicy.OVERWRITE_OLDEST);
+    private final SampleRingBuffer magSamples = new SampleRingBuffer(16, SampleRingBuffer.OverflowPolicy.OVERWRITE_OLDEST);
+
+    // owned by whichever thread holds consumerLock
+    private final Object consumerLock = new Object();
+    private final SampleSynchronizer synchronizer = new SampleSynchronizer(MAX_ACCEL_WAIT_NANOS, MAX_MAG_WAIT_NANOS);
+    private final FrameBlock frames = new FrameBlock(32);
+    private final float[] rotation = new float[9];
+    private final GyroBiasEstimator gyroBias = new GyroBiasEstimator();
+
+    private final AtomicInteger pendingSignals = new AtomicInteger(0);
+
+    private volatile RunSegmenter segmenter;
+
+    private volatile Executor executor;
+    private boolean ownsExecutor;
+    private volatile boolean running = false;
+
+    public SensorPipeline(SensorFusion fusion) {
+        this.fusion = fusion;
+    }
+
+    /**
+     * Starts processing on a dedicated thread.
+     */
+    public void start() {
+        start(Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SensorPipeline");
+                thread.setPriority(Thread.MAX_PRIORITY);
+                return thread;
+            }
+        }));
+        ownsExecutor = true;
+    }
+
+    /**
+     * Starts processing on a shared executor.
+     */
+    public void start(Executor executor) {
+        synchronized (consumerLock) {
+            synchronizer.reset();
+            gyroBias.reset();
+            fusion.start();
+            RunSegmenter stage = segmenter;
+            if (stage != null) {
+                stage.reset();
+            }
+        }
+        pendingSignals.set(0);
+        this.executor = executor;
+        ownsExecutor = false;
+        running = true;
+    }
+
+    /**
+     * Stops processing. A drain in progress finishes first, fusion doesn't change after this
+     * returns.
+     */
+    public void stop() {
+        running = false;
+        synchronized (consumerLock) {
+            fusion.stop();
+            accelSamples.clear();
+            gyroSamples.clear();
+            magSamples.clear();
+        }
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+        executor = null;
+    }
+
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    public SensorFusion getFusion() {
+        return fusion;
+    }
+
+    public GyroBiasEstimator getGyroBias() {
+        return gyroBias;
+    }
+
+    /**
+     * @param segmenter gets the frames after fusion, null for none
+     */
+    public void setSegmenter(RunSegmenter segmenter) {
+        this.segmenter = segmenter;
+    }
+
+    /**
+     * Number of gyro samples waiting to be processed.
+     */
+    public int getBacklog() {
+        return gyroSamples.size();
+    }
+
+    public long getOverwrittenSamples() {
+        return accelSamples.getOverwrittenSamples() + gyroSamples.getOverwrittenSamples() + magSamples.getOverwrittenSamples();
+    }
+
+    /**
+     * Number of gyro samples the synchronizer had no accel or mag sample to pair with.
+     */
+    public long getDroppedGyroSamples() {
+        return synchronizer.getDroppedGyroSamples();
+    }
+
+    public void addAccel(long timeNanos, float x, float y, float z) {
+        accelSamples.offer(timeNanos, x, y, z);
+        signal();
+    }
+
+    public void addGyro(long timeNanos, float x, float y, float z) {
+        gyroSamples.offer(timeNanos, System.nanoTime(), x, y, z);
+        signal();
+    }
+
+    public void addMag(long timeNanos, float x, float y, float z) {
+        magSamples.offer(timeNanos, x, y, z);
+        signal();
+    }
+
+    private void signal() {
+        // only the signal that finds the pipeline idle schedules a drain
+        if (pendingSignals.getAndIncrement() == 0) {
+            Executor current = executor;
+            try {
+                if (running && current != null) {
+                    current.execute(drainTask);
+                    return;
+                }
+            } catch (RejectedExecutionException e) {
+                // stopped while we were signalling
+            }
+            pendingSignals.set(0);
+        }
+    }
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            int signals = pendingSignals.get();
+            while (true) {
+                synchronized (consumerLock) {
+                    // checked under the lock, so nothing is drained once stop has the lock
+                    if (running) {
+                        drain();
+                    }
+                }
+                // keep draining until no signal arrived while we were busy
+                signals = pendingSignals.addAndGet(-signals);
+                if (signals == 0) {
+                    return;
+                }
+            }
+        }
+    };
+
+    private void drain() {
+        long received = 0;
+        int queueDepth = gyroSamples.size();
+        int batch = 0;
+        while (true) {
+            frames.clear();
+            int numFrames = synchronizer.process(gyroSamples, accelSamples, magSamples, frames);
+            if (numFrames == 0) {
+                break;
+            }
+            gyroBias.correct(frames);
+            fusion.SetFrames(frames);
+            RunSegmenter stage = segmenter;
+            if (stage != null) {
+                stage.update(frames, fusion.getRotationMatrix(rotation));
+            }
+            if (batch == 0) {
+                received = synchronizer.getFirstReceivedNanos();
+            }
+            batch += numFrames;
+        }
+
+        if (batch > 0) {
+            long latency = received != 0 ? System.nanoTime() - received : 0;
+            metrics.recordDrain(batch, queueDepth, latency);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Index of a binary sensor log, for jumping to a point in a many hour session without reading
+ * the log up to there.
+ *
+ * The log is split into segments of a fixed number of records. For each segment the index
+ * holds the range of sample times, the byte offset of its first record in the log and, per
+ * sensor and axis, the smallest and largest value, so a viewer can find interesting stretches
+ * (e.g. when the gyro was busy) from the index alone. Entries have a fixed size and are in log
+ * order, so the file is memory mapped and searched in place.
+ *
+ * Layout, little endian: a header of magic, version, entry size and records per segment,
+ * followed by entries of
+ * <pre>
+ *   int64   first (smallest) sample time in the segment, nanoseconds
+ *   int64   last (largest) sample time in the segment
+ *   int64   byte offset of the segment's first record in the log
+ *   int32   number of records in the segment
+ *   float32 minimum of accel x, y, z, gyro x, y, z, mag x, y, z
+ *   float32 maximum of the same
+ * </pre>
+ * A sensor without samples in a segment has a minimum of +infinity and a maximum of -infinity.
+ */
+public class SessionIndex implements Closeable {
+
+    static final int MAGIC = 0x49535453; // "STSI" in the file
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int SUMMARY_SIZE = 9;
+    static final int ENTRY_SIZE = 8 + 8 + 8 + 4 + 2 * SUMMARY_SIZE * 4;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int segmentRecords;
+    private final int size;
+
+    public SessionIndex(File indexFile) throws IOException {
+        file = new RandomAccessFile(indexFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                throw new IOException(indexFile + " is not a session index");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException(indexFile + " is not a session index");
+            }
+            if (buffer.getShort(4) != VERSION || buffer.getShort(6) != ENTRY_SIZE) {
+                throw new IOException("unsupported index version " + buffer.getShort(4) + " in " + indexFile);
+            }
+            segmentRecords = buffer.getInt(8);
+            // a partial entry at the end (the app was killed while writing it) is ignored
+            size = (int) ((length - HEADER_SIZE) / ENTRY_SIZE);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the index file that goes with the given log file
+     */
+    public static File fileFor(File logFile) {
+        String name = logFile.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(logFile.getParentFile(), name + ".idx");
+    }
+
+    /**
+     * @return the number of segments
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getSegmentRecords() {
+        return segmentRecords;
+    }
+
+    public long getFirstTime(int segment) {
+        return buffer.getLong(entry(segment));
+    }
+
+    public long getLastTime(int segment) {
+        return buffer.getLong(entry(segment) + 8);
+    }
+
+    /**
+     * @return the byte offset in the log of the first record of the segment
+     */
+    public long getOffset(int segment) {
+        return buffer.getLong(entry(segment) + 16);
+    }
+
+    public int getRecordCount(int segment) {
+        return buffer.getInt(entry(segment) + 24);
+    }
+
+    /**
+     * @param sensor one of the SampleSource.SENSOR_ constants
+     * @param axis 0, 1 or 2 for x, y or z
+     */
+    public float getMin(int segment, int sensor, int axis) {
+        return buffer.getFloat(entry(segment) + 28 + summary(sensor, axis) * 4);
+    }
+
+    public float getMax(int segment, int sensor, int axis) {
+        return buffer.getFloat(entry(segment) + 28 + (SUMMARY_SIZE + summary(sensor, axis)) * 4);
+    }
+
+    /**
+     * Binary search for the segment holding the given time.
+     * @return the last segment starting at or before timeNanos, 0 if the time is before the
+     *         start of the log, or -1 if the index is empty
+     */
+    public int find(long timeNanos) {
+        int low = 0;
+        int high = size - 1;
+        int found = size > 0 ? 0 : -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getFirstTime(mid) <= timeNanos) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mapping itself stays valid until it's garbage collected
+        file.close();
+    }
+
+    private static int entry(int segment) {
+        return HEADER_SIZE + segment * ENTRY_SIZE;
+    }
+
+    private static int summary(int sensor, int axis) {
+        if (sensor < SampleSource.SENSOR_ACCEL || sensor > SampleSource.SENSOR_MAG || axis < 0 || axis > 2) {
+            throw new IllegalArgumentException("no summary for sensor " + sensor + " axis " + axis);
+        }
+        return (sensor - SampleSource.SENSOR_ACCEL) * 3 + axis;
+    }
+}
@@ -0,0 +1,139 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the index that goes alongside a binary sensor log, see {@link SessionIndex} for the
+ * layout. BinaryLogWriter reports every record it writes and an entry is written each time a
+ * segment of records is complete, so the index is built as the log is recorded.
+ */
+public class SessionIndexWriter implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_RECORDS = 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer entry = ByteBuffer.allocate(SessionIndex.ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final int segmentRecords;
+
+    // the segment being collected
+    private int count = 0;
+    private long offset;
+    private long firstTime;
+    private long lastTime;
+    private final float[] min = new float[SessionIndex.SUMMARY_SIZE];
+    private final float[] max = new float[SessionIndex.SUMMARY_SIZE];
+
+    private long entryCount = 0;
+
+    public SessionIndexWriter(File file) throws IOException {
+        this(file, DEFAULT_SEGMENT_RECORDS);
+    }
+
+    /**
+     * @param segmentRecords number of log records covered by each index entry
+     */
+    public SessionIndexWriter(File file, int segmentRecords) throws IOException {
+        if (segmentRecords < 1) {
+            throw new IllegalArgumentException("segmentRecords must be positive: " + segmentRecords);
+        }
+        this.segmentRecords = segmentRecords;
+        channel = new FileOutputStream(file).getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(SessionIndex.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(SessionIndex.MAGIC);
+        header.putShort(SessionIndex.VERSION);
+        header.putShort((short) SessionIndex.ENTRY_SIZE);
+        header.putInt(segmentRecords);
+        header.putInt(0);
+        header.flip();
+        write(header);
+    }
+
+    /**
+     * Adds a record written to the log at the given byte offset.
+     */
+    public void add(long recordOffset, int sensor, long timeNanos, float x, float y, float z) throws IOException {
+        if (count == 0) {
+            offset = recordOffset;
+            firstTime = timeNanos;
+            lastTime = timeNanos;
+            for (int i = 0; i < SessionIndex.SUMMARY_SIZE; i++) {
+                min[i] = Float.POSITIVE_INFINITY;
+                max[i] = Float.NEGATIVE_INFINITY;
+            }
+        } else if (timeNanos < firstTime) {
+            // the sensors are logged as they arrive, so their samples interleave a little
+            firstTime = timeNanos;
+        } else if (timeNanos > lastTime) {
+            lastTime = timeNanos;
+        }
+
+        if (sensor >= SampleSource.SENSOR_ACCEL && sensor <= SampleSource.SENSOR_MAG) {
+            int i = (sensor - SampleSource.SENSOR_ACCEL) * 3;
+            summarize(i, x);
+            summarize(i + 1, y);
+            summarize(i + 2, z);
+        }
+
+        if (++count == segmentRecords) {
+            writeEntry();
+        }
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Writes the entry for the last, partial segment and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (count > 0) {
+                writeEntry();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void summarize(int i, float value) {
+        if (value < min[i]) {
+            min[i] = value;
+        }
+        if (value > max[i]) {
+            max[i] = value;
+        }
+    }
+
+    private void writeEntry() throws IOException {
+        entry.clear();
+        entry.putLong(firstTime);
+        entry.putLong(lastTime);
+        entry.putLong(offset);
+        entry.putInt(count);
+        for (int i = 0; i < SessionIndex.SUMMARY_SIZE; i++) {
+            entry.putFloat(min[i]);
+        }
+        for (int i = 0; i < SessionIndex.SUMMARY_SIZE; i++) {
+            entry.putFloat(max[i]);
+        }
+        entry.flip();
+        write(entry);
+        count = 0;
+        entryCount++;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The boards of a logging session, each with its own {@link BoardLane}.
+ *
+ * All lanes share one fixed size thread pool with at most one thread per core. A SensorPipeline
+ * never has more than one drain queued or running, so the pool's queue is bounded by the number
+ * of lanes, and lanes with samples waiting are processed in parallel.
+ *
+ * Lanes are added before the session starts.
+ */
+public class SessionManager {
+
+    private static final long STOP_TIMEOUT_MILLIS = 1000;
+
+    private final List<BoardLane> lanes = new ArrayList<BoardLane>();
+    private ExecutorService executor;
+    private int threads = 0;
+
+    public BoardLane addLane(String name, MountProfile mount, SensorFusion fusion) {
+        if (executor != null) {
+            throw new IllegalStateException("session already started");
+        }
+        BoardLane lane = new BoardLane(name, mount, fusion);
+        lanes.add(lane);
+        return lane;
+    }
+
+    public List<BoardLane> getLanes() {
+        return Collections.unmodifiableList(lanes);
+    }
+
+    /**
+     * Number of processing threads while the session is running.
+     */
+    public int getThreadCount() {
+        return threads;
+    }
+
+    public boolean isRunning() {
+        return executor != null;
+    }
+
+    public void start() {
+        if (executor != null) {
+            return;
+        }
+        threads = Math.max(1, Math.min(lanes.size(), Runtime.getRuntime().availableProcessors()));
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SensorLane-" + count.incrementAndGet());
+                thread.setPriority(Thread.MAX_PRIORITY);
+                return thread;
+            }
+        });
+        for (BoardLane lane : lanes) {
+            lane.getPipeline().start(executor);
+            // the occasional magnetometer calibration fit runs between the drains
+            lane.getMagCalibrator().setExecutor(executor);
+        }
+    }
+
+    /**
+     * Lets the drains already queued or running finish, waiting up to a second, then stops the
+     * lanes, so the lanes' fusion doesn't change after this returns.
+     * @return false if the drains didn't finish in time; the lanes are stopped anyway, each
+     *         waiting for its own drain
+     */
+    public boolean stop() {
+        if (executor == null) {
+            return true;
+        }
+        executor.shutdown();
+        boolean finished = false;
+        try {
+            finished = executor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (BoardLane lane : lanes) {
+            lane.getPipeline().stop();
+            lane.getMagCalibrator().setExecutor(null);
+        }
+        executor = null;
+        threads = 0;
+        return finished;
+    }
+}
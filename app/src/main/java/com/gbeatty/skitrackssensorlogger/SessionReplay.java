@@ -0,0 +1,320 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Runs a recorded session through an orientation filter as fast as possible, off the device.
+ *
+ * Samples go through the same ring buffers, SampleSynchronizer and gyro bias correction as the
+ * live SensorPipeline, so the filter sees exactly the frames it would have seen on the phone,
+ * only timed by the sample timestamps instead of the wall clock.
+ */
+public class SessionReplay {
+
+    private static final int BUFFER_CAPACITY = 4096;
+
+    /**
+     * An orientation filter driven by time aligned frames.
+     */
+    public interface Filter {
+        void update(FrameBlock frames, int index);
+
+        /**
+         * Runs all frames of the block through the filter.
+         */
+        void update(FrameBlock frames);
+
+        /**
+         * @param wxyz receives the current orientation as a unit quaternion (w, x, y, z)
+         */
+        void getQuaternion(float[] wxyz);
+    }
+
+    /**
+     * SensorFusion's gyro / accelerometer / magnetometer complementary filter.
+     */
+    public static class FusionFilter implements Filter {
+        private final SensorFusion fusion = new SensorFusion();
+        private final float[] rotation = new float[9];
+
+        public FusionFilter() {
+            this(SensorFusion.Mode.EULER);
+        }
+
+        public FusionFilter(SensorFusion.Mode mode) {
+            fusion.setMode(mode);
+            fusion.start();
+        }
+
+        public SensorFusion getFusion() {
+            return fusion;
+        }
+
+        @Override
+        public void update(FrameBlock frames, int index) {
+            fusion.SetFrame(frames, index);
+        }
+
+        @Override
+        public void update(FrameBlock frames) {
+            for (int i = 0; i < frames.count; i++) {
+                update(frames, i);
+            }
+        }
+
+        @Override
+        public void getQuaternion(float[] wxyz) {
+            SensorMath.getQuaternionFromMatrix(wxyz, fusion.getRotationMatrix(rotation));
+        }
+    }
+
+    /**
+     * One of the Madgwick filters, integrating each frame over the time since the previous one.
+     * A zero magnetometer reading makes it fall back to the IMU only update. The filter starts
+     * at the {@link InitialAlignment} of the first frames rather than its initial quaternion.
+     */
+    public static class MadgwickFilter implements Filter {
+        private final MadgwickAHRS ahrs;
+        private final double gyroScale;
+        private final InitialAlignment alignment = new InitialAlignment();
+
+        /**
+         * @param gyroScale multiplies the recorded gyro values to get rad/s
+         *                  (e.g. Math.PI / 180 for MetaWear data in deg/s)
+         */
+        public MadgwickFilter(MadgwickAHRS ahrs, double gyroScale) {
+            this.ahrs = ahrs;
+            this.gyroScale = gyroScale;
+        }
+
+        public MadgwickAHRS getAhrs() {
+            return ahrs;
+        }
+
+        public InitialAlignment getAlignment() {
+            return alignment;
+        }
+
+        @Override
+        public void update(FrameBlock frames, int index) {
+            if (align(frames, index)) {
+                ahrs.update(frames, index, 1, gyroScale);
+            }
+        }
+
+        @Override
+        public void update(FrameBlock frames) {
+            int first = 0;
+            while (first < frames.count && !align(frames, first)) {
+                first++;
+            }
+            if (first < frames.count) {
+                ahrs.update(frames, first, frames.count - first, gyroScale);
+            }
+        }
+
+        // true if the frame is for the filter, the frames up to the one completing the
+        // alignment only seed it
+        private boolean align(FrameBlock frames, int index) {
+            if (alignment.isAligned()) {
+                return true;
+            }
+            if (alignment.add(frames, index)) {
+                double[] q = new double[4];
+                alignment.getQuaternionNWU(q);
+                ahrs.setOrientationQuaternion(q);
+            }
+            return false;
+        }
+
+        @Override
+        public void getQuaternion(float[] wxyz) {
+            double[] q = ahrs.getOrientationQuaternion();
+            wxyz[0] = (float) q[0];
+            wxyz[1] = (float) q[1];
+            wxyz[2] = (float) q[2];
+            wxyz[3] = (float) q[3];
+        }
+    }
+
+    public static class Result {
+        public final long samples;
+        public final long frames;
+        public final long droppedSamples;
+        public final long elapsedNanos;
+
+        Result(long samples, long frames, long droppedSamples, long elapsedNanos) {
+            this.samples = samples;
+            this.frames = frames;
+            this.droppedSamples = droppedSamples;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double samplesPerSecond() {
+            return elapsedNanos > 0 ? samples * 1e9 / elapsedNanos : 0.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d samples, %d frames, %d dropped in %.1f ms (%.0f samples/s)",
+                    samples, frames, droppedSamples, elapsedNanos / 1e6, samplesPerSecond());
+        }
+    }
+
+    private final SampleSource source;
+    private final Filter filter;
+
+    private final SampleRingBuffer accelBuffer = new SampleRingBuffer(BUFFER_CAPACITY, SampleRingBuffer.OverflowPolicy.DROP_NEWEST);
+    private final SampleRingBuffer gyroBuffer = new SampleRingBuffer(BUFFER_CAPACITY, SampleRingBuffer.OverflowPolicy.DROP_NEWEST);
+    private final SampleRingBuffer magBuffer = new SampleRingBuffer(BUFFER_CAPACITY, SampleRingBuffer.OverflowPolicy.DROP_NEWEST);
+    private final SampleSynchronizer synchronizer = new SampleSynchronizer(20000000L, 200000000L);
+    private final FrameBlock frames = new FrameBlock(256);
+    private final GyroBiasEstimator gyroBias = new GyroBiasEstimator();
+
+    private final float[] quaternion = new float[4];
+    private final StringBuilder line = new StringBuilder(64);
+    private long frameCount;
+
+    public SessionReplay(SampleSource source, Filter filter) {
+        this.source = source;
+        this.filter = filter;
+    }
+
+    public GyroBiasEstimator getGyroBias() {
+        return gyroBias;
+    }
+
+    /**
+     * Replays the whole source through the filter.
+     * @param quaternionOut if not null receives a "timeNanos,w,x,y,z" line per frame
+     */
+    public Result run(Writer quaternionOut) throws IOException {
+        long[] time = new long[1];
+        float[] xyz = new float[3];
+        long samples = 0;
+        frameCount = 0;
+
+        long start = System.nanoTime();
+        int sensor;
+        while ((sensor = source.next(time, xyz)) >= 0) {
+            samples++;
+            switch (sensor) {
+                case SampleSource.SENSOR_ACCEL:
+                    accelBuffer.offer(time[0], xyz[0], xyz[1], xyz[2]);
+                    break;
+                case SampleSource.SENSOR_GYRO:
+                    gyroBuffer.offer(time[0], xyz[0], xyz[1], xyz[2]);
+                    if (gyroBuffer.size() >= frames.capacity) {
+                        drain(quaternionOut, false);
+                    }
+                    break;
+                case SampleSource.SENSOR_MAG:
+                    magBuffer.offer(time[0], xyz[0], xyz[1], xyz[2]);
+                    break;
+            }
+        }
+        // what's still waiting for the next sample of a stream gets its last one
+        drain(quaternionOut, true);
+        long elapsed = System.nanoTime() - start;
+
+        if (quaternionOut != null) {
+            quaternionOut.flush();
+        }
+        long dropped = accelBuffer.getDroppedSamples() + gyroBuffer.getDroppedSamples() + magBuffer.getDroppedSamples()
+                + synchronizer.getDroppedGyroSamples();
+        return new Result(samples, frameCount, dropped, elapsed);
+    }
+
+    private void drain(Writer quaternionOut, boolean ended) throws IOException {
+        while (true) {
+            frames.clear();
+            if (synchronizer.process(gyroBuffer, accelBuffer, magBuffer, frames, ended) == 0) {
+                break;
+            }
+            gyroBias.correct(frames);
+            if (quaternionOut == null) {
+                filter.update(frames);
+            } else {
+                for (int i = 0; i < frames.count; i++) {
+                    filter.update(frames, i);
+                    writeQuaternion(quaternionOut, frames.timeNanos[i]);
+                }
+            }
+            frameCount += frames.count;
+        }
+    }
+
+    private void writeQuaternion(Writer out, long timeNanos) throws IOException {
+        filter.getQuaternion(quaternion);
+        line.setLength(0);
+        line.append(timeNanos);
+        for (int i = 0; i < 4; i++) {
+            line.append(',').append(quaternion[i]);
+        }
+        line.append('\n');
+        out.append(line);
+    }
+
+    /**
+     * Usage: SessionReplay fusion|fusion-quaternion|madgwick Accel_.csv Gyro_.csv Mag_.csv|- [quaternions.csv]
+     *    or: SessionReplay fusion|fusion-quaternion|madgwick Imu_.bin|Imu_.imz [quaternions.csv]
+     */
+    public static void main(String[] args) throws IOException {
+        boolean binary = args.length >= 2 && !args[1].endsWith(".csv");
+        if (args.length < (binary ? 2 : 4)) {
+            System.err.println("usage: SessionReplay fusion|fusion-quaternion|madgwick <Accel_.csv> <Gyro_.csv> <Mag_.csv|-> [quaternions.csv]");
+            System.err.println("       SessionReplay fusion|fusion-quaternion|madgwick <Imu_.bin|Imu_.imz> [quaternions.csv]");
+            System.exit(1);
+        }
+
+        Filter filter;
+        if (args[0].equals("fusion")) {
+            filter = new FusionFilter();
+        } else if (args[0].equals("fusion-quaternion")) {
+            filter = new FusionFilter(SensorFusion.Mode.QUATERNION);
+        } else if (args[0].equals("madgwick")) {
+            // MetaWear gyro data is in deg/s
+            filter = new MadgwickFilter(new MadgwickAHRSIMU(0.1, new double[]{1, 0, 0, 0}, 100), Math.PI / 180);
+        } else {
+            System.err.println("unknown filter " + args[0]);
+            System.exit(1);
+            return;
+        }
+
+        SampleSource source;
+        int outArg;
+        if (binary) {
+            source = SampleLogs.open(new File(args[1]));
+            outArg = 2;
+        } else {
+            File magFile = args[3].equals("-") ? null : new File(args[3]);
+            source = new CsvSessionSource(new File(args[1]), new File(args[2]), magFile);
+            outArg = 4;
+        }
+        Writer out = args.length > outArg ? new BufferedWriter(new FileWriter(args[outArg]), 1 << 16) : null;
+        try {
+            SessionReplay replay = new SessionReplay(source, filter);
+            Result result = replay.run(out);
+            System.out.println(result);
+            float[] bias = new float[3];
+            replay.getGyroBias().getBias(bias);
+            System.out.println(String.format(Locale.US, "gyro bias %.3f %.3f %.3f deg/s, from %d still frames",
+                    bias[0], bias[1], bias[2], replay.getGyroBias().getStationaryFrames()));
+            if (filter instanceof MadgwickFilter) {
+                MadgwickAHRS ahrs = ((MadgwickFilter) filter).getAhrs();
+                System.out.println(String.format(Locale.US, "dt %.2f ms, jitter %.3f ms, %d intervals clamped",
+                        ahrs.getDtMean() * 1e3, ahrs.getDtJitter() * 1e3, ahrs.getClampedIntervals()));
+            }
+        } finally {
+            source.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+}
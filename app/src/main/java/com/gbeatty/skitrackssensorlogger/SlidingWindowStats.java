@@ -0,0 +1,142 @@
+package com.gbeatty.skitrackssensorlogger;
+
+/**
+ * Mean, variance, minimum and maximum of the last windowSize values of a stream.
+ *
+ * The window is a ring buffer of primitive doubles. The mean and variance are updated with a
+ * Welford style step when a value enters the window and the oldest one leaves, which stays
+ * accurate over long streams unlike running sums of squares. The minimum and maximum come
+ * from monotonic deques of window positions, so each value is pushed and popped at most once.
+ * Every add costs the same amortized O(1) work whatever the window size, and nothing is
+ * allocated after construction.
+ *
+ * Not thread safe.
+ */
+public class SlidingWindowStats {
+
+    private final int windowSize;
+    private final double[] values;
+    // position in the stream of the next value
+    private long count = 0;
+    private int size = 0;
+
+    private double mean = 0;
+    // sum of squared differences from the mean
+    private double m2 = 0;
+
+    // stream positions of candidate minimums (increasing values) and maximums (decreasing values)
+    private final long[] minQueue;
+    private final long[] maxQueue;
+    private int minHead, minSize;
+    private int maxHead, maxSize;
+
+    public SlidingWindowStats(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("window must hold at least 1 value");
+        }
+        this.windowSize = windowSize;
+        values = new double[windowSize];
+        minQueue = new long[windowSize];
+        maxQueue = new long[windowSize];
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Number of values in the window.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == windowSize;
+    }
+
+    public void clear() {
+        count = 0;
+        size = 0;
+        mean = 0;
+        m2 = 0;
+        minHead = minSize = 0;
+        maxHead = maxSize = 0;
+    }
+
+    public void add(double value) {
+        int slot = (int) (count % windowSize);
+        if (size == windowSize) {
+            double old = values[slot];
+            double oldMean = mean;
+            mean += (value - old) / windowSize;
+            m2 += (value - old) * (value - mean + old - oldMean);
+            if (m2 < 0) {
+                // rounding when the window holds identical values
+                m2 = 0;
+            }
+        } else {
+            size++;
+            double delta = value - mean;
+            mean += delta / size;
+            m2 += delta * (value - mean);
+        }
+        values[slot] = value;
+
+        long oldest = count - windowSize + 1;
+        // drop positions that left the window, then the candidates the new value beats
+        if (minSize > 0 && minQueue[minHead] < oldest) {
+            minHead = (minHead + 1) % windowSize;
+            minSize--;
+        }
+        while (minSize > 0 && values[(int) (minQueue[(minHead + minSize - 1) % windowSize] % windowSize)] >= value) {
+            minSize--;
+        }
+        minQueue[(minHead + minSize) % windowSize] = count;
+        minSize++;
+
+        if (maxSize > 0 && maxQueue[maxHead] < oldest) {
+            maxHead = (maxHead + 1) % windowSize;
+            maxSize--;
+        }
+        while (maxSize > 0 && values[(int) (maxQueue[(maxHead + maxSize - 1) % windowSize] % windowSize)] <= value) {
+            maxSize--;
+        }
+        maxQueue[(maxHead + maxSize) % windowSize] = count;
+        maxSize++;
+
+        count++;
+    }
+
+    /**
+     * @return the mean of the window, 0 if it's empty
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return the population variance of the window, 0 if it's empty
+     */
+    public double getVariance() {
+        return size > 0 ? m2 / size : 0;
+    }
+
+    public double getStdDev() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * @return the smallest value in the window, NaN if it's empty
+     */
+    public double getMin() {
+        return minSize > 0 ? values[(int) (minQueue[minHead] % windowSize)] : Double.NaN;
+    }
+
+    /**
+     * @return the largest value in the window, NaN if it's empty
+     */
+    public double getMax() {
+        return maxSize > 0 ? values[(int) (maxQueue[maxHead] % windowSize)] : Double.NaN;
+    }
+}
@@ -52,6 +52,7 @@ public class TextureCubeRenderer implements GLSurfaceView.Renderer {
    private int lastDisplayedCube=-1;
    private float[] rotationDegrees = {0.0f, 90.0f, 180.0f, 270.0f};
    private RotationVector rv = new RotationVector();
+   private final float[] rotationMatrix = new float[9];
 
    // Constructor
    public TextureCubeRenderer(MainActivity mainActivity, int screenRotation) {
@@ -151,8 +152,9 @@ public class TextureCubeRenderer implements GLSurfaceView.Renderer {
 
 	   //quaternion.set(mainActivity.mainQuaternion);
 
-       if(mainActivity.rotationMatrix != null)
-           quaternion.computeFromRM(mainActivity.rotationMatrix);
+       OrientationSnapshot orientation = mainActivity.orientation;
+       if(orientation != null && orientation.read(rotationMatrix) >= 0)
+           quaternion.computeFromRM(rotationMatrix);
 
 	   rv.computeFromQuaternion(quaternion, MyUtils.AngleUnits.DEGREES);
 	   
@@ -0,0 +1,26 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts the bytes allocated by the current thread using the HotSpot thread MX bean.
+ * Only meaningful on a desktop JVM, which is where the unit tests run.
+ */
+class AllocationCounter {
+    private final com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final long threadId = Thread.currentThread().getId();
+    private long start;
+
+    AllocationCounter() {
+        bean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    void start() {
+        start = bean.getThreadAllocatedBytes(threadId);
+    }
+
+    long allocatedBytes() {
+        return bean.getThreadAllocatedBytes(threadId) - start;
+    }
+}
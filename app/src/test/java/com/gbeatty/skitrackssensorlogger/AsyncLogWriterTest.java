@@ -0,0 +1,103 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AsyncLogWriterTest {
+
+    @Test
+    public void write_keepsEveryRecordFromConcurrentProducersInOrder() throws Exception {
+        File file = tempFile();
+        final AsyncLogWriter writer = new AsyncLogWriter(new BinaryLogWriter(file), 1024, 256, 1000000L);
+        writer.start();
+
+        final int producers = 3;
+        final int perProducer = 50000;
+        final CountDownLatch ready = new CountDownLatch(producers);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int sensor = p + 1;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    for (int i = 0; i < perProducer; i++) {
+                        // spin instead of dropping so the test checks ordering, not timing
+                        while (!writer.write(sensor, i, i, 0.0f, 0.0f)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        writer.close();
+        assertEquals(producers * (long) perProducer, writer.getWrittenRecords());
+
+        BinaryLogReader reader = new BinaryLogReader(file);
+        long[] next = new long[producers + 1];
+        long[] time = new long[1];
+        float[] xyz = new float[3];
+        int sensor;
+        int count = 0;
+        while ((sensor = reader.next(time, xyz)) >= 0) {
+            assertEquals(next[sensor], time[0]);
+            next[sensor]++;
+            count++;
+        }
+        reader.close();
+        assertEquals(producers * perProducer, count);
+    }
+
+    @Test
+    public void write_dropsAndCountsWhenFull() throws IOException {
+        File file = tempFile();
+        AsyncLogWriter writer = new AsyncLogWriter(new BinaryLogWriter(file), 16, 256, 1000000L);
+
+        // the writer thread isn't running, so nothing frees up slots
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i < 16, writer.write(SampleSource.SENSOR_GYRO, i, 0.0f, 0.0f, 0.0f));
+        }
+        assertEquals(4, writer.getDroppedRecords());
+        assertEquals(16, writer.getBacklog());
+
+        writer.close();
+        assertEquals(16, writer.getWrittenRecords());
+        assertEquals(BinaryLogWriter.HEADER_SIZE + 16L * BinaryLogWriter.RECORD_SIZE, file.length());
+    }
+
+    @Test
+    public void post_runsTaskOnWriterThread() throws Exception {
+        AsyncLogWriter writer = new AsyncLogWriter(new BinaryLogWriter(tempFile()));
+        writer.start();
+
+        final AtomicReference<String> threadName = new AtomicReference<String>();
+        final CountDownLatch done = new CountDownLatch(1);
+        assertTrue(writer.post(new Runnable() {
+            @Override
+            public void run() {
+                threadName.set(Thread.currentThread().getName());
+                done.countDown();
+            }
+        }));
+        writer.close();
+
+        assertEquals(0, done.getCount());
+        assertEquals("LogWriter", threadName.get());
+    }
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("imu", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,80 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class BinaryLogTest {
+
+    @Test
+    public void reader_returnsRecordsInWriteOrder() throws IOException {
+        File file = tempFile();
+        // a small buffer so the writer has to flush several blocks
+        BinaryLogWriter writer = new BinaryLogWriter(file, 256);
+        for (int i = 0; i < 1000; i++) {
+            writer.write(1 + i % 3, i * 10000000L, i, -i, i * 0.5f);
+        }
+        writer.close();
+        assertEquals(BinaryLogWriter.HEADER_SIZE + 1000L * BinaryLogWriter.RECORD_SIZE, file.length());
+
+        BinaryLogReader reader = new BinaryLogReader(file);
+        long[] time = new long[1];
+        float[] xyz = new float[3];
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(1 + i % 3, reader.next(time, xyz));
+            assertEquals(i * 10000000L, time[0]);
+            assertArrayEquals(new float[]{i, -i, i * 0.5f}, xyz, 0.0f);
+        }
+        assertEquals(-1, reader.next(time, xyz));
+        reader.close();
+    }
+
+    @Test
+    public void reader_ignoresPartialRecordAtEnd() throws IOException {
+        File file = tempFile();
+        BinaryLogWriter writer = new BinaryLogWriter(file);
+        writer.write(SampleSource.SENSOR_GYRO, 1L, 1.0f, 2.0f, 3.0f);
+        writer.write(SampleSource.SENSOR_GYRO, 2L, 1.0f, 2.0f, 3.0f);
+        writer.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 5);
+        raf.close();
+
+        BinaryLogReader reader = new BinaryLogReader(file);
+        long[] time = new long[1];
+        float[] xyz = new float[3];
+        assertEquals(SampleSource.SENSOR_GYRO, reader.next(time, xyz));
+        assertEquals(-1, reader.next(time, xyz));
+        reader.close();
+    }
+
+    @Test
+    public void writer_ignoresSamplesAfterClose() throws IOException {
+        File file = tempFile();
+        BinaryLogWriter writer = new BinaryLogWriter(file);
+        writer.close();
+        writer.write(SampleSource.SENSOR_ACCEL, 1L, 0.0f, 0.0f, 9.81f);
+        assertEquals(0, writer.getRecordCount());
+        assertEquals(BinaryLogWriter.HEADER_SIZE, file.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void reader_rejectsOtherFiles() throws IOException {
+        File file = tempFile();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeBytes("10_18_2026_09_30_00.005,0.0,0.0,9.81\n");
+        raf.close();
+        new BinaryLogReader(file);
+    }
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("imu", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,191 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressedLogTest {
+
+    private static final int SECONDS = 120;
+
+    @Test
+    public void roundTrip_keepsTimesAndValuesWithinHalfAQuantum() throws IOException {
+        for (boolean deflate : new boolean[]{false, true}) {
+            Session session = new Session(SECONDS);
+            File file = tempFile();
+            CompressedLogWriter writer = new CompressedLogWriter(file, deflate, CompressedLogWriter.DEFAULT_QUANTA, 4096);
+            for (int i = 0; i < session.count; i++) {
+                writer.write(session.sensors[i], session.times[i], session.values[i * 3], session.values[i * 3 + 1], session.values[i * 3 + 2]);
+            }
+            writer.close();
+
+            CompressedLogReader reader = new CompressedLogReader(file);
+            assertEquals(deflate, reader.isDeflated());
+            long[] time = new long[1];
+            float[] xyz = new float[3];
+            for (int i = 0; i < session.count; i++) {
+                assertEquals(session.sensors[i], reader.next(time, xyz));
+                assertEquals(session.times[i], time[0]);
+                float tolerance = CompressedLogWriter.DEFAULT_QUANTA[session.sensors[i] - 1] * 0.5001f;
+                for (int axis = 0; axis < 3; axis++) {
+                    assertEquals(session.values[i * 3 + axis], xyz[axis], tolerance);
+                }
+            }
+            assertEquals(-1, reader.next(time, xyz));
+            reader.close();
+        }
+    }
+
+    @Test
+    public void events_passThroughWithoutDisturbingTheSamples() throws IOException {
+        File file = tempFile();
+        CompressedLogWriter writer = new CompressedLogWriter(file, true);
+        writer.write(SampleSource.SENSOR_GYRO, 1000000000L, 1.5f, 0, -2);
+        writer.write(SampleSource.SENSOR_EVENT, 1005000000L, RunSegmenter.EVENT_TURN, -35.25f, 1.75f);
+        writer.write(SampleSource.SENSOR_GYRO, 1010000000L, 1.5f, 0, -2);
+        writer.close();
+
+        CompressedLogReader reader = new CompressedLogReader(file);
+        long[] time = new long[1];
+        float[] xyz = new float[3];
+        assertEquals(SampleSource.SENSOR_GYRO, reader.next(time, xyz));
+        assertEquals(SampleSource.SENSOR_EVENT, reader.next(time, xyz));
+        assertEquals(1005000000L, time[0]);
+        assertArrayEquals(new float[]{RunSegmenter.EVENT_TURN, -35.25f, 1.75f}, xyz, 0.0f);
+        assertEquals(SampleSource.SENSOR_GYRO, reader.next(time, xyz));
+        assertEquals(1010000000L, time[0]);
+        assertEquals(1.5f, xyz[0], CompressedLogWriter.DEFAULT_QUANTA[1]);
+        assertEquals(-1, reader.next(time, xyz));
+        reader.close();
+    }
+
+    @Test
+    public void compressedLog_isAtLeastEightTimesSmallerThanCsv() throws IOException {
+        Session session = new Session(SECONDS);
+        File file = tempFile();
+        CompressedLogWriter writer = new CompressedLogWriter(file, true);
+        for (int i = 0; i < session.count; i++) {
+            writer.write(session.sensors[i], session.times[i], session.values[i * 3], session.values[i * 3 + 1], session.values[i * 3 + 2]);
+        }
+        writer.close();
+
+        long csvSize = session.csvSize();
+        assertTrue("csv " + csvSize + " bytes, compressed " + file.length() + " bytes", file.length() * 8 <= csvSize);
+    }
+
+    @Test
+    public void reader_ignoresPartialBlockAtEnd() throws IOException {
+        Session session = new Session(10);
+        File file = tempFile();
+        CompressedLogWriter writer = new CompressedLogWriter(file, false, CompressedLogWriter.DEFAULT_QUANTA, 1024);
+        for (int i = 0; i < session.count; i++) {
+            writer.write(session.sensors[i], session.times[i], session.values[i * 3], session.values[i * 3 + 1], session.values[i * 3 + 2]);
+        }
+        writer.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 10);
+        raf.close();
+
+        CompressedLogReader reader = new CompressedLogReader(file);
+        long[] time = new long[1];
+        float[] xyz = new float[3];
+        int count = 0;
+        while (reader.next(time, xyz) >= 0) {
+            assertEquals(session.times[count], time[0]);
+            count++;
+        }
+        reader.close();
+        assertTrue(count > 0 && count < session.count);
+    }
+
+    @Test
+    public void sampleLogs_opensBothFormats() throws IOException {
+        File compressed = tempFile();
+        new CompressedLogWriter(compressed, true).close();
+        SampleSource source = SampleLogs.open(compressed);
+        assertTrue(source instanceof CompressedLogReader);
+        source.close();
+
+        File binary = tempFile();
+        new BinaryLogWriter(binary).close();
+        source = SampleLogs.open(binary);
+        assertTrue(source instanceof BinaryLogReader);
+        source.close();
+    }
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("imu", ".imz");
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * A skier's head at 100Hz accel and gyro and 10Hz mag: slow turns plus sensor noise,
+     * at the resolution the sensors deliver.
+     */
+    private static class Session {
+        final int count;
+        final int[] sensors;
+        final long[] times;
+        final float[] values;
+
+        Session(int seconds) {
+            int max = seconds * 210;
+            sensors = new int[max];
+            times = new long[max];
+            values = new float[max * 3];
+
+            Random random = new Random(42);
+            long start = 1792324790000L * 1000000L;
+            int n = 0;
+            for (int i = 0; i < seconds * 100; i++) {
+                long t = start + i * 10000000L;
+                double phase = 2 * Math.PI * i / 300.0;
+
+                n = add(n, SampleSource.SENSOR_ACCEL, t, 1.0f / 16384.0f,
+                        0.3 * Math.sin(phase) + 0.004 * random.nextGaussian(),
+                        0.05 + 0.004 * random.nextGaussian(),
+                        0.95 + 0.1 * Math.cos(phase) + 0.004 * random.nextGaussian());
+                n = add(n, SampleSource.SENSOR_GYRO, t, 1.0f / 131.2f,
+                        5 * Math.cos(phase) + 0.1 * random.nextGaussian(),
+                        0.1 * random.nextGaussian(),
+                        40 * Math.sin(phase) + 0.1 * random.nextGaussian());
+                if (i % 10 == 0) {
+                    n = add(n, SampleSource.SENSOR_MAG, t + 5000000L, 1.0f / 16.0f,
+                            20 * Math.cos(phase) + 0.3 * random.nextGaussian(),
+                            20 * Math.sin(phase) + 0.3 * random.nextGaussian(),
+                            -40 + 0.3 * random.nextGaussian());
+                }
+            }
+            count = n;
+        }
+
+        private int add(int n, int sensor, long time, float resolution, double x, double y, double z) {
+            sensors[n] = sensor;
+            times[n] = time;
+            values[n * 3] = Math.round(x / resolution) * resolution;
+            values[n * 3 + 1] = Math.round(y / resolution) * resolution;
+            values[n * 3 + 2] = Math.round(z / resolution) * resolution;
+            return n + 1;
+        }
+
+        // the size of the same samples as Accel_/Gyro_/Mag_ CSV files
+        long csvSize() {
+            SimpleDateFormat format = new SimpleDateFormat("MM_dd_yyyy_hh_mm_ss.SSS");
+            long size = 0;
+            for (int i = 0; i < count; i++) {
+                String line = format.format(new Date(times[i] / 1000000L)) + ',' + values[i * 3] + ',' + values[i * 3 + 1] + ',' + values[i * 3 + 2] + '\n';
+                size += line.length();
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class CsvSessionSourceTest {
+
+    @Test
+    public void next_mergesSensorsInTimeOrder() throws IOException {
+        File accel = csv("10_18_2026_09_30_00.005,0.0,0.0,9.81\n10_18_2026_09_30_00.015,0.0,0.0,9.81\n");
+        File gyro = csv("10_18_2026_09_30_00.000,1.0,2.0,3.0\n10_18_2026_09_30_00.010,1.0,2.0,3.0\n10_18_2026_09_30_00.020");
+        File mag = csv("10_18_2026_09_30_00.012,0.0,20.0,-40.0\n");
+        CsvSessionSource source = new CsvSessionSource(accel, gyro, mag);
+
+        long[] time = new long[1];
+        float[] xyz = new float[3];
+        int[] expected = {SampleSource.SENSOR_GYRO, SampleSource.SENSOR_ACCEL, SampleSource.SENSOR_GYRO,
+                SampleSource.SENSOR_MAG, SampleSource.SENSOR_ACCEL};
+        long first = 0;
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], source.next(time, xyz));
+            if (i == 0) {
+                first = time[0];
+                assertArrayEquals(new float[]{1.0f, 2.0f, 3.0f}, xyz, 0.0f);
+            }
+        }
+        assertEquals(15000000L, time[0] - first);
+        // the closing timestamp without values is skipped
+        assertEquals(-1, source.next(time, xyz));
+        source.close();
+    }
+
+    @Test
+    public void next_unwrapsTwelveHourClockAtNoon() throws IOException {
+        File accel = csv("10_18_2026_11_59_59.990,0.0,0.0,9.81\n10_18_2026_12_00_00.010,0.0,0.0,9.81\n10_18_2026_01_00_00.000,0.0,0.0,9.81\n");
+        File gyro = csv("");
+        CsvSessionSource source = new CsvSessionSource(accel, gyro, null);
+
+        long[] time = new long[1];
+        float[] xyz = new float[3];
+        source.next(time, xyz);
+        long beforeNoon = time[0];
+        source.next(time, xyz);
+        assertEquals(20000000L, time[0] - beforeNoon);
+        source.next(time, xyz);
+        assertEquals(3600010000000L, time[0] - beforeNoon);
+        source.close();
+    }
+
+    @Test
+    public void next_producesZeroMagWithEachGyroSampleWithoutMagFile() throws IOException {
+        File accel = csv("");
+        File gyro = csv("10_18_2026_09_30_00.000,1.0,2.0,3.0\n");
+        CsvSessionSource source = new CsvSessionSource(accel, gyro, null);
+
+        long[] time = new long[1];
+        float[] xyz = new float[3];
+        assertEquals(SampleSource.SENSOR_GYRO, source.next(time, xyz));
+        long gyroTime = time[0];
+        assertEquals(SampleSource.SENSOR_MAG, source.next(time, xyz));
+        assertEquals(gyroTime, time[0]);
+        assertArrayEquals(new float[]{0.0f, 0.0f, 0.0f}, xyz, 0.0f);
+        assertEquals(-1, source.next(time, xyz));
+        source.close();
+    }
+
+    private static File csv(String contents) throws IOException {
+        File file = File.createTempFile("session", ".csv");
+        file.deleteOnExit();
+        FileWriter writer = new FileWriter(file);
+        writer.write(contents);
+        writer.close();
+        return file;
+    }
+}
@@ -0,0 +1,102 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GyroBiasEstimatorTest {
+
+    private static final float[] BIAS = {0.6f, -0.3f, 0.8f};
+    // an uncalibrated BMI160's offset
+    private static final float[] LARGE_BIAS = {2.0f, -2.0f, 1.2f};
+
+    private final Random random = new Random(7);
+    private final FrameBlock frames = new FrameBlock(32);
+    private final float[] mag = {20, 0, 40};
+    private long time = 0;
+    private float[] boardBias = BIAS;
+    // degrees the board has rolled about y
+    private double roll = 0;
+
+    @Test
+    public void stillBoard_biasIsLearnedAndSubtracted() {
+        GyroBiasEstimator estimator = new GyroBiasEstimator();
+        for (int block = 0; block < 40; block++) {
+            fill(0.0f, 0.0f, 0.0f);
+            estimator.correct(frames);
+        }
+
+        float[] bias = new float[3];
+        estimator.getBias(bias);
+        assertArrayEquals(BIAS, bias, 0.03f);
+        assertTrue(estimator.isStationary());
+        // the last block comes out close to zero rate
+        for (int i = 0; i < frames.count; i++) {
+            assertEquals(0, frames.gz[i], 0.5);
+        }
+    }
+
+    @Test
+    public void uncalibratedBoard_largeBiasIsLearned() {
+        boardBias = LARGE_BIAS;
+        GyroBiasEstimator estimator = new GyroBiasEstimator();
+        for (int block = 0; block < 40; block++) {
+            fill(0.0f, 0.0f, 0.0f);
+            estimator.correct(frames);
+        }
+
+        float[] bias = new float[3];
+        estimator.getBias(bias);
+        assertArrayEquals(LARGE_BIAS, bias, 0.05f);
+    }
+
+    @Test
+    public void movingBoard_biasIsLeftAlone() {
+        GyroBiasEstimator estimator = new GyroBiasEstimator();
+        // carving: the rate and the load on the board change all the time
+        for (int block = 0; block < 40; block++) {
+            fill(30.0f, 0.0f, 0.0f);
+            estimator.correct(frames);
+        }
+        // turning slowly and smoothly, e.g. on a chairlift going around the top station
+        for (int block = 0; block < 40; block++) {
+            fill(0.0f, 8.0f, 0.0f);
+            estimator.correct(frames);
+        }
+        // rolling over slower than any bias, e.g. edging into a long traverse: the gyro is as
+        // quiet as standing still, but gravity turns in the board's frame
+        for (int block = 0; block < 40; block++) {
+            fill(0.0f, 0.0f, 0.6f);
+            estimator.correct(frames);
+        }
+
+        float[] bias = new float[3];
+        estimator.getBias(bias);
+        assertArrayEquals(new float[]{0, 0, 0}, bias, 0.0f);
+        assertEquals(0, estimator.getStationaryFrames());
+    }
+
+    // a block of 100Hz frames of a board lying flat, or rolled by what rollRate added up to,
+    // with the gyro bias and noise
+    private void fill(float swing, float turnRate, float rollRate) {
+        frames.clear();
+        float[] gyro = new float[3];
+        float[] accel = new float[3];
+        while (!frames.isFull()) {
+            float motion = swing * (float) Math.sin(random.nextDouble() * 2 * Math.PI);
+            for (int j = 0; j < 3; j++) {
+                gyro[j] = boardBias[j] + motion + (float) random.nextGaussian() * 0.1f;
+                accel[j] = (float) random.nextGaussian() * 0.003f + motion * 0.01f;
+            }
+            gyro[1] += rollRate;
+            gyro[2] += turnRate;
+            roll += rollRate * 0.01;
+            accel[0] += (float) Math.sin(Math.toRadians(roll));
+            accel[2] += (float) Math.cos(Math.toRadians(roll));
+            time += 10000000L;
+            frames.add(time, gyro, accel, mag);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InitialAlignmentTest {
+
+    private static final long FRAME_NANOS = 10000000L;
+
+    // tilted on two axes, in g and uT
+    private static final float[] ACCEL = {0.3f, -0.2f, 0.93f};
+    private static final float[] MAG = {15.0f, 25.0f, -35.0f};
+    private static final float[] STILL = {0.0f, 0.0f, 0.0f};
+
+    private final FrameBlock frames = new FrameBlock(200);
+    private long time = 0;
+
+    @Test
+    public void stillBoard_isAlignedOnTheFirstWindow() {
+        InitialAlignment alignment = new InitialAlignment();
+        add(alignment, 100, STILL, MAG);
+
+        assertTrue(alignment.isAligned());
+        assertTrue(alignment.hasHeading());
+        assertEquals(InitialAlignment.DEFAULT_WINDOW * FRAME_NANOS, alignment.getAlignedTime());
+        float[] expected = new float[9];
+        assertTrue(SensorMath.getRotationMatrix(expected, null, unit(ACCEL), MAG));
+        float[] R = new float[9];
+        alignment.getRotationMatrix(R);
+        assertArrayEquals(expected, R, 1e-5f);
+    }
+
+    @Test
+    public void movingBoard_waitsForAStillWindowOrTheTimeout() {
+        InitialAlignment alignment = new InitialAlignment();
+        add(alignment, 30, new float[]{0.0f, 0.0f, 50.0f}, MAG);
+        assertFalse(alignment.isAligned());
+        add(alignment, 100, STILL, MAG);
+        assertEquals((30 + InitialAlignment.DEFAULT_WINDOW) * FRAME_NANOS, alignment.getAlignedTime());
+
+        // never still, aligned on what there is after a second
+        InitialAlignment turning = new InitialAlignment();
+        time = 0;
+        add(turning, 200, new float[]{0.0f, 0.0f, 50.0f}, MAG);
+        assertTrue(turning.isAligned());
+        assertEquals(FRAME_NANOS + InitialAlignment.DEFAULT_TIMEOUT_NANOS, turning.getAlignedTime());
+    }
+
+    @Test
+    public void withoutMagnetometer_alignsTheTiltOnly() {
+        InitialAlignment alignment = new InitialAlignment();
+        add(alignment, 100, STILL, STILL);
+
+        assertTrue(alignment.isAligned());
+        assertFalse(alignment.hasHeading());
+        float[] R = new float[9];
+        alignment.getRotationMatrix(R);
+        float[] up = unit(ACCEL);
+        assertArrayEquals(up, new float[]{R[6], R[7], R[8]}, 1e-5f);
+        for (int row = 0; row < 3; row++) {
+            float[] r = {R[3 * row], R[3 * row + 1], R[3 * row + 2]};
+            assertEquals(1.0f, r[0] * r[0] + r[1] * r[1] + r[2] * r[2], 1e-5f);
+        }
+        assertEquals(0.0f, R[0] * R[3] + R[1] * R[4] + R[2] * R[5], 1e-5f);
+    }
+
+    @Test
+    public void madgwick_seededWithTheAlignment_hasNothingLeftToConverge() {
+        InitialAlignment alignment = new InitialAlignment();
+        add(alignment, 100, STILL, MAG);
+        double[] seed = new double[4];
+        alignment.getQuaternionNWU(seed);
+
+        MadgwickAHRSIMU seeded = new MadgwickAHRSIMU(0.1, seed.clone(), 100);
+        MadgwickAHRSIMU unseeded = new MadgwickAHRSIMU(0.1, new double[]{1, 0, 0, 0}, 100);
+        for (int i = 0; i < 100; i++) {
+            seeded.AHRSUpdate(0, 0, 0, ACCEL[0], ACCEL[1], ACCEL[2], MAG[0], MAG[1], MAG[2]);
+            unseeded.AHRSUpdate(0, 0, 0, ACCEL[0], ACCEL[1], ACCEL[2], MAG[0], MAG[1], MAG[2]);
+        }
+
+        // a second of updates leaves the seed where it is, and the identity still far off
+        assertTrue(Math.abs(dot(seed, seeded.getOrientationQuaternion())) > 0.9999);
+        assertTrue(Math.abs(dot(seed, unseeded.getOrientationQuaternion())) < 0.99);
+    }
+
+    private void add(InitialAlignment alignment, int count, float[] gyro, float[] mag) {
+        frames.clear();
+        for (int i = 0; i < count; i++) {
+            time += FRAME_NANOS;
+            frames.add(time, gyro, ACCEL, mag);
+        }
+        for (int i = 0; i < frames.count; i++) {
+            alignment.add(frames, i);
+        }
+    }
+
+    private static float[] unit(float[] v) {
+        float norm = (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+        return new float[]{v[0] / norm, v[1] / norm, v[2] / norm};
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2] + a[3] * b[3];
+    }
+}
@@ -0,0 +1,126 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MadgwickAHRSIMUTest {
+
+    // a head turning at 20 deg/s, tilted a little forward
+    private static final double[] SAMPLE = {0.05, -0.02, 0.35, 0.1, 0.02, 0.99};
+
+    @Test
+    public void imuUpdate_leavesInputAloneAndAllocatesNothing() {
+        MadgwickAHRSIMU filter = new MadgwickAHRSIMU(0.1, new double[]{1, 0, 0, 0}, 400);
+        double[] data = SAMPLE.clone();
+        AllocationCounter counter = new AllocationCounter();
+
+        // warm up so class loading and JIT compilation don't get counted
+        for (int i = 0; i < 20000; i++) {
+            filter.IMUUpdate(data);
+            filter.AHRSUpdate(data[0], data[1], data[2], data[3], data[4], data[5], 0, 0, 0);
+        }
+
+        counter.start();
+        for (int i = 0; i < 20000; i++) {
+            filter.IMUUpdate(data);
+            filter.AHRSUpdate(data[0], data[1], data[2], data[3], data[4], data[5], 0, 0, 0);
+        }
+        long bytes = counter.allocatedBytes();
+
+        assertArrayEquals(SAMPLE, data, 0.0);
+        assertTrue("filter allocated " + bytes + " bytes for 40000 updates", bytes < 1024);
+    }
+
+    @Test
+    public void update_matchesOneUpdatePerSample() {
+        int count = 100;
+        float[] samples = new float[3 + count * MadgwickAHRS.IMU_STRIDE];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < MadgwickAHRS.IMU_STRIDE; j++) {
+                samples[3 + i * MadgwickAHRS.IMU_STRIDE + j] = (float) (SAMPLE[j] * (1 + 0.01 * i));
+            }
+        }
+
+        MadgwickAHRSIMU batch = new MadgwickAHRSIMU(0.1, new double[]{1, 0, 0, 0}, 400);
+        batch.update(samples, 3, count);
+
+        MadgwickAHRSIMU single = new MadgwickAHRSIMU(0.1, new double[]{1, 0, 0, 0}, 400);
+        for (int i = 3; i < samples.length; i += MadgwickAHRS.IMU_STRIDE) {
+            single.IMUUpdate(new double[]{samples[i], samples[i + 1], samples[i + 2], samples[i + 3], samples[i + 4], samples[i + 5]});
+        }
+
+        assertArrayEquals(single.getOrientationQuaternion(), batch.getOrientationQuaternion(), 0.0);
+    }
+
+    @Test
+    public void updateFrameBlock_integratesOverTheTimestampIntervals() {
+        // turning at 90 deg/s about z, sampled irregularly; no accel or mag so there's no feedback
+        FrameBlock frames = new FrameBlock(64);
+        float[] gyro = {0, 0, 90};
+        float[] zero = {0, 0, 0};
+        long time = 1000000000L;
+        for (int i = 0; i < frames.capacity; i++) {
+            frames.add(time, gyro, zero, zero);
+            time += (i % 3 + 1) * 5000000L;
+        }
+        double seconds = (frames.timeNanos[frames.count - 1] - frames.timeNanos[0]) / 1e9;
+
+        MadgwickAHRSIMU batch = new MadgwickAHRSIMU(0.1, new double[]{1, 0, 0, 0}, 100);
+        batch.update(frames, Math.PI / 180);
+        MadgwickAHRSIMU single = new MadgwickAHRSIMU(0.1, new double[]{1, 0, 0, 0}, 100);
+        for (int i = 0; i < frames.count; i++) {
+            single.update(frames, i, 1, Math.PI / 180);
+        }
+
+        // the first frame is integrated over the nominal 10ms
+        double expected = Math.toRadians(90 * (seconds + 0.01));
+        double[] q = batch.getOrientationQuaternion();
+        assertEquals(expected, 2 * Math.atan2(q[3], q[0]), 1e-3);
+        assertArrayEquals(q, single.getOrientationQuaternion(), 0.0);
+    }
+
+    @Test
+    public void timestampedUpdate_clampsGapsAndTracksJitter() {
+        MadgwickAHRSIMU filter = new MadgwickAHRSIMU(0.1, new double[]{1, 0, 0, 0}, 100);
+        double rate = Math.toRadians(90);
+        long time = 0;
+        for (int i = 0; i <= 100; i++) {
+            time += i % 2 == 0 ? 9000000L : 11000000L;
+            filter.update(time, 0, 0, rate, 0, 0, 0, 0, 0, 0);
+        }
+        // a 2s dropout, then one out of order sample
+        filter.update(time + 2000000000L, 0, 0, rate, 0, 0, 0, 0, 0, 0);
+        filter.update(time, 0, 0, rate, 0, 0, 0, 0, 0, 0);
+
+        assertEquals(0.01, filter.getDtMean(), 1e-9);
+        assertEquals(0.001, filter.getDtJitter(), 1e-5);
+        assertEquals(2, filter.getClampedIntervals());
+
+        // 100 intervals, the first update and the out of order one at 10ms, the gap at 50ms
+        double seconds = (time - 9000000L) / 1e9 + 0.01 + 0.05 + 0.01;
+        double[] q = filter.getOrientationQuaternion();
+        assertEquals(rate * seconds, 2 * Math.atan2(q[3], q[0]), 1e-3);
+    }
+
+    @Test
+    public void setSamplingFreq_changesNominalPeriodAndMaxDt() {
+        MadgwickAHRSIMU filter = new MadgwickAHRSIMU(0.1, new double[]{1, 0, 0, 0}, 100);
+        filter.setSamplingFreq(25);
+        assertEquals(MadgwickAHRS.DEFAULT_MAX_DT_PERIODS / 25, filter.getMaxDt(), 1e-12);
+
+        double rate = Math.toRadians(90);
+        filter.IMUUpdate(0, 0, rate, 0, 0, 0);
+        double[] q = filter.getOrientationQuaternion();
+        // one Euler step of the quaternion rotates by 2 atan(rate dt / 2)
+        assertEquals(2 * Math.atan(rate / 25 / 2), 2 * Math.atan2(q[3], q[0]), 1e-12);
+    }
+
+    @Test
+    public void imuUpdate_accelAlongEstimatedGravityStaysFinite() {
+        MadgwickAHRSIMU filter = new MadgwickAHRSIMU(0.1, new double[]{1, 0, 0, 0}, 400);
+        filter.IMUUpdate(0, 0, 0, 0, 0, 1);
+
+        assertArrayEquals(new double[]{1, 0, 0, 0}, filter.getOrientationQuaternion(), 1e-12);
+    }
+}
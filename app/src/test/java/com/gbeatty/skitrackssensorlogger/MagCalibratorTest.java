@@ -0,0 +1,146 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class MagCalibratorTest {
+
+    private static final double FIELD = 48.0;
+    private static final double[] OFFSET = {-3.2, 12.2, -9.9};
+    // symmetric, like the soft iron matrices we've measured, only stronger
+    private static final double[] DISTORTION = {
+            1.05, 0.02, 0.0,
+            0.02, 0.93, 0.01,
+            0.0, 0.01, 1.02};
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void fit_mapsTheDistortedFieldOntoASphere() {
+        MagCalibrator calibrator = new MagCalibrator();
+        calibrator.setExecutor(DIRECT);
+        Random random = new Random(42);
+        float[] sample = new float[3];
+        for (int i = 0; i < 2000; i++) {
+            distortedSample(random, OFFSET, sample);
+            calibrator.add(sample[0], sample[1], sample[2]);
+        }
+
+        MagCalibration calibration = calibrator.getCalibration();
+        assertTrue(calibrator.getFits() > 0);
+        assertEquals(0, calibrator.getRejectedFits());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(OFFSET[i], calibration.getOffset(i), 0.01);
+        }
+        // the field strength keeps the volume of the ellipsoid
+        assertEquals(FIELD * Math.cbrt(determinant(DISTORTION)), calibration.getFieldStrength(), 0.01);
+
+        float[] corrected = new float[3];
+        for (int i = 0; i < 100; i++) {
+            distortedSample(random, OFFSET, sample);
+            calibrator.correct(sample[0], sample[1], sample[2], corrected);
+            double length = Math.sqrt(corrected[0] * corrected[0] + corrected[1] * corrected[1] + corrected[2] * corrected[2]);
+            assertEquals(calibration.getFieldStrength(), length, 0.01);
+        }
+    }
+
+    @Test
+    public void fit_followsAHardIronOffsetThatChanges() {
+        MagCalibrator calibrator = new MagCalibrator();
+        calibrator.setExecutor(DIRECT);
+        Random random = new Random(42);
+        float[] sample = new float[3];
+        for (int i = 0; i < 2000; i++) {
+            distortedSample(random, OFFSET, sample);
+            calibrator.add(sample[0], sample[1], sample[2]);
+        }
+        // remounted next to something magnetic, the old samples fade out over a few minutes
+        double[] moved = {OFFSET[0] + 8.0, OFFSET[1] - 5.0, OFFSET[2]};
+        for (int i = 0; i < 5000; i++) {
+            distortedSample(random, moved, sample);
+            calibrator.add(sample[0], sample[1], sample[2]);
+        }
+
+        MagCalibration calibration = calibrator.getCalibration();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(moved[i], calibration.getOffset(i), 0.1);
+        }
+    }
+
+    @Test
+    public void fit_isRejectedWhileTheBoardHasOnlyTurnedAboutOneAxis() {
+        MagCalibrator calibrator = new MagCalibrator();
+        calibrator.setExecutor(DIRECT);
+        // skiing along flat ground, turning but never tilting
+        for (int i = 0; i < 1000; i++) {
+            double heading = i * 0.05;
+            calibrator.add((float) (30 * Math.cos(heading) + OFFSET[0]), (float) (30 * Math.sin(heading) + OFFSET[1]), (float) (-38 + OFFSET[2]));
+        }
+
+        assertEquals(0, calibrator.getFits());
+        assertSame(MagCalibration.IDENTITY, calibrator.getCalibration());
+    }
+
+    @Test
+    public void calibration_survivesEncoding() {
+        MagCalibration calibration = new MagCalibration(OFFSET, DISTORTION, FIELD, 1234);
+        MagCalibration decoded = MagCalibration.decode(calibration.encode());
+
+        assertNotNull(decoded);
+        assertEquals(calibration.encode(), decoded.encode());
+        assertEquals(1234, decoded.getSamples());
+        assertEquals(0.01, decoded.getSoftIron(1, 2), 0.0);
+        assertNull(MagCalibration.decode(null));
+        assertNull(MagCalibration.decode("1,2,3"));
+        assertNull(MagCalibration.decode("a,b,c,d,e,f,g,h,i,j,k,l,m,n"));
+    }
+
+    @Test
+    public void symmetricEigen_diagonalizes() {
+        double[] m = {4, 1, 2, 1, 3, 0.5, 2, 0.5, 5};
+        double[] values = new double[3];
+        double[] vectors = new double[9];
+        MagCalibrator.symmetricEigen(m.clone(), values, vectors);
+
+        // m v = lambda v for every column
+        for (int n = 0; n < 3; n++) {
+            for (int i = 0; i < 3; i++) {
+                double mv = 0;
+                for (int j = 0; j < 3; j++) {
+                    mv += m[i * 3 + j] * vectors[j * 3 + n];
+                }
+                assertEquals(values[n] * vectors[i * 3 + n], mv, 1e-9);
+            }
+        }
+        assertEquals(12, values[0] + values[1] + values[2], 1e-9);
+    }
+
+    // a field of FIELD in a random direction, distorted the way the board distorts it
+    private static void distortedSample(Random random, double[] offset, float[] out) {
+        double x = random.nextGaussian();
+        double y = random.nextGaussian();
+        double z = random.nextGaussian();
+        double scale = FIELD / Math.sqrt(x * x + y * y + z * z);
+        x *= scale;
+        y *= scale;
+        z *= scale;
+        for (int i = 0; i < 3; i++) {
+            out[i] = (float) (DISTORTION[i * 3] * x + DISTORTION[i * 3 + 1] * y + DISTORTION[i * 3 + 2] * z + offset[i]);
+        }
+    }
+
+    private static double determinant(double[] m) {
+        return m[0] * (m[4] * m[8] - m[5] * m[7])
+                - m[1] * (m[3] * m[8] - m[5] * m[6])
+                + m[2] * (m[3] * m[7] - m[4] * m[6]);
+    }
+}
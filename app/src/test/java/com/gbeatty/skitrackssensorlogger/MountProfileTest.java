@@ -0,0 +1,77 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MountProfileTest {
+
+    @Test
+    public void helmet_matchesTheBoardOnTheSideOfTheHelmet() {
+        float[] out = new float[3];
+        MountProfile.HELMET.correct(1, 2, 3, out);
+        assertArrayEquals(new float[]{3, 2, -1}, out, 0.0f);
+
+        // the magnetometer is flipped about x before the same mapping
+        MountProfile.HELMET.correctMag(1, 2, 3, out);
+        assertArrayEquals(new float[]{-3, -2, -1}, out, 0.0f);
+    }
+
+    @Test
+    public void presets_keepGravityPointingDown() {
+        // gravity as each board's accelerometer reads it at rest: down, against the board's up axis
+        MountProfile[] mounts = {MountProfile.HELMET, MountProfile.CHEST, MountProfile.SKI, MountProfile.BOOT};
+        float[][] restingAccel = {{-1, 0, 0}, {0, -1, 0}, {0, 0, -1}, {-1, 0, 0}};
+        float[] out = new float[3];
+        for (int i = 0; i < mounts.length; i++) {
+            mounts[i].correct(restingAccel[i][0], restingAccel[i][1], restingAccel[i][2], out);
+            assertArrayEquals(mounts[i].getName(), new float[]{0, 0, 1}, out, 0.0f);
+
+            float[] matrix = new float[9];
+            mounts[i].getMatrix(matrix);
+            MountProfile.fromMatrix("copy", matrix);
+        }
+    }
+
+    @Test
+    public void fromMatrix_rejectsWhatIsNotARotation() {
+        float[][] invalid = {
+                {1, 0, 0, 0, 1, 0},
+                {2, 0, 0, 0, 1, 0, 0, 0, 1},
+                {1, 0, 0, 0, 1, 0, 0, 0, -1}};
+        for (float[] matrix : invalid) {
+            try {
+                MountProfile.fromMatrix("bad", matrix);
+                fail("accepted " + java.util.Arrays.toString(matrix));
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+
+        // a slightly tilted calibration
+        float c = (float) Math.cos(0.1);
+        float s = (float) Math.sin(0.1);
+        MountProfile tilted = MountProfile.fromMatrix("tilted", new float[]{c, 0, s, 0, 1, 0, -s, 0, c});
+        float[] out = new float[3];
+        tilted.correct(0, 0, 1, out);
+        assertArrayEquals(new float[]{s, 0, c}, out, 1e-6f);
+    }
+
+    @Test
+    public void correct_allocatesNothing() {
+        float[] out = new float[3];
+        AllocationCounter counter = new AllocationCounter();
+        for (int i = 0; i < 20000; i++) {
+            MountProfile.CHEST.correct(i, 1, 2, out);
+            MountProfile.CHEST.correctMag(i, 1, 2, out);
+        }
+
+        counter.start();
+        for (int i = 0; i < 20000; i++) {
+            MountProfile.CHEST.correct(i, 1, 2, out);
+            MountProfile.CHEST.correctMag(i, 1, 2, out);
+        }
+        long bytes = counter.allocatedBytes();
+
+        assertTrue("allocated " + bytes + " bytes for 40000 samples", bytes < 1024);
+    }
+}
@@ -0,0 +1,95 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class OrientationSnapshotTest {
+
+    @Test
+    public void read_beforeAndAfterPublish() {
+        OrientationSnapshot snapshot = new OrientationSnapshot();
+        float[] matrix = {7, 7, 7, 7, 7, 7, 7, 7, 7};
+        assertEquals(-1, snapshot.read(matrix));
+        assertEquals(7, matrix[0], 0);
+        assertEquals(0, snapshot.getVersion());
+
+        float[] published = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+        snapshot.publish(published, 123);
+        published[0] = 5;
+        assertEquals(123, snapshot.read(matrix));
+        assertArrayEquals(new float[]{1, 0, 0, 0, 1, 0, 0, 0, 1}, matrix, 0);
+        assertEquals(1, snapshot.getVersion());
+    }
+
+    @Test
+    public void readers_neverSeeAMixOfTwoPublishes() throws InterruptedException {
+        final OrientationSnapshot snapshot = new OrientationSnapshot();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicLong torn = new AtomicLong(0);
+        final AtomicLong reads = new AtomicLong(0);
+
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    float[] matrix = new float[9];
+                    while (!done.get()) {
+                        long time = snapshot.read(matrix);
+                        if (time < 0) {
+                            continue;
+                        }
+                        // every publish is one value everywhere, and its time
+                        for (float value : matrix) {
+                            if (value != time) {
+                                torn.incrementAndGet();
+                            }
+                        }
+                        reads.incrementAndGet();
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        float[] matrix = new float[9];
+        for (int i = 1; i <= 2000000; i++) {
+            for (int j = 0; j < 9; j++) {
+                matrix[j] = i;
+            }
+            snapshot.publish(matrix, i);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(0, torn.get());
+        assertTrue(reads.get() > 0);
+        assertEquals(2000000, snapshot.getVersion());
+    }
+
+    @Test
+    public void read_allocatesNothing() {
+        OrientationSnapshot snapshot = new OrientationSnapshot();
+        float[] matrix = new float[9];
+        AllocationCounter counter = new AllocationCounter();
+        for (int i = 0; i < 20000; i++) {
+            snapshot.publish(matrix, i);
+            snapshot.read(matrix);
+        }
+
+        counter.start();
+        for (int i = 0; i < 20000; i++) {
+            snapshot.publish(matrix, i);
+            snapshot.read(matrix);
+        }
+        long bytes = counter.allocatedBytes();
+
+        assertTrue("allocated " + bytes + " bytes for 20000 publishes and reads", bytes < 1024);
+    }
+}
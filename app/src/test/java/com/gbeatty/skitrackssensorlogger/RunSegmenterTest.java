@@ -0,0 +1,126 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RunSegmenterTest {
+
+    private static final long FRAME_NANOS = 10000000L;
+    private static final float[] LEVEL = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+
+    private final List<float[]> events = new ArrayList<float[]>();
+    private final RunSegmenter segmenter = new RunSegmenter(new RunSegmenter.Listener() {
+        @Override
+        public void onEvent(long timeNanos, int type, float value, float seconds) {
+            events.add(new float[]{timeNanos / 1e9f, type, value, seconds});
+        }
+    });
+    private final FrameBlock frames = new FrameBlock(50);
+    private long time = 0;
+    private double altitude = 2000;
+
+    @Test
+    public void liftThenRun_areReportedWithTheTurnsOfTheRun() {
+        // a minute up the chair, sitting still, then a minute of carving down
+        ride(60, 3.0, 0.0f, 0.0f);
+        assertEquals(1, events.size());
+        float[] lift = events.get(0);
+        assertEquals(RunSegmenter.EVENT_LIFT, lift[1], 0);
+        assertTrue(lift[0] > RunSegmenter.STATE_HOLD_NANOS / 1e9f && lift[0] < 30);
+        assertEquals(RunSegmenter.STATE_LIFT, segmenter.getState());
+        // nothing came before the lift
+        assertEquals(0, lift[3], 0);
+
+        ride(60, -5.0, 0.3f, 60.0f);
+        assertEquals(RunSegmenter.STATE_RUN, segmenter.getState());
+        assertEquals(1, segmenter.getLifts());
+        assertEquals(1, segmenter.getRuns());
+        assertEquals(RunSegmenter.EVENT_RUN, events.get(1)[1], 0);
+        // both are recognized the same hold after they began, so the lift lasted from one
+        // event to the other
+        assertEquals(events.get(1)[0] - lift[0], events.get(1)[3], 0.01f);
+
+        // a turn a second once the run is recognized, alternating sides
+        int turns = events.size() - 2;
+        assertEquals(segmenter.getTurns(), turns);
+        assertTrue("turns " + turns, turns >= 20 && turns <= 35);
+        for (int i = 2; i < events.size(); i++) {
+            float[] turn = events.get(i);
+            assertEquals(RunSegmenter.EVENT_TURN, turn[1], 0);
+            assertTrue(Math.abs(turn[2]) > 50 && Math.abs(turn[2]) <= 60);
+            assertTrue(turn[3] > 0.5f && turn[3] < 1.0f);
+            if (i > 2) {
+                assertTrue(turn[2] * events.get(i - 1)[2] < 0);
+            }
+        }
+    }
+
+    @Test
+    public void withoutGps_activityAloneMeansRun() {
+        for (int second = 0; second < 40; second++) {
+            frames(0.3f, 0.0f);
+        }
+        assertEquals(RunSegmenter.STATE_RUN, segmenter.getState());
+        assertTrue(Float.isNaN(events.get(0)[2]));
+
+        // standing still without GPS doesn't look like a lift
+        for (int second = 0; second < 40; second++) {
+            frames(0.0f, 0.0f);
+        }
+        assertEquals(RunSegmenter.STATE_RUN, segmenter.getState());
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void reset_startsTheNextSessionOver() {
+        ride(60, 3.0, 0.0f, 0.0f);
+        ride(60, -5.0, 0.3f, 60.0f);
+        assertEquals(RunSegmenter.STATE_RUN, segmenter.getState());
+
+        segmenter.reset();
+        assertEquals(RunSegmenter.STATE_UNKNOWN, segmenter.getState());
+        assertEquals(0, segmenter.getLifts());
+        assertEquals(0, segmenter.getRuns());
+        assertEquals(0, segmenter.getTurns());
+
+        // the next session's first lift is reported like the first one ever
+        events.clear();
+        ride(60, 3.0, 0.0f, 0.0f);
+        assertEquals(1, events.size());
+        assertEquals(RunSegmenter.EVENT_LIFT, events.get(0)[1], 0);
+        assertEquals(0, events.get(0)[3], 0);
+        assertEquals(1, segmenter.getLifts());
+    }
+
+    // seconds of riding at the vertical speed, with a GPS fix every second
+    private void ride(int seconds, double verticalSpeed, float bumps, float turnRate) {
+        for (int second = 0; second < seconds; second++) {
+            altitude += verticalSpeed;
+            segmenter.addLocation(time, altitude);
+            frames(bumps, turnRate);
+        }
+    }
+
+    // a second of frames: the accel magnitude swinging by bumps g, turning back and forth at
+    // up to turnRate deg/s once a second
+    private void frames(float bumps, float turnRate) {
+        float[] gyro = new float[3];
+        float[] accel = new float[3];
+        float[] mag = {20, 0, 40};
+        for (int block = 0; block < 2; block++) {
+            frames.clear();
+            while (!frames.isFull()) {
+                time += FRAME_NANOS;
+                double t = time / 1e9;
+                gyro[2] = turnRate * (float) Math.sin(Math.PI * t);
+                accel[2] = 1 + bumps * (float) Math.sin(2 * Math.PI * 3 * t);
+                frames.add(time, gyro, accel, mag);
+            }
+            segmenter.update(frames, LEVEL);
+        }
+    }
+}
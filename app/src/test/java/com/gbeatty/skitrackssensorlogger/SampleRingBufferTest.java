@@ -0,0 +1,196 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.*;
+
+public class SampleRingBufferTest {
+
+    private final long[] time = new long[1];
+    private final float[] xyz = new float[3];
+
+    @Test
+    public void capacity_isRoundedUpToPowerOfTwo() {
+        assertEquals(8, new SampleRingBuffer(5, SampleRingBuffer.OverflowPolicy.DROP_NEWEST).capacity());
+        assertEquals(16, new SampleRingBuffer(16, SampleRingBuffer.OverflowPolicy.DROP_NEWEST).capacity());
+    }
+
+    @Test
+    public void poll_returnsSamplesInOrder() {
+        SampleRingBuffer buffer = new SampleRingBuffer(4, SampleRingBuffer.OverflowPolicy.DROP_NEWEST);
+        assertFalse(buffer.poll(time, xyz));
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(buffer.offer(i * 10, i, i + 0.5f, -i));
+        }
+        assertEquals(3, buffer.size());
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(buffer.poll(time, xyz));
+            assertEquals(i * 10, time[0]);
+            assertArrayEquals(new float[]{i, i + 0.5f, -i}, xyz, 0.0f);
+        }
+        assertTrue(buffer.isEmpty());
+        assertFalse(buffer.poll(time, xyz));
+    }
+
+    @Test
+    public void dropNewest_keepsOldestAndCountsDrops() {
+        SampleRingBuffer buffer = new SampleRingBuffer(4, SampleRingBuffer.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 6; i++) {
+            buffer.offer(i, i, 0, 0);
+        }
+        assertEquals(4, buffer.size());
+        assertEquals(2, buffer.getDroppedSamples());
+        assertEquals(0, buffer.getOverwrittenSamples());
+
+        buffer.poll(time, xyz);
+        assertEquals(0, time[0]);
+    }
+
+    @Test
+    public void overwriteOldest_keepsNewestAndCountsOverwrites() {
+        SampleRingBuffer buffer = new SampleRingBuffer(4, SampleRingBuffer.OverflowPolicy.OVERWRITE_OLDEST);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(buffer.offer(i, i, 0, 0));
+        }
+        assertEquals(4, buffer.size());
+        assertEquals(0, buffer.getDroppedSamples());
+        assertEquals(2, buffer.getOverwrittenSamples());
+
+        for (int i = 2; i < 6; i++) {
+            assertTrue(buffer.poll(time, xyz));
+            assertEquals(i, time[0]);
+            assertEquals(i, xyz[0], 0.0f);
+        }
+    }
+
+    @Test
+    public void drainTo_copiesUpToMaxSamples() {
+        SampleRingBuffer buffer = new SampleRingBuffer(8, SampleRingBuffer.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(i, i, 2 * i, 3 * i);
+        }
+
+        long[] times = new long[3];
+        float[] values = new float[9];
+        assertEquals(3, buffer.drainTo(times, values, 3));
+        assertEquals(2, times[2]);
+        assertEquals(6.0f, values[8], 0.0f);
+        assertEquals(2, buffer.drainTo(times, values, 3));
+        assertEquals(0, buffer.drainTo(times, values, 3));
+    }
+
+    @Test
+    public void clear_discardsEverything() {
+        SampleRingBuffer buffer = new SampleRingBuffer(8, SampleRingBuffer.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(i, 0, 0, 0);
+        }
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        assertTrue(buffer.offer(42, 0, 0, 0));
+        assertTrue(buffer.poll(time, xyz));
+        assertEquals(42, time[0]);
+    }
+
+    @Test
+    public void concurrentProducer_deliversEverySampleInOrder() throws Exception {
+        final SampleRingBuffer buffer = new SampleRingBuffer(64, SampleRingBuffer.OverflowPolicy.DROP_NEWEST);
+        final int numSamples = 200000;
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < numSamples; ) {
+                    if (buffer.offer(i, i, -i, 2 * i)) {
+                        i++;
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        int expected = 0;
+        while (expected < numSamples) {
+            if (buffer.poll(time, xyz)) {
+                assertEquals(expected, time[0]);
+                assertEquals((float) expected, xyz[0], 0.0f);
+                assertEquals((float) -expected, xyz[1], 0.0f);
+                expected++;
+            }
+        }
+        producer.join();
+    }
+
+    @Test
+    public void concurrentOverwrite_neverReturnsTornOrOutOfOrderSamples() throws Exception {
+        final SampleRingBuffer buffer = new SampleRingBuffer(16, SampleRingBuffer.OverflowPolicy.OVERWRITE_OLDEST);
+        final int numSamples = 200000;
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= numSamples; i++) {
+                    buffer.offer(i, i, i, i);
+                }
+            }
+        });
+        producer.start();
+
+        long last = 0;
+        while (last < numSamples) {
+            if (buffer.poll(time, xyz)) {
+                assertTrue(time[0] > last);
+                assertEquals((float) time[0], xyz[0], 0.0f);
+                assertEquals(xyz[0], xyz[2], 0.0f);
+                last = time[0];
+            } else if (!producer.isAlive() && buffer.isEmpty()) {
+                break;
+            }
+        }
+        producer.join();
+        assertEquals(numSamples, last);
+    }
+
+    @Test
+    public void steadyState_allocatesNothingUnlikeLinkedBlockingQueue() throws Exception {
+        final int rounds = 100000;
+        AllocationCounter counter = new AllocationCounter();
+
+        SampleRingBuffer buffer = new SampleRingBuffer(512, SampleRingBuffer.OverflowPolicy.OVERWRITE_OLDEST);
+        LinkedBlockingQueue<double[]> queue = new LinkedBlockingQueue<double[]>();
+
+        // warm up both paths so class loading and JIT don't get counted
+        runRingBuffer(buffer, rounds);
+        runQueue(queue, rounds);
+
+        counter.start();
+        runRingBuffer(buffer, rounds);
+        long ringBytes = counter.allocatedBytes();
+
+        counter.start();
+        runQueue(queue, rounds);
+        long queueBytes = counter.allocatedBytes();
+
+        // allow for a little noise from the JVM itself, but nothing proportional to the sample count
+        assertTrue("ring buffer allocated " + ringBytes + " bytes", ringBytes < 1024);
+        assertTrue("queue allocated " + queueBytes + " bytes", queueBytes > rounds * 32L);
+    }
+
+    private void runRingBuffer(SampleRingBuffer buffer, int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            buffer.offer(i, 1.0f, 2.0f, 3.0f);
+            buffer.poll(time, xyz);
+        }
+    }
+
+    private void runQueue(LinkedBlockingQueue<double[]> queue, int rounds) throws InterruptedException {
+        for (int i = 0; i < rounds; i++) {
+            queue.add(new double[]{1.0, 2.0, 3.0});
+            queue.take();
+        }
+    }
+}
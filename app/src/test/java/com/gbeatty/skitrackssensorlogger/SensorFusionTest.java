@@ -0,0 +1,246 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SensorFusionTest {
+
+    private static final long SAMPLE_PERIOD_NANOS = 10000000L;
+
+    // a slowly turning device sitting flat with a plausible magnetic field
+    private static final float[] GYRO = {0.0f, 0.0f, 0.1f};
+    private static final float[] ACCEL = {0.0f, 0.0f, 9.81f};
+    private static final float[] MAG = {0.0f, 20.0f, -40.0f};
+    // in g like the MetaWear accel, a little short of 1 g, facing east
+    private static final float[] LOW_G = {0.0f, 0.0f, 0.97f};
+    private static final float[] EAST = {20.0f, 0.0f, -40.0f};
+
+    @Test
+    public void setFrames_allocatesNothingPerSample() {
+        SensorFusion sf = new SensorFusion();
+        sf.start();
+        FrameBlock frames = new FrameBlock(32);
+        AllocationCounter counter = new AllocationCounter();
+
+        long time = SAMPLE_PERIOD_NANOS;
+        // warm up so class loading and JIT compilation don't get counted
+        for (int i = 0; i < 2000; i++) {
+            time = fill(frames, time);
+            sf.SetFrames(frames);
+        }
+
+        counter.start();
+        for (int i = 0; i < 2000; i++) {
+            time = fill(frames, time);
+            sf.SetFrames(frames);
+        }
+        long bytes = counter.allocatedBytes();
+
+        assertTrue("fusion allocated " + bytes + " bytes for " + 2000 * frames.capacity + " samples", bytes < 1024);
+    }
+
+    @Test
+    public void gyroDrift_isCorrectedInlineBySampleTime() {
+        // sitting still with a gyro reading a 0.5 rad/s bias about z for a minute
+        float[] drift = {0.0f, 0.0f, 0.5f};
+        SensorFusion sf = new SensorFusion();
+        sf.start();
+        FrameBlock frames = new FrameBlock(100);
+        long time = SAMPLE_PERIOD_NANOS;
+        time = fill(frames, time, new float[3]);
+        sf.SetFrames(frames);
+        float[] expected = sf.getRotationMatrix(new float[9]);
+
+        for (int i = 0; i < 60; i++) {
+            time = fill(frames, time, drift);
+            sf.SetFrames(frames);
+        }
+
+        // without the correction the heading would be off by 30 rad, with it the error settles
+        // at the drift of one TIME_CONSTANT times coefficient / (1 - coefficient)
+        float[] orientation = new float[9];
+        assertEquals(time - SAMPLE_PERIOD_NANOS, sf.getOrientation().read(orientation));
+        for (int i = 0; i < 9; i++) {
+            assertEquals(expected[i], orientation[i], 0.1f);
+        }
+    }
+
+    @Test
+    public void eulerMode_skipsTheBlendWithoutAReference() {
+        // a board facing east in free fall, the accel reading 0.05 g, which the alignment takes
+        // for gravity but the blends can't use
+        float[] falling = {0.0f, 0.0f, 0.05f};
+        SensorFusion sf = new SensorFusion();
+        sf.start();
+        FrameBlock window = new FrameBlock(InitialAlignment.DEFAULT_WINDOW);
+        long time = fill(window, SAMPLE_PERIOD_NANOS, new float[3], falling, EAST);
+        sf.SetFrames(window);
+        assertTrue(sf.getAlignment().hasHeading());
+        float[] aligned = sf.getRotationMatrix(new float[9]);
+        float[] expected = new float[9];
+        assertTrue(SensorMath.getRotationMatrix(expected, null, LOW_G, EAST, SensorMath.FREE_FALL_G));
+        assertArrayEquals(expected, aligned, 1e-3f);
+
+        FrameBlock frames = new FrameBlock(100);
+        for (int i = 0; i < 10; i++) {
+            time = fill(frames, time, new float[3], falling, EAST);
+            sf.SetFrames(frames);
+        }
+
+        // the aligned heading holds, rather than being blended toward a reference never taken
+        assertArrayEquals(aligned, sf.getRotationMatrix(new float[9]), 1e-3f);
+    }
+
+    @Test
+    public void eulerMode_keepsTheAlignedHeadingBelowOneG() {
+        // a still board facing east, its accel reading 0.97 g: free fall to the m/s^2 check,
+        // and a gyro drifting at 0.5 rad/s about z for half a minute
+        float[] drift = {0.0f, 0.0f, 0.5f};
+        SensorFusion sf = new SensorFusion();
+        sf.start();
+        FrameBlock frames = new FrameBlock(100);
+        long time = SAMPLE_PERIOD_NANOS;
+        for (int i = 0; i < 30; i++) {
+            time = fill(frames, time, drift, LOW_G, EAST);
+            sf.SetFrames(frames);
+        }
+
+        // the blends keep pulling the drifting gyro back to the aligned heading
+        float[] expected = new float[9];
+        assertTrue(SensorMath.getRotationMatrix(expected, null, LOW_G, EAST, SensorMath.FREE_FALL_G));
+        assertTrue(sf.getAlignment().hasHeading());
+        assertArrayEquals(expected, sf.getRotationMatrix(new float[9]), 0.1f);
+    }
+
+    @Test
+    public void referencePeriod_keepsTheTimeConstantOfTheCorrection() {
+        SensorFusion everySample = new SensorFusion();
+        everySample.setReferencePeriod(SensorFusion.TIME_CONSTANT * 1000000L);
+        everySample.start();
+        SensorFusion multiRate = new SensorFusion();
+        multiRate.start();
+        assertEquals(SensorFusion.DEFAULT_REFERENCE_PERIOD_NANOS, multiRate.getReferencePeriod());
+
+        // sitting still, then the magnetometer swings 90 degrees, a second later both have
+        // followed it the same way although one blends ten times less often
+        float[] still = new float[3];
+        float[] east = {20.0f, 0.0f, -40.0f};
+        FrameBlock frames = new FrameBlock(50);
+        long time = SAMPLE_PERIOD_NANOS;
+        for (int i = 0; i < 4; i++) {
+            time = fill(frames, time, still);
+            everySample.SetFrames(frames);
+            multiRate.SetFrames(frames);
+        }
+        float[] before = everySample.getRotationMatrix(new float[9]);
+        for (int i = 0; i < 2; i++) {
+            frames.clear();
+            while (!frames.isFull()) {
+                frames.add(time, still, ACCEL, east);
+                time += SAMPLE_PERIOD_NANOS;
+            }
+            everySample.SetFrames(frames);
+            multiRate.SetFrames(frames);
+        }
+
+        assertTrue(Math.abs(before[0] - everySample.getRotationMatrix(new float[9])[0]) > 0.5f);
+        assertArrayEquals(everySample.getRotationMatrix(new float[9]), multiRate.getRotationMatrix(new float[9]), 0.01f);
+    }
+
+    @Test
+    public void quaternionMode_agreesWithTheEulerFilter() {
+        SensorFusion euler = new SensorFusion();
+        euler.start();
+        SensorFusion quaternion = new SensorFusion();
+        quaternion.setMode(SensorFusion.Mode.QUATERNION);
+        quaternion.start();
+
+        FrameBlock frames = new FrameBlock(100);
+        long time = SAMPLE_PERIOD_NANOS;
+        for (int i = 0; i < 10; i++) {
+            time = fill(frames, time);
+            euler.SetFrames(frames);
+            quaternion.SetFrames(frames);
+        }
+
+        assertArrayEquals(euler.getRotationMatrix(new float[9]), quaternion.getRotationMatrix(new float[9]), 0.005f);
+        float[] eulerAngles = euler.getOrientationAngles(new float[3]);
+        float[] quaternionAngles = quaternion.getOrientationAngles(new float[3]);
+        assertArrayEquals(eulerAngles, quaternionAngles, 0.005f);
+    }
+
+    @Test
+    public void quaternionMode_holdsTheReferenceStandingUpright() {
+        // pitched up 89 degrees, where the Euler angles are at their worst, with the gyro
+        // drifting about every axis
+        double pitch = Math.toRadians(89);
+        float[] upright = {0.0f, (float) (9.81 * Math.sin(pitch)), (float) (9.81 * Math.cos(pitch))};
+        float[] drift = {0.2f, -0.1f, 0.3f};
+        SensorFusion sf = new SensorFusion();
+        sf.setMode(SensorFusion.Mode.QUATERNION);
+        sf.start();
+
+        FrameBlock frames = new FrameBlock(100);
+        long time = SAMPLE_PERIOD_NANOS;
+        for (int i = 0; i < 30; i++) {
+            frames.clear();
+            while (!frames.isFull()) {
+                frames.add(time, drift, upright, MAG);
+                time += SAMPLE_PERIOD_NANOS;
+            }
+            sf.SetFrames(frames);
+        }
+
+        float[] expected = new float[9];
+        assertTrue(SensorMath.getRotationMatrix(expected, null, upright, MAG));
+        assertArrayEquals(expected, sf.getRotationMatrix(new float[9]), 0.1f);
+        // still a rotation after thousands of integrated samples
+        float[] m = sf.getRotationMatrix(new float[9]);
+        assertEquals(1.0f, m[0] * m[0] + m[1] * m[1] + m[2] * m[2], 1e-4f);
+        assertEquals(0.0f, m[0] * m[3] + m[1] * m[4] + m[2] * m[5], 1e-4f);
+    }
+
+    @Test
+    public void stop_ignoresSamplesUntilStartedAgain() {
+        SensorFusion sf = new SensorFusion();
+        FrameBlock frames = new FrameBlock(32);
+        long time = fill(frames, SAMPLE_PERIOD_NANOS);
+        sf.SetFrames(frames);
+        assertFalse(sf.isRunning());
+        assertEquals(0, sf.getOrientation().getVersion());
+
+        // published from the frame completing the initial alignment on
+        int published = 32 - InitialAlignment.DEFAULT_WINDOW + 1;
+        sf.start();
+        sf.SetFrames(frames);
+        assertEquals(published, sf.getOrientation().getVersion());
+
+        sf.stop();
+        fill(frames, time);
+        sf.SetFrames(frames);
+        assertEquals(published, sf.getOrientation().getVersion());
+
+        // a restart aligns again, rather than integrating across the gap
+        sf.start();
+        sf.SetFrames(frames);
+        assertEquals(2 * published, sf.getOrientation().getVersion());
+    }
+
+    private static long fill(FrameBlock frames, long time) {
+        return fill(frames, time, GYRO);
+    }
+
+    private static long fill(FrameBlock frames, long time, float[] gyro) {
+        return fill(frames, time, gyro, ACCEL, MAG);
+    }
+
+    private static long fill(FrameBlock frames, long time, float[] gyro, float[] accel, float[] mag) {
+        frames.clear();
+        while (!frames.isFull()) {
+            frames.add(time, gyro, accel, mag);
+            time += SAMPLE_PERIOD_NANOS;
+        }
+        return time;
+    }
+}
@@ -0,0 +1,105 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SensorMathTest {
+
+    private static final float TOLERANCE = 1e-5f;
+
+    private static final float[] IDENTITY = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+
+    @Test
+    public void getRotationMatrix_flatFacingNorthIsIdentity() {
+        float[] R = new float[9];
+        assertTrue(SensorMath.getRotationMatrix(R, null, new float[]{0, 0, 9.81f}, new float[]{0, 20, -40}));
+        assertArrayEquals(IDENTITY, R, TOLERANCE);
+
+        float[] orientation = SensorMath.getOrientation(R, new float[3]);
+        assertArrayEquals(new float[]{0, 0, 0}, orientation, TOLERANCE);
+    }
+
+    @Test
+    public void getRotationMatrix_rejectsFreeFallAndLeavesResultAlone() {
+        float[] R = {9, 9, 9, 9, 9, 9, 9, 9, 9};
+        assertFalse(SensorMath.getRotationMatrix(R, null, new float[]{0, 0, 0.5f}, new float[]{0, 20, -40}));
+        assertEquals(9.0f, R[0], 0.0f);
+    }
+
+    @Test
+    public void getRotationMatrix_takesGravityInGWithTheGThreshold() {
+        float[] R = new float[9];
+        // a still MetaWear board reading a little under 1 g is free fall to the m/s^2 check
+        float[] gravity = {0, 0, 0.97f};
+        assertFalse(SensorMath.getRotationMatrix(R, null, gravity, new float[]{0, 20, -40}));
+        assertTrue(SensorMath.getRotationMatrix(R, null, gravity, new float[]{0, 20, -40}, SensorMath.FREE_FALL_G));
+        assertArrayEquals(IDENTITY, R, TOLERANCE);
+        assertFalse(SensorMath.getRotationMatrix(R, null, new float[]{0, 0, 0.05f}, new float[]{0, 20, -40}, SensorMath.FREE_FALL_G));
+        assertTrue(SensorMath.getTiltMatrix(R, gravity, SensorMath.FREE_FALL_G));
+    }
+
+    @Test
+    public void getRotationMatrix_rejectsMagneticFieldParallelToGravity() {
+        float[] R = new float[9];
+        assertFalse(SensorMath.getRotationMatrix(R, null, new float[]{0, 0, 9.81f}, new float[]{0, 0, -40}));
+    }
+
+    @Test
+    public void getRotationMatrix_computesInclinationMatrix() {
+        float[] I = new float[9];
+        assertTrue(SensorMath.getRotationMatrix(null, I, new float[]{0, 0, 9.81f}, new float[]{0, 30, -40}));
+
+        // field dips 53.13 degrees below the horizon
+        assertEquals(0.6f, I[4], TOLERANCE);
+        assertEquals(-0.8f, I[5], TOLERANCE);
+        assertEquals(0.8f, I[7], TOLERANCE);
+    }
+
+    @Test
+    public void getRotationMatrixFromVector_quarterTurnAboutZ() {
+        float s = (float) Math.sin(Math.PI / 4);
+        float[] R = new float[9];
+        SensorMath.getRotationMatrixFromVector(R, new float[]{0, 0, s, s});
+        assertArrayEquals(new float[]{0, -1, 0, 1, 0, 0, 0, 0, 1}, R, TOLERANCE);
+
+        float[] orientation = SensorMath.getOrientation(R, new float[3]);
+        assertEquals(-Math.PI / 2, orientation[0], TOLERANCE);
+        assertEquals(0.0f, orientation[1], TOLERANCE);
+        assertEquals(0.0f, orientation[2], TOLERANCE);
+    }
+
+    @Test
+    public void getRotationMatrixFromVector_derivesScalarPartWhenMissing() {
+        float s = (float) Math.sin(Math.PI / 4);
+        float[] withScalar = new float[9];
+        float[] withoutScalar = new float[9];
+        SensorMath.getRotationMatrixFromVector(withScalar, new float[]{s, 0, 0, s});
+        SensorMath.getRotationMatrixFromVector(withoutScalar, new float[]{s, 0, 0});
+        assertArrayEquals(withScalar, withoutScalar, TOLERANCE);
+    }
+
+    @Test
+    public void getRotationMatrix_recoversRotationFromVectorsInDeviceFrame() {
+        // an arbitrary orientation
+        float[] q = {0.2f, -0.4f, 0.3f, 0.0f};
+        q[3] = (float) Math.sqrt(1 - q[0] * q[0] - q[1] * q[1] - q[2] * q[2]);
+        float[] expected = new float[9];
+        SensorMath.getRotationMatrixFromVector(expected, q);
+
+        // world gravity reaction and magnetic field seen from the device: R^T * v
+        float[] gravity = transposeTimes(expected, new float[]{0, 0, 9.81f});
+        float[] magnetic = transposeTimes(expected, new float[]{0, 22, -41});
+
+        float[] R = new float[9];
+        assertTrue(SensorMath.getRotationMatrix(R, null, gravity, magnetic));
+        assertArrayEquals(expected, R, TOLERANCE);
+    }
+
+    private static float[] transposeTimes(float[] R, float[] v) {
+        return new float[]{
+                R[0] * v[0] + R[3] * v[1] + R[6] * v[2],
+                R[1] * v[0] + R[4] * v[1] + R[7] * v[2],
+                R[2] * v[0] + R[5] * v[1] + R[8] * v[2]};
+    }
+}
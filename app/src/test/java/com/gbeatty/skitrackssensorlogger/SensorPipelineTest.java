@@ -0,0 +1,39 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class SensorPipelineTest {
+
+    private static final long SAMPLE_PERIOD_NANOS = 10000000L;
+
+    @Test
+    public void latency_includesTheWaitForTheNextMagSample() throws Exception {
+        SensorPipeline pipeline = new SensorPipeline(new SensorFusion());
+        // drains on the thread adding the samples
+        pipeline.start(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        pipeline.addMag(0, 0.0f, 20.0f, -40.0f);
+        pipeline.addAccel(0, 0.0f, 0.0f, 1.0f);
+        pipeline.addAccel(2 * SAMPLE_PERIOD_NANOS, 0.0f, 0.0f, 1.0f);
+        pipeline.addGyro(SAMPLE_PERIOD_NANOS, 0.0f, 0.0f, 0.0f);
+        // the gyro sample waits for the mag sample after it
+        Thread.sleep(50);
+        pipeline.addMag(10 * SAMPLE_PERIOD_NANOS, 0.0f, 20.0f, -40.0f);
+
+        String report = pipeline.getMetrics().report(1000000000L);
+        assertTrue(report, report.contains("Drains: 1 "));
+        int start = report.indexOf("Latency p50 < ") + "Latency p50 < ".length();
+        long p50 = Long.parseLong(report.substring(start, report.indexOf("us", start)));
+        assertTrue(report, p50 >= 65536);
+        pipeline.stop();
+    }
+}
@@ -0,0 +1,72 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SessionIndexTest {
+
+    private static final long PERIOD_NANOS = 10000000L;
+
+    @Test
+    public void index_summarizesEachSegment() throws IOException {
+        File log = writeLog(1050, 100);
+        SessionIndex index = new SessionIndex(SessionIndex.fileFor(log));
+
+        assertEquals(11, index.size());
+        assertEquals(100, index.getSegmentRecords());
+        assertEquals(100, index.getRecordCount(0));
+        assertEquals(50, index.getRecordCount(10));
+
+        assertEquals(0L, index.getFirstTime(0));
+        assertEquals(99 * PERIOD_NANOS, index.getLastTime(0));
+        assertEquals(BinaryLogWriter.HEADER_SIZE + 100L * BinaryLogWriter.RECORD_SIZE, index.getOffset(1));
+
+        // records 100..199 alternate between gyro (even) and accel (odd)
+        assertEquals(100.0f, index.getMin(1, SampleSource.SENSOR_GYRO, 0), 0.0f);
+        assertEquals(198.0f, index.getMax(1, SampleSource.SENSOR_GYRO, 0), 0.0f);
+        assertEquals(-199.0f, index.getMin(1, SampleSource.SENSOR_ACCEL, 1), 0.0f);
+        assertEquals(Float.POSITIVE_INFINITY, index.getMin(1, SampleSource.SENSOR_MAG, 2), 0.0f);
+        index.close();
+    }
+
+    @Test
+    public void seekToTime_startsAtSegmentHoldingTime() throws IOException {
+        File log = writeLog(100000, 1000);
+        SessionIndex index = new SessionIndex(SessionIndex.fileFor(log));
+
+        assertEquals(-1, new SessionIndex(SessionIndex.fileFor(writeLog(0, 1000))).find(0));
+        assertEquals(0, index.find(-1));
+        assertEquals(0, index.find(999 * PERIOD_NANOS));
+        assertEquals(42, index.find(42500 * PERIOD_NANOS));
+        assertEquals(99, index.find(Long.MAX_VALUE));
+
+        BinaryLogReader reader = new BinaryLogReader(log);
+        reader.seekToTime(index, 42500 * PERIOD_NANOS);
+        long[] time = new long[1];
+        float[] xyz = new float[3];
+        reader.next(time, xyz);
+        assertEquals(42000 * PERIOD_NANOS, time[0]);
+        assertEquals(42000.0f, xyz[0], 0.0f);
+        reader.close();
+        index.close();
+    }
+
+    private static File writeLog(int records, int segmentRecords) throws IOException {
+        File log = File.createTempFile("Imu_", ".bin");
+        log.deleteOnExit();
+        File indexFile = SessionIndex.fileFor(log);
+        indexFile.deleteOnExit();
+
+        BinaryLogWriter writer = new BinaryLogWriter(log, 4096, new SessionIndexWriter(indexFile, segmentRecords));
+        for (int i = 0; i < records; i++) {
+            int sensor = i % 2 == 0 ? SampleSource.SENSOR_GYRO : SampleSource.SENSOR_ACCEL;
+            writer.write(sensor, i * PERIOD_NANOS, i, -i, 0.0f);
+        }
+        writer.close();
+        return log;
+    }
+}
@@ -0,0 +1,135 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionManagerTest {
+
+    private static final long SAMPLE_PERIOD_NANOS = 10000000L;
+    private static final int SAMPLES = 2000;
+
+    @Test
+    public void lanes_processTheirOwnBoardOnTheSharedPool() throws Exception {
+        SessionManager session = new SessionManager();
+        final BoardLane left = session.addLane("left", MountProfile.HELMET, new SensorFusion());
+        final BoardLane right = session.addLane("right", MountProfile.HELMET, new SensorFusion());
+        final BoardLane still = session.addLane("still", MountProfile.HELMET, new SensorFusion());
+        session.start();
+        assertEquals(Math.min(3, Runtime.getRuntime().availableProcessors()), session.getThreadCount());
+
+        // one thread per board, like the MetaWear message handlers
+        Thread[] boards = {feed(left, 0.5f), feed(right, 0.5f), feed(still, 0.0f)};
+        for (Thread board : boards) {
+            board.start();
+        }
+        for (Thread board : boards) {
+            board.join();
+        }
+        waitUntilSettled(session);
+        session.stop();
+        assertFalse(session.isRunning());
+
+        for (BoardLane lane : session.getLanes()) {
+            assertEquals(SAMPLES * 2 + SAMPLES / 10, lane.getSamples());
+            assertEquals(0, lane.getPipeline().getOverwrittenSamples());
+        }
+        // the same samples give the same orientation, whatever thread processed them
+        float[] leftMatrix = left.getFusion().getRotationMatrix(new float[9]);
+        float[] stillMatrix = still.getFusion().getRotationMatrix(new float[9]);
+        assertArrayEquals(leftMatrix, right.getFusion().getRotationMatrix(new float[9]), 0.0f);
+        assertTrue(Math.abs(leftMatrix[0] - stillMatrix[0]) > 0.1f);
+    }
+
+    @Test
+    public void report_coversTheLaneAndItsLog() {
+        SessionManager session = new SessionManager();
+        BoardLane lane = session.addLane("helmet", MountProfile.HELMET, new SensorFusion());
+        for (int i = 0; i < 100; i++) {
+            lane.addGyro(i * SAMPLE_PERIOD_NANOS, 0, 0, 1);
+        }
+
+        String report = lane.report(1000000000L);
+        assertTrue(report, report.startsWith("helmet  In: 100/s"));
+        assertTrue(report, report.contains("Backlog: "));
+        assertTrue(report, report.contains("Gyro dropped: 0"));
+        assertTrue(report, lane.report(1000000000L).startsWith("helmet  In: 0/s"));
+    }
+
+    @Test
+    public void magLog_isUncalibrated() throws IOException {
+        SessionManager session = new SessionManager();
+        BoardLane lane = session.addLane("helmet", MountProfile.HELMET, new SensorFusion());
+        lane.getMagCalibrator().setCalibration(new MagCalibration(
+                new double[]{10, -5, 2}, new double[]{1, 0, 0, 0, 1, 0, 0, 0, 1}, 48, 1000));
+        final List<float[]> logged = new ArrayList<float[]>();
+        AsyncLogWriter writer = new AsyncLogWriter(new SampleWriter() {
+            @Override
+            public void write(int sensor, long timeNanos, float x, float y, float z) {
+                logged.add(new float[]{sensor, x, y, z});
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        lane.setLogWriter(writer);
+        lane.addMag(SAMPLE_PERIOD_NANOS, 30, -20, 40);
+        writer.close();
+
+        // in the board's frame like the other sensors, but not calibrated
+        float[] expected = new float[3];
+        MountProfile.HELMET.correctMag(30, -20, 40, expected);
+        assertEquals(1, logged.size());
+        assertEquals(SampleSource.SENSOR_MAG, logged.get(0)[0], 0);
+        assertArrayEquals(expected, new float[]{logged.get(0)[1], logged.get(0)[2], logged.get(0)[3]}, 0);
+    }
+
+    private static Thread feed(final BoardLane lane, final float rate) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < SAMPLES; i++) {
+                    // a board can't deliver faster than the lane keeps up for long
+                    while (lane.getPipeline().getBacklog() > 100) {
+                        Thread.yield();
+                    }
+                    long time = (i + 1) * SAMPLE_PERIOD_NANOS;
+                    // lying flat facing north, turning about the board's x axis (up on a helmet),
+                    // the field turning the other way in the board's frame at the rate fusion
+                    // integrates, so the accel/mag reference agrees with the gyro
+                    double heading = rate * time / 1e9;
+                    lane.addAccel(time, -1.0f, 0.0f, 0.0f);
+                    lane.addGyro(time, rate, 0.0f, 0.0f);
+                    if (i % 10 == 0) {
+                        lane.addMag(time, -40.0f, 20.0f * (float) Math.sin(heading), 20.0f * (float) Math.cos(heading));
+                    }
+                }
+            }
+        });
+    }
+
+    // waits until the backlog of every lane stops changing
+    private static void waitUntilSettled(SessionManager session) throws InterruptedException {
+        int[] last = new int[session.getLanes().size()];
+        int stable = 0;
+        while (stable < 5) {
+            Thread.sleep(20);
+            boolean changed = false;
+            for (int i = 0; i < last.length; i++) {
+                int backlog = session.getLanes().get(i).getPipeline().getBacklog();
+                changed |= backlog != last[i];
+                last[i] = backlog;
+            }
+            stable = changed ? 0 : stable + 1;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionReplayTest {
+
+    private static final long SAMPLE_PERIOD_NANOS = 10000000L;
+
+    @Test
+    public void run_flushesTheFramesWaitingAtTheEnd() throws Exception {
+        // a short recording ending between two mag samples, the last gyro samples waiting for
+        // the mag sample after them
+        final List<long[]> samples = new ArrayList<long[]>();
+        samples.add(new long[]{SampleSource.SENSOR_MAG, 0});
+        for (int i = 0; i <= 15; i++) {
+            samples.add(new long[]{SampleSource.SENSOR_ACCEL, i * SAMPLE_PERIOD_NANOS});
+            if (i > 0) {
+                samples.add(new long[]{SampleSource.SENSOR_GYRO, i * SAMPLE_PERIOD_NANOS});
+            }
+            if (i == 10) {
+                samples.add(new long[]{SampleSource.SENSOR_MAG, i * SAMPLE_PERIOD_NANOS});
+            }
+        }
+        SampleSource source = new SampleSource() {
+            private int next = 0;
+
+            @Override
+            public int next(long[] time, float[] xyz) {
+                if (next == samples.size()) {
+                    return -1;
+                }
+                long[] sample = samples.get(next++);
+                time[0] = sample[1];
+                xyz[0] = 0.0f;
+                xyz[1] = sample[0] == SENSOR_MAG ? 20.0f : 0.0f;
+                xyz[2] = sample[0] == SENSOR_MAG ? -40.0f : sample[0] == SENSOR_ACCEL ? 1.0f : 0.0f;
+                return (int) sample[0];
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        SessionReplay.Result result = new SessionReplay(source, new SessionReplay.FusionFilter()).run(null);
+
+        // every gyro sample ends up in a frame or the dropped count
+        assertEquals(samples.size(), result.samples);
+        assertEquals(15, result.frames);
+        assertEquals(0, result.droppedSamples);
+    }
+}
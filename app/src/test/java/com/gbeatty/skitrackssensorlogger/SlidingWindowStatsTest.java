@@ -0,0 +1,105 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SlidingWindowStatsTest {
+
+    @Test
+    public void stats_matchTheWindowRecomputed() {
+        Random random = new Random(3);
+        int[] windowSizes = {1, 2, 7, 64};
+        for (int windowSize : windowSizes) {
+            SlidingWindowStats stats = new SlidingWindowStats(windowSize);
+            double[] stream = new double[1000];
+            for (int i = 0; i < stream.length; i++) {
+                // runs going up and down as well as noise, to exercise the min and max queues
+                if (i < 300) {
+                    stream[i] = random.nextGaussian();
+                } else if (i < 600) {
+                    stream[i] = (i % 50) * (i < 450 ? 1 : -1);
+                } else {
+                    stream[i] = random.nextInt(4);
+                }
+                stats.add(stream[i]);
+                assertWindow(stream, i, windowSize, stats);
+            }
+        }
+    }
+
+    @Test
+    public void variance_staysAccurateFarFromZero() {
+        // e.g. a magnitude around 1g sampled for a day, but with a small spread
+        SlidingWindowStats stats = new SlidingWindowStats(100);
+        for (int i = 0; i < 10000000; i++) {
+            stats.add(1000.0 + (i % 2 == 0 ? 0.001 : -0.001));
+        }
+
+        assertEquals(1000.0, stats.getMean(), 1e-9);
+        assertEquals(0.001, stats.getStdDev(), 1e-9);
+    }
+
+    @Test
+    public void emptyAndCleared() {
+        SlidingWindowStats stats = new SlidingWindowStats(4);
+        assertEquals(0, stats.size());
+        assertTrue(Double.isNaN(stats.getMin()));
+        assertEquals(0, stats.getVariance(), 0);
+
+        for (int i = 0; i < 10; i++) {
+            stats.add(i);
+        }
+        assertTrue(stats.isFull());
+        stats.clear();
+        stats.add(-5);
+        assertEquals(1, stats.size());
+        assertEquals(-5, stats.getMin(), 0);
+        assertEquals(-5, stats.getMax(), 0);
+        assertEquals(-5, stats.getMean(), 0);
+    }
+
+    @Test
+    public void add_allocatesNothing() {
+        SlidingWindowStats stats = new SlidingWindowStats(256);
+        AllocationCounter counter = new AllocationCounter();
+        for (int i = 0; i < 20000; i++) {
+            stats.add(Math.sin(i));
+        }
+
+        counter.start();
+        for (int i = 0; i < 20000; i++) {
+            stats.add(Math.sin(i));
+        }
+        long bytes = counter.allocatedBytes();
+
+        assertTrue("allocated " + bytes + " bytes for 20000 values", bytes < 1024);
+    }
+
+    private static void assertWindow(double[] stream, int last, int windowSize, SlidingWindowStats stats) {
+        int first = Math.max(0, last - windowSize + 1);
+        int n = last - first + 1;
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (int i = first; i <= last; i++) {
+            sum += stream[i];
+            min = Math.min(min, stream[i]);
+            max = Math.max(max, stream[i]);
+        }
+        double mean = sum / n;
+        double squares = 0;
+        for (int i = first; i <= last; i++) {
+            squares += (stream[i] - mean) * (stream[i] - mean);
+        }
+
+        String at = "window " + windowSize + " at " + last;
+        assertEquals(at, n, stats.size());
+        assertEquals(at, mean, stats.getMean(), 1e-9);
+        assertEquals(at, squares / n, stats.getVariance(), 1e-9);
+        assertEquals(at, min, stats.getMin(), 0);
+        assertEquals(at, max, stats.getMax(), 0);
+    }
+}
@@ -0,0 +1,150 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single update of each orientation filter, in ns per sample. At 400Hz a filter has
+ * 2.5ms per sample on the phone, shared with everything else the logging service does; run with
+ * the gc profiler (the jmh task does) to see which updates allocate.
+ *
+ * Every filter is fed the same recorded-like motion, cycling through {@link #FRAMES} frames
+ * with the sample time moving on 2.5ms per update.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterBenchmark {
+
+    private static final int FRAMES = 1024;
+    private static final long SAMPLE_PERIOD_NANOS = 2500000L;
+    private static final double DEG2RAD = Math.PI / 180.0;
+
+    private FrameBlock frames;
+    // frames 10ms apart for the batch update, which takes dt from the timestamps
+    private FrameBlock block;
+    private int next;
+    private long timeNanos;
+
+    private MadgwickAHRSIMU madgwick;
+    private final float[] imuSamples = new float[FRAMES * MadgwickAHRS.IMU_STRIDE];
+
+    private SensorFusion fusion;
+    private final float[] gyro = new float[3];
+    private final float[] rotation = new float[9];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        frames = SampleData.frames(FRAMES);
+        block = SampleData.frames(FRAMES);
+        for (int i = 0; i < FRAMES; i++) {
+            int j = i * MadgwickAHRS.IMU_STRIDE;
+            imuSamples[j] = (float) (frames.gx[i] * DEG2RAD);
+            imuSamples[j + 1] = (float) (frames.gy[i] * DEG2RAD);
+            imuSamples[j + 2] = (float) (frames.gz[i] * DEG2RAD);
+            imuSamples[j + 3] = frames.ax[i];
+            imuSamples[j + 4] = frames.ay[i];
+            imuSamples[j + 5] = frames.az[i];
+        }
+        madgwick = new MadgwickAHRSIMU(0.1, new double[]{1, 0, 0, 0}, 400);
+        fusion = new SensorFusion();
+        fusion.start();
+        // settle both filters on the data before measuring
+        for (int i = 0; i < FRAMES; i++) {
+            madgwickAHRSUpdate();
+            fusionSetFrame();
+        }
+    }
+
+    @Benchmark
+    public double madgwickAHRSUpdate() {
+        int i = nextFrame();
+        madgwick.AHRSUpdate(frames.gx[i] * DEG2RAD, frames.gy[i] * DEG2RAD, frames.gz[i] * DEG2RAD,
+                frames.ax[i], frames.ay[i], frames.az[i],
+                frames.mx[i], frames.my[i], frames.mz[i]);
+        return madgwick.getOrientationQuaternion()[0];
+    }
+
+    /**
+     * AHRS updates a whole block of frames at a time, reported per frame. Every block starts
+     * over at the same timestamps, so its first frame is integrated over the nominal period.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double madgwickAHRSUpdateBlock() {
+        madgwick.update(block, DEG2RAD);
+        return madgwick.getOrientationQuaternion()[0];
+    }
+
+    @Benchmark
+    public double madgwickIMUUpdate() {
+        int i = nextFrame();
+        madgwick.IMUUpdate(frames.gx[i] * DEG2RAD, frames.gy[i] * DEG2RAD, frames.gz[i] * DEG2RAD,
+                frames.ax[i], frames.ay[i], frames.az[i]);
+        return madgwick.getOrientationQuaternion()[0];
+    }
+
+    /**
+     * IMU updates FRAMES samples at a time, reported per sample.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double madgwickIMUUpdateBatch() {
+        madgwick.update(imuSamples, 0, FRAMES);
+        return madgwick.getOrientationQuaternion()[0];
+    }
+
+    @Benchmark
+    public float fusionGyroFunction() {
+        int i = nextFrame();
+        gyro[0] = frames.gx[i];
+        gyro[1] = frames.gy[i];
+        gyro[2] = frames.gz[i];
+        fusion.gyroFunction(gyro, timeNanos);
+        return fusion.getRotationMatrix(rotation)[0];
+    }
+
+    /**
+     * The gyro integration of one frame and, every reference period of sample time, the
+     * accel/mag orientation and the complementary filter step.
+     */
+    @Benchmark
+    public float fusionSetFrame() {
+        int i = nextFrame();
+        frames.timeNanos[i] = timeNanos;
+        fusion.SetFrame(frames, i);
+        return fusion.getRotationMatrix(rotation)[0];
+    }
+
+    /**
+     * The accel/mag orientation and the complementary filter step alone, run every reference
+     * period of sample time.
+     */
+    @Benchmark
+    public float fusionFuseOrientation() {
+        fusion.fuseOrientation();
+        return fusion.getRotationMatrix(rotation)[0];
+    }
+
+    private int nextFrame() {
+        int i = next;
+        next = i + 1 == FRAMES ? 0 : i + 1;
+        timeNanos += SAMPLE_PERIOD_NANOS;
+        return i;
+    }
+}
@@ -0,0 +1,108 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SensorFusion keeping its orientation as Euler angles against keeping it as a quaternion, in
+ * ns per sample, with the accel/mag blend every 10ms or at the default 100ms.
+ *
+ * The samples are the benchmark frames 10ms apart, like the pipeline feeds them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FusionModeBenchmark {
+
+    private static final int FRAMES = 1024;
+    private static final long SAMPLE_PERIOD_NANOS = 10000000L;
+    // lying flat, in g like the MetaWear accel, and uT
+    private static final float[] REFERENCE_ACCEL = {0.0f, 0.0f, 1.0f};
+    private static final float[] REFERENCE_MAG = {0.0f, 20.0f, -40.0f};
+
+    @Param({"EULER", "QUATERNION"})
+    public SensorFusion.Mode fusionMode;
+
+    @Param({"10", "100"})
+    public int referencePeriodMillis;
+
+    private FrameBlock frames;
+    private int next;
+    private long timeNanos;
+
+    private SensorFusion fusion;
+    private final float[] gyro = new float[3];
+    private final float[] rotation = new float[9];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        frames = SampleData.frames(FRAMES);
+        fusion = new SensorFusion();
+        fusion.setMode(fusionMode);
+        fusion.setReferencePeriod(referencePeriodMillis * 1000000L);
+        fusion.start();
+        // past the start up delay before the first blend
+        for (int i = 0; i < FRAMES; i++) {
+            setFrame();
+        }
+        // the last frame may be too close to free fall for an accel/mag reference, which would
+        // leave fuseOrientation nothing to blend
+        fusion.SetAccel(REFERENCE_ACCEL);
+        fusion.SetMag(REFERENCE_MAG);
+    }
+
+    /**
+     * Everything a sample costs, the blend included when it's due.
+     */
+    @Benchmark
+    public float setFrame() {
+        int i = nextFrame();
+        frames.timeNanos[i] = timeNanos;
+        fusion.SetFrame(frames, i);
+        return fusion.getRotationMatrix(rotation)[0];
+    }
+
+    /**
+     * The gyro integration alone, and the blend when it's due.
+     */
+    @Benchmark
+    public float gyroFunction() {
+        int i = nextFrame();
+        gyro[0] = frames.gx[i];
+        gyro[1] = frames.gy[i];
+        gyro[2] = frames.gz[i];
+        fusion.gyroFunction(gyro, timeNanos);
+        return fusion.getRotationMatrix(rotation)[0];
+    }
+
+    /**
+     * The accel/mag reference and the blend alone.
+     */
+    @Benchmark
+    public float fuseOrientation() {
+        fusion.fuseOrientation();
+        return fusion.getRotationMatrix(rotation)[0];
+    }
+
+    private int nextFrame() {
+        int i = next;
+        next = i + 1 == FRAMES ? 0 : i + 1;
+        timeNanos += SAMPLE_PERIOD_NANOS;
+        return i;
+    }
+}
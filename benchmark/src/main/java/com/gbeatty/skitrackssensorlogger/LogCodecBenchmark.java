@@ -0,0 +1,141 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per sample of writing the IMU log as CSV lines (the old format), fixed size binary
+ * records and delta encoded records, and of reading the delta encoded log back. The sizes of
+ * the written files are printed at the end of each iteration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LogCodecBenchmark {
+
+    private static final int SAMPLES = SampleData.SAMPLES;
+
+    @Param({"false", "true"})
+    public boolean deflate;
+
+    private final SampleData data = new SampleData();
+
+    private File file;
+    private CompressedLogWriter compressedWriter;
+    private BinaryLogWriter binaryWriter;
+    private Writer csvWriter;
+    private long samplesWritten;
+    private int next;
+
+    // the old CSV logging, as LoggingService did it
+    private final SimpleDateFormat format = new SimpleDateFormat("MM_dd_yyyy_hh_mm_ss.SSS");
+    private final Calendar calendar = Calendar.getInstance();
+
+    private File encodedFile;
+    private final long[] time = new long[1];
+    private final float[] xyz = new float[3];
+
+    @Setup(Level.Trial)
+    public void writeEncodedFile() throws IOException {
+        encodedFile = File.createTempFile("bench", ".imz");
+        CompressedLogWriter writer = new CompressedLogWriter(encodedFile, deflate);
+        for (int i = 0; i < SAMPLES; i++) {
+            data.write(writer, i);
+        }
+        writer.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteEncodedFile() {
+        encodedFile.delete();
+    }
+
+    @Setup(Level.Iteration)
+    public void openWriters() throws IOException {
+        file = File.createTempFile("bench", ".log");
+        compressedWriter = new CompressedLogWriter(file, deflate);
+        binaryWriter = new BinaryLogWriter(new File(file.getPath() + ".bin"));
+        csvWriter = new BufferedWriter(new FileWriter(file.getPath() + ".csv"), 1 << 16);
+        samplesWritten = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeWriters() throws IOException {
+        compressedWriter.close();
+        binaryWriter.close();
+        csvWriter.close();
+
+        File binary = new File(file.getPath() + ".bin");
+        File csv = new File(file.getPath() + ".csv");
+        if (samplesWritten > 0) {
+            System.out.printf("%n%d samples, bytes/sample: csv %.1f, binary %.1f, compressed %.1f%n", samplesWritten,
+                    csv.length() / (double) samplesWritten, binary.length() / (double) samplesWritten,
+                    file.length() / (double) samplesWritten);
+        }
+        file.delete();
+        binary.delete();
+        csv.delete();
+    }
+
+    @Benchmark
+    public void writeCompressed() throws IOException {
+        data.write(compressedWriter, nextSample());
+    }
+
+    @Benchmark
+    public void writeBinary() throws IOException {
+        data.write(binaryWriter, nextSample());
+    }
+
+    @Benchmark
+    public void writeCsv() throws IOException {
+        int i = nextSample();
+        calendar.setTimeInMillis(data.times[i] / 1000000L);
+        csvWriter.write(format.format(calendar.getTime()) + ',' + data.values[i * 3] + ',' + data.values[i * 3 + 1] + ',' + data.values[i * 3 + 2] + '\n');
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void readCompressed(Blackhole blackhole) throws IOException {
+        CompressedLogReader reader = new CompressedLogReader(encodedFile);
+        int sensor;
+        while ((sensor = reader.next(time, xyz)) >= 0) {
+            blackhole.consume(sensor);
+        }
+        reader.close();
+        blackhole.consume(time[0]);
+        blackhole.consume(xyz[0] + xyz[1] + xyz[2]);
+    }
+
+    private int nextSample() {
+        int i = next;
+        next = i + 1 == SAMPLES ? 0 : i + 1;
+        samplesWritten++;
+        return i;
+    }
+}
@@ -0,0 +1,84 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A few seconds of a skier's head at 100Hz accel and gyro and 10Hz mag, at the resolution the
+ * MetaWear sensors deliver, for the benchmarks to cycle through. {@link #frames(int)} gives the
+ * same motion as time aligned frames.
+ */
+class SampleData {
+
+    static final int SAMPLES = 4096;
+
+    final int[] sensors = new int[SAMPLES];
+    final long[] times = new long[SAMPLES];
+    final float[] values = new float[SAMPLES * 3];
+
+    SampleData() {
+        Random random = new Random(42);
+        long start = 1792324790000L * 1000000L;
+        int n = 0;
+        for (int i = 0; n < SAMPLES; i++) {
+            long t = start + i * 10000000L;
+            double phase = 2 * Math.PI * i / 300.0;
+
+            n = add(n, SampleSource.SENSOR_ACCEL, t, 1.0f / 16384.0f,
+                    0.3 * Math.sin(phase) + 0.004 * random.nextGaussian(),
+                    0.05 + 0.004 * random.nextGaussian(),
+                    0.95 + 0.1 * Math.cos(phase) + 0.004 * random.nextGaussian());
+            n = add(n, SampleSource.SENSOR_GYRO, t, 1.0f / 131.2f,
+                    5 * Math.cos(phase) + 0.1 * random.nextGaussian(),
+                    0.1 * random.nextGaussian(),
+                    40 * Math.sin(phase) + 0.1 * random.nextGaussian());
+            if (i % 10 == 0) {
+                n = add(n, SampleSource.SENSOR_MAG, t + 5000000L, 1.0f / 16.0f,
+                        20 * Math.cos(phase) + 0.3 * random.nextGaussian(),
+                        20 * Math.sin(phase) + 0.3 * random.nextGaussian(),
+                        -40 + 0.3 * random.nextGaussian());
+            }
+        }
+    }
+
+    /**
+     * @return count frames 10ms apart, gyro in deg/s, accel in g and mag in uT
+     */
+    static FrameBlock frames(int count) {
+        Random random = new Random(42);
+        FrameBlock frames = new FrameBlock(count);
+        float[] gyro = new float[3];
+        float[] accel = new float[3];
+        float[] mag = new float[3];
+        for (int i = 0; i < count; i++) {
+            double phase = 2 * Math.PI * i / 300.0;
+            gyro[0] = (float) (5 * Math.cos(phase) + 0.1 * random.nextGaussian());
+            gyro[1] = (float) (0.1 * random.nextGaussian());
+            gyro[2] = (float) (40 * Math.sin(phase) + 0.1 * random.nextGaussian());
+            accel[0] = (float) (0.3 * Math.sin(phase) + 0.004 * random.nextGaussian());
+            accel[1] = (float) (0.05 + 0.004 * random.nextGaussian());
+            accel[2] = (float) (0.95 + 0.1 * Math.cos(phase) + 0.004 * random.nextGaussian());
+            mag[0] = (float) (20 * Math.cos(phase) + 0.3 * random.nextGaussian());
+            mag[1] = (float) (20 * Math.sin(phase) + 0.3 * random.nextGaussian());
+            mag[2] = (float) (-40 + 0.3 * random.nextGaussian());
+            frames.add(i * 10000000L, gyro, accel, mag);
+        }
+        return frames;
+    }
+
+    void write(SampleWriter writer, int i) throws IOException {
+        writer.write(sensors[i], times[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2]);
+    }
+
+    private int add(int n, int sensor, long time, float resolution, double x, double y, double z) {
+        if (n == SAMPLES) {
+            return n;
+        }
+        sensors[n] = sensor;
+        times[n] = time;
+        values[n * 3] = Math.round(x / resolution) * resolution;
+        values[n * 3 + 1] = Math.round(y / resolution) * resolution;
+        values[n * 3 + 2] = Math.round(z / resolution) * resolution;
+        return n + 1;
+    }
+}
@@ -0,0 +1,99 @@
+package com.gbeatty.skitrackssensorlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per value of the sliding window statistics, in ns. It should stay flat as the window
+ * grows; the recomputing version is there for comparison.
+ *
+ * The values are the accel magnitudes of the sample frames, plus a stretch that only goes
+ * down, which is the worst case for the minimum's queue.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WindowStatsBenchmark {
+
+    private static final int VALUES = 4096;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int windowSize;
+
+    private final double[] values = new double[VALUES];
+    private SlidingWindowStats stats;
+    private double[] window;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        FrameBlock frames = SampleData.frames(VALUES / 2);
+        for (int i = 0; i < frames.count; i++) {
+            values[i] = Math.sqrt(frames.ax[i] * frames.ax[i] + frames.ay[i] * frames.ay[i] + frames.az[i] * frames.az[i]);
+        }
+        for (int i = frames.count; i < VALUES; i++) {
+            values[i] = 2.0 - (double) i / VALUES;
+        }
+        stats = new SlidingWindowStats(windowSize);
+        window = new double[windowSize];
+        for (int i = 0; i < windowSize; i++) {
+            add();
+        }
+    }
+
+    @Benchmark
+    public double add() {
+        stats.add(values[next]);
+        next = (next + 1) % VALUES;
+        return stats.getMin() + stats.getMax() + stats.getMean() + stats.getVariance();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void addAll(Blackhole blackhole) {
+        for (int i = 0; i < VALUES; i++) {
+            stats.add(values[i]);
+            blackhole.consume(stats.getVariance());
+        }
+    }
+
+    /**
+     * Scanning the whole window for every value, the way it would be done without the class.
+     */
+    @Benchmark
+    public double recompute() {
+        window[next % windowSize] = values[next];
+        next = (next + 1) % VALUES;
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (double value : window) {
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        double mean = sum / windowSize;
+        double squares = 0;
+        for (double value : window) {
+            squares += (value - mean) * (value - mean);
+        }
+        return min + max + mean + squares / windowSize;
+    }
+}